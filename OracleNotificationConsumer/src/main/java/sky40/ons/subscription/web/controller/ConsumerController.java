@@ -1,16 +1,21 @@
 package sky40.ons.subscription.web.controller;
 
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import sky40.ons.subscription.domain.Result;
 import sky40.ons.subscription.svc.ConsumerService;
+import sky40.ons.util.BinaryMessageDecoder;
 
 /**
  * Controller class for teh REST based web interface. Delegates to the internal
@@ -60,4 +65,30 @@ public class ConsumerController {
     return new Result<>(ret);
   }
 
+  /**
+   * Receive a message sent as plain json body (instead of a form field).
+   *
+   * @param message the json message
+   * @return result of receiving
+   */
+  @PostMapping(value = "/messagereceiver", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public Result<String> receiveJsonMessage(@RequestBody String message) {
+    return receiveMessage(message);
+  }
+
+  /**
+   * Receive messages sent in the binary format.
+   *
+   * @param body the binary messages
+   * @return result of receiving
+   */
+  @PostMapping(value = "/messagereceiver", consumes = "application/x-ons-binary")
+  public Result<String> receiveBinaryMessage(@RequestBody byte[] body) {
+    List<Map<String, Object>> messages = BinaryMessageDecoder.decode(body);
+    log.info("Consumer received " + messages.size() + " binary message(s): " + messages);
+
+    String ret = "message received at " + new Date().toGMTString();
+    return new Result<>(ret);
+  }
+
 }
@@ -0,0 +1,193 @@
+package sky40.ons.subscription.web.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Decompresses request bodies sent with Content-Encoding gzip, so the
+ * controllers get the plain json or binary messages. The body is decompressed
+ * before the request is passed on, up to the size configured as
+ * consumer.max-body-size (10 MB by default); larger bodies are rejected with
+ * 413 Payload Too Large, so a small compressed body cannot fill the memory.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Component
+public class GzipRequestFilter extends OncePerRequestFilter {
+
+  private static final String GZIP = "gzip";
+
+  private static final long DEFAULT_MAX_BODY_SIZE = 10L * 1024 * 1024;
+
+  @Autowired
+  Environment environment;
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+    if (!GZIP.equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING))) {
+      filterChain.doFilter(request, response);
+      return;
+    }
+    long maxSize = environment.getProperty("consumer.max-body-size", Long.class, DEFAULT_MAX_BODY_SIZE);
+    byte[] body;
+    try {
+      body = decompress(request.getInputStream(), maxSize);
+    } catch (ZipException | EOFException ex) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid gzip body: " + ex.getMessage());
+      return;
+    }
+    if (body == null) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Decompressed body exceeds " + maxSize + " bytes.");
+      return;
+    }
+    filterChain.doFilter(new GzipRequest(request, body), response);
+  }
+
+  /**
+   * Decompress a body.
+   *
+   * @param in the compressed body
+   * @param maxSize maximum size of the decompressed body
+   * @return the decompressed body, null if it is larger than allowed
+   * @throws IOException if the body cannot be read or is not valid gzip
+   */
+  private static byte[] decompress(InputStream in, long maxSize) throws IOException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    try (GZIPInputStream gzip = new GZIPInputStream(in)) {
+      int count;
+      while ((count = gzip.read(buf)) >= 0) {
+        if (ret.size() + (long) count > maxSize) {
+          return null;
+        }
+        ret.write(buf, 0, count);
+      }
+    }
+    return ret.toByteArray();
+  }
+
+  /**
+   * Request with the decompressed body. Hides the headers of the compressed
+   * body.
+   */
+  private static class GzipRequest extends HttpServletRequestWrapper {
+
+    private final byte[] body;
+    private ServletInputStream inputStream;
+
+    GzipRequest(HttpServletRequest request, byte[] body) {
+      super(request);
+      this.body = body;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+      if (inputStream == null) {
+        inputStream = new BodyInputStream(body);
+      }
+      return inputStream;
+    }
+
+    @Override
+    public int getContentLength() {
+      return body.length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+      return body.length;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return isHidden(name) ? null : super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      return isHidden(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      List<String> ret = Collections.list(super.getHeaderNames());
+      ret.removeIf(GzipRequest::isHidden);
+      return Collections.enumeration(ret);
+    }
+
+    private static boolean isHidden(String name) {
+      return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+    }
+  }
+
+  /**
+   * Stream of the decompressed body. As the body is in memory, it is always
+   * ready, and a read listener is told about all data at once.
+   */
+  private static class BodyInputStream extends ServletInputStream {
+
+    private final ByteArrayInputStream in;
+
+    BodyInputStream(byte[] body) {
+      this.in = new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public int read() {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() {
+      return in.available();
+    }
+
+    @Override
+    public boolean isFinished() {
+      return in.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      try {
+        if (!isFinished()) {
+          readListener.onDataAvailable();
+        }
+        readListener.onAllDataRead();
+      } catch (IOException | RuntimeException ex) {
+        readListener.onError(ex);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,151 @@
+package sky40.ons.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes binary messages of the notification service, as described in
+ * data/BINARY FORMAT.txt. The messages are decoded into maps and lists with
+ * the same structure as the json messages.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BinaryMessageDecoder {
+
+  private static final byte[] MAGIC = {'O', 'N', 'S'};
+
+  /**
+   * The first version with a sequence number.
+   */
+  private static final int SEQUENCE_VERSION = 2;
+
+  /**
+   * The first version with the name of the source database.
+   */
+  private static final int SOURCE_VERSION = 3;
+
+  /**
+   * Decode all messages of a body.
+   *
+   * @param body the request body
+   * @return the messages
+   */
+  public static List<Map<String, Object>> decode(byte[] body) {
+    ByteBuffer buf = ByteBuffer.wrap(body);
+    List<Map<String, Object>> ret = new ArrayList<>();
+    try {
+      while (buf.hasRemaining()) {
+        int length = buf.getInt();
+        ByteBuffer message = buf.slice();
+        message.limit(length);
+        ret.add(decodeMessage(message));
+        buf.position(buf.position() + length);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException ex) {
+      throw new RuntimeException("Invalid binary message: " + ex);
+    }
+    return ret;
+  }
+
+  private static Map<String, Object> decodeMessage(ByteBuffer buf) {
+    for (byte b : MAGIC) {
+      if (buf.get() != b) {
+        throw new RuntimeException("Invalid binary message: unknown format.");
+      }
+    }
+    int version = buf.get();
+    if (version < 1 || version > SOURCE_VERSION) {
+      throw new RuntimeException("Invalid binary message: unknown version " + version + ".");
+    }
+
+    Map<String, Object> ret = new LinkedHashMap<>();
+    if (version >= SEQUENCE_VERSION) {
+      ret.put("seq", buf.getLong());
+    }
+    if (version >= SOURCE_VERSION) {
+      ret.put("source", readString(buf));
+    }
+    ret.put("table", readString(buf));
+    ret.put("operations", readStrings(buf));
+    ret.put("time", buf.getLong());
+    int part = buf.getInt();
+    boolean lastPart = buf.get() != 0;
+    if (part > 0) {
+      ret.put("part", part);
+      ret.put("lastPart", lastPart);
+    }
+
+    List<String> columns = readStrings(buf);
+    int rowCount = buf.getInt();
+    if (rowCount < 0) {
+      ret.put("rows", null);
+      return ret;
+    }
+    // a row takes at least 7 bytes
+    if (rowCount > buf.remaining() / 7) {
+      throw new IllegalArgumentException("row count " + rowCount + " exceeds the message");
+    }
+    List<Map<String, Object>> rows = new ArrayList<>(rowCount);
+    for (int row = 0; row < rowCount; row++) {
+      rows.add(decodeRow(buf, columns));
+    }
+    Map<String, Object> rowSet = new LinkedHashMap<>();
+    rowSet.put("rows", rows);
+    ret.put("rows", rowSet);
+    return ret;
+  }
+
+  private static Map<String, Object> decodeRow(ByteBuffer buf, List<String> columns) {
+    String rowId = readString(buf);
+    List<String> operations = readStrings(buf);
+    int flags = buf.get();
+
+    Map<String, String> attributes = new LinkedHashMap<>();
+    if ((flags & 2) == 0) {
+      byte[] present = new byte[(columns.size() + 7) / 8];
+      buf.get(present);
+      for (int col = 0; col < columns.size(); col++) {
+        if ((present[col >> 3] & (1 << (col & 7))) != 0) {
+          attributes.put(columns.get(col), readString(buf));
+        }
+      }
+    }
+
+    Map<String, Object> ret = new LinkedHashMap<>();
+    ret.put("attributes", attributes);
+    ret.put("rowId", rowId);
+    ret.put("operations", operations);
+    if ((flags & 1) != 0) {
+      ret.put("delta", true);
+    }
+    return ret;
+  }
+
+  private static String readString(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (length > buf.remaining()) {
+      throw new IllegalArgumentException("string length " + length + " exceeds the message");
+    }
+    String ret = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+    buf.position(buf.position() + length);
+    return ret;
+  }
+
+  private static List<String> readStrings(ByteBuffer buf) {
+    int count = buf.getShort() & 0xffff;
+    List<String> ret = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ret.add(readString(buf));
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,148 @@
+package sky40.ons.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the decoding of a message with 100 rows of 10 columns: the binary
+ * format against parsing the same message as json.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BinaryMessageDecoderBenchmarkTest {
+
+  private static final int ROWS = 100;
+
+  private static final int ITERATIONS = 2000;
+
+  private static final String[] COLUMNS = {
+    "ID", "REGISTRATION", "TYPE", "OPERATOR", "SEATS", "WEIGHT", "PRICE", "BUILT", "CHANGED", "REMARKS"};
+
+  @Test
+  public void binaryIsDecodedFasterThanJson() throws IOException {
+    byte[] binary = buildBinary();
+    byte[] json = buildJson();
+    ObjectMapper mapper = new ObjectMapper().enable(DeserializationFeature.USE_LONG_FOR_INTS);
+    List<Map<String, Object>> messages = BinaryMessageDecoder.decode(binary);
+    assertEquals(1, messages.size());
+    assertEquals(mapper.readValue(json, Map.class), messages.get(0));
+    System.out.println(String.format("%-48s %12d bytes", "size: json", json.length));
+    System.out.println(String.format("%-48s %12d bytes", "size: binary", binary.length));
+
+    double jsonTime = MicroBenchmark.measure("decode: json, jackson", ITERATIONS, () -> {
+      try {
+        return mapper.readValue(json, Map.class).size();
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    double binaryTime = MicroBenchmark.measure("decode: binary", ITERATIONS,
+            () -> BinaryMessageDecoder.decode(binary).size());
+    assertTrue(binaryTime < jsonTime);
+  }
+
+  private static String value(int row, int col) {
+    switch (col) {
+      case 0:
+        return Integer.toString(100000 + row);
+      case 1:
+        return "D-A" + (1000 + row);
+      case 2:
+        return "A320-214";
+      case 3:
+        return "Lufthansa";
+      case 4:
+        return "180";
+      case 5:
+        return Double.toString(42400.5 + row);
+      case 6:
+        return "98000000.00";
+      case 7:
+        return "2011-03-13T07:06:40.000Z";
+      case 8:
+        return "2018-10-20T01:46:40.123Z";
+      default:
+        return null;
+    }
+  }
+
+  private static String rowId(int row) {
+    return "AAAR3sAAEAAAACXAA" + (char) ('A' + row % 26);
+  }
+
+  /**
+   * Build the message as the service writes it, see data/BINARY FORMAT.txt.
+   */
+  private static byte[] buildBinary() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(new byte[]{'O', 'N', 'S', 3});
+    out.writeLong(42);
+    writeString(out, "FLEET");
+    writeString(out, "ADMIN.AIRCRAFT");
+    out.writeShort(1);
+    writeString(out, "UPDATE");
+    out.writeLong(1540000000000L);
+    out.writeInt(0);
+    out.writeByte(1);
+    out.writeShort(COLUMNS.length);
+    for (String column : COLUMNS) {
+      writeString(out, column);
+    }
+    out.writeInt(ROWS);
+    for (int row = 0; row < ROWS; row++) {
+      writeString(out, rowId(row));
+      out.writeShort(1);
+      writeString(out, "UPDATE");
+      out.writeByte(0);
+      out.write(new byte[]{(byte) 0xff, 0x03});
+      for (int col = 0; col < COLUMNS.length; col++) {
+        writeString(out, value(row, col));
+      }
+    }
+    out.flush();
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    new DataOutputStream(ret).writeInt(bytes.size());
+    bytes.writeTo(ret);
+    return ret.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Build the same message as json, as the service writes it.
+   */
+  private static byte[] buildJson() {
+    StringBuilder ret = new StringBuilder("{\"seq\":42,\"source\":\"FLEET\",\"table\":\"ADMIN.AIRCRAFT\","
+            + "\"operations\":[\"UPDATE\"],\"time\":1540000000000,\"rows\":{\"rows\":[");
+    for (int row = 0; row < ROWS; row++) {
+      ret.append(row > 0 ? "," : "").append("{\"attributes\":{");
+      for (int col = 0; col < COLUMNS.length; col++) {
+        String value = value(row, col);
+        ret.append(col > 0 ? "," : "").append('"').append(COLUMNS[col]).append("\":")
+                .append(value == null ? "null" : "\"" + value + "\"");
+      }
+      ret.append("},\"rowId\":\"").append(rowId(row)).append("\",\"operations\":[\"UPDATE\"]}");
+    }
+    return ret.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+}
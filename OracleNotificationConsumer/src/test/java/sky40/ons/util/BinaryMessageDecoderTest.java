@@ -0,0 +1,108 @@
+package sky40.ons.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes the example message in data/, which the service's BinaryWriterTest
+ * checks its messages against. Together they make sure both sides agree on
+ * the format.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BinaryMessageDecoderTest {
+
+  private static final File EXAMPLE = new File("../data/BINARY EXAMPLE.bin");
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void decodesExample() throws IOException {
+    List<Map<String, Object>> messages = BinaryMessageDecoder.decode(Files.readAllBytes(EXAMPLE.toPath()));
+    assertEquals(1, messages.size());
+    Map<String, Object> message = messages.get(0);
+    assertEquals(42L, message.get("seq"));
+    assertEquals("FLEET", message.get("source"));
+    assertEquals("ADMIN.AIRCRAFT", message.get("table"));
+    assertEquals(Arrays.asList("UPDATE", "DELETE"), message.get("operations"));
+    assertEquals(1540000000000L, message.get("time"));
+
+    List<Map<String, Object>> rows = (List<Map<String, Object>>) ((Map<String, Object>) message.get("rows")).get("rows");
+    assertEquals(2, rows.size());
+    Map<String, Object> updated = rows.get(0);
+    assertEquals("AAAR3sAAEAAAACXAAA", updated.get("rowId"));
+    assertEquals(Collections.singletonList("UPDATE"), updated.get("operations"));
+    Map<String, String> attributes = (Map<String, String>) updated.get("attributes");
+    assertEquals(Arrays.asList("NAME", "SEATS", "REMARK"), Arrays.asList(attributes.keySet().toArray()));
+    assertEquals("A320 \u00e4\u20ac\uD83D\uDE80", attributes.get("NAME"));
+    assertEquals("180", attributes.get("SEATS"));
+    assertNull(attributes.get("REMARK"));
+    assertNull(updated.get("delta"));
+
+    Map<String, Object> deleted = rows.get(1);
+    assertEquals("AAAR3sAAEAAAACXAAB", deleted.get("rowId"));
+    assertEquals(Collections.singletonList("DELETE"), deleted.get("operations"));
+    assertTrue(((Map<String, String>) deleted.get("attributes")).isEmpty());
+  }
+
+  @Test
+  public void decodesBatch() throws IOException {
+    byte[] example = Files.readAllBytes(EXAMPLE.toPath());
+    byte[] batch = Arrays.copyOf(example, example.length * 2);
+    System.arraycopy(example, 0, batch, example.length, example.length);
+    assertEquals(2, BinaryMessageDecoder.decode(batch).size());
+  }
+
+  @Test
+  public void rejectsTruncatedMessage() throws IOException {
+    byte[] example = Files.readAllBytes(EXAMPLE.toPath());
+    assertInvalid(Arrays.copyOf(example, example.length - 1));
+  }
+
+  @Test
+  public void rejectsStringLongerThanMessage() throws IOException {
+    byte[] example = Files.readAllBytes(EXAMPLE.toPath());
+    // length of the source name, after length, magic and sequence number
+    example[16] = 0x7f;
+    assertInvalid(example);
+  }
+
+  @Test
+  public void rejectsRowCountLargerThanMessage() throws IOException {
+    byte[] example = Files.readAllBytes(EXAMPLE.toPath());
+    // row count, after the column names
+    int pos = indexOf(example, "REMARK") + "REMARK".length();
+    example[pos] = 0x7f;
+    assertInvalid(example);
+  }
+
+  private static void assertInvalid(byte[] body) {
+    try {
+      BinaryMessageDecoder.decode(body);
+      fail("Invalid message was decoded.");
+    } catch (RuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().startsWith("Invalid binary message"));
+    }
+  }
+
+  private static int indexOf(byte[] bytes, String ascii) {
+    for (int i = 0; i + ascii.length() <= bytes.length; i++) {
+      if (new String(bytes, i, ascii.length(), StandardCharsets.US_ASCII).equals(ascii)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(ascii + " not found.");
+  }
+
+}
@@ -1,11 +1,14 @@
 package sky40.ons;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
-import sky40.ons.listener.DatabaseManager;
-import sky40.ons.listener.ONSchangeListener;
+import sky40.ons.listener.DatabaseSources;
+import sky40.ons.listener.ONSchangeNotifier;
+import sky40.ons.pipeline.ChangePipeline;
+import sky40.ons.util.StartupTimings;
 
 /**
  * Main class and entry point into the application, if not started in a hosted
@@ -18,10 +21,23 @@ import sky40.ons.listener.ONSchangeListener;
 public class Application {
 
   public static void main(String[] args) {
+    long start = System.nanoTime();
     ConfigurableApplicationContext ctx = SpringApplication.run(Application.class, args);
-    ONSchangeListener listener = ctx.getBean(ONSchangeListener.class);
-    DatabaseManager dbm = ctx.getBean(DatabaseManager.class);
-    dbm.startup(listener);
+    StartupTimings timings = new StartupTimings(ctx.getBean(MeterRegistry.class), start);
+    timings.record("context", start);
+
+    DatabaseSources sources = ctx.getBean(DatabaseSources.class);
+    sources.startup(ctx.getBean(ChangePipeline.class), timings);
+
+    ONSchangeNotifier notifier = ctx.getBean(ONSchangeNotifier.class);
+    if (ctx.getBean(ApplicationConfig.class).getWarmup().isEnabled()) {
+      sources.warmUp(notifier::getQueryColumns, timings);
+      notifier.warmUp(timings);
+    } else {
+      // endpoints get the messages from the journal they did not acknowledge
+      notifier.openQueues();
+    }
+    timings.report();
   }
 
 }
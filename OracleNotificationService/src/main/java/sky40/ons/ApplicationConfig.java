@@ -1,10 +1,14 @@
 package sky40.ons;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.stereotype.Component;
+import sky40.ons.delivery.DeliveryQueue;
+import sky40.ons.domain.BodyType;
 
 /**
  * Configuration class for the application. Takes values out of the environment
@@ -94,6 +98,8 @@ public class ApplicationConfig {
     String clientHostname;
     int clientPort;
     ArrayList<String> tableName;
+    int shards = 1;
+    HashMap<String, Integer> tableShard = new HashMap<>();
 
     public String getClientHostname() {
       return clientHostname;
@@ -118,6 +124,834 @@ public class ApplicationConfig {
     public void setTableName(ArrayList<String> tableName) {
       this.tableName = tableName;
     }
+
+    /**
+     * Number of change registrations the tables are partitioned across. Each
+     * has its own connection, listener thread and port: the client port +
+     * the index of the shard, starting with 0.
+     *
+     * @return the number of shards
+     */
+    public int getShards() {
+      return shards;
+    }
+
+    public void setShards(int shards) {
+      this.shards = shards;
+    }
+
+    /**
+     * Shards to put single tables on, by table name, e.g. to give a busy table
+     * a shard of its own. The other tables are spread round robin. The
+     * startup fails if an index is not below the number of shards.
+     *
+     * @return the shard index by table name
+     */
+    public HashMap<String, Integer> getTableShard() {
+      return tableShard;
+    }
+
+    public void setTableShard(HashMap<String, Integer> tableShard) {
+      this.tableShard = tableShard;
+    }
+  }
+
+  private ArrayList<Source> source = new ArrayList<>();
+
+  /**
+   * The databases to listen to, if more than the one of oracle and
+   * notification.
+   *
+   * @return the sources, empty for the single database
+   */
+  public ArrayList<Source> getSource() {
+    return source;
+  }
+
+  public void setSource(ArrayList<Source> source) {
+    this.source = source;
+  }
+
+  /**
+   * Configures a database to listen to, with its own registration, table
+   * list and connection pool.
+   */
+  public static class Source {
+
+    private String name;
+    private Oracle oracle;
+    private Notification notification;
+    private Pool pool;
+
+    /**
+     * Name of the source, sent with each message of its tables. Defaults to
+     * the database name.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return (name == null && oracle != null) ? oracle.getDatabase() : name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public Oracle getOracle() {
+      return oracle;
+    }
+
+    public void setOracle(Oracle oracle) {
+      this.oracle = oracle;
+    }
+
+    public Notification getNotification() {
+      return notification;
+    }
+
+    public void setNotification(Notification notification) {
+      this.notification = notification;
+    }
+
+    /**
+     * Connection pool of the source, if it is sized apart from the others.
+     * Settings it does not set take the defaults, not the ones of
+     * ons.pool.
+     *
+     * @return the pool configuration or null for the one of ons.pool
+     */
+    public Pool getPool() {
+      return pool;
+    }
+
+    public void setPool(Pool pool) {
+      this.pool = pool;
+    }
+
+  }
+
+  private Query query = new Query();
+
+  public Query getQuery() {
+    return query;
+  }
+
+  public void setQuery(Query query) {
+    this.query = query;
+  }
+
+  /**
+   * Configures how changed rows are fetched from the database.
+   */
+  public static class Query {
+
+    private int fetchSize = 500;
+    private ArrayList<Integer> chunkSize = new ArrayList<>(Arrays.asList(1, 10, 50, 100, 500, 1000));
+    private int statementCacheSize = 50;
+    private int streamChunkSize = 1000;
+    private boolean typedJson = false;
+
+    /**
+     * Number of rows the driver fetches per round trip.
+     *
+     * @return the fetch size
+     */
+    public int getFetchSize() {
+      return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+      this.fetchSize = fetchSize;
+    }
+
+    /**
+     * The fixed number of bind variables a change query may have. Row id sets
+     * are split into chunks of the largest size and the remainder is padded
+     * up to the next size, so only these statement texts are ever parsed.
+     * Oracle does not allow more than 1000 elements in an IN list.
+     *
+     * @return list of chunk sizes
+     */
+    public ArrayList<Integer> getChunkSize() {
+      return chunkSize;
+    }
+
+    public void setChunkSize(ArrayList<Integer> chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Number of prepared statements the driver keeps cached per connection.
+     *
+     * @return the statement cache size
+     */
+    public int getStatementCacheSize() {
+      return statementCacheSize;
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+      this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Maximum number of rows per message when all changed rows of a table are
+     * streamed, because Oracle notified a change of all rows (ALL_ROWS).
+     *
+     * @return the number of rows per chunk
+     */
+    public int getStreamChunkSize() {
+      return streamChunkSize;
+    }
+
+    public void setStreamChunkSize(int streamChunkSize) {
+      this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * If numbers and timestamps are written as json numbers. Timestamps are
+     * read in UTC and written as milliseconds since the epoch. If false, all
+     * values are written as strings, as the driver formats them.
+     *
+     * @return true for typed json values
+     */
+    public boolean isTypedJson() {
+      return typedJson;
+    }
+
+    public void setTypedJson(boolean typedJson) {
+      this.typedJson = typedJson;
+    }
+
+  }
+
+  private Pool pool = new Pool();
+
+  public Pool getPool() {
+    return pool;
+  }
+
+  public void setPool(Pool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Configures the connection pool used to query changed rows. Each source
+   * has a pool of its own, sized by these settings unless the source sets its
+   * own. The connection holding the change registration is not part of the
+   * pool. Pool metrics
+   * (usage, pending threads, wait time for a connection) are published as
+   * hikaricp.* metrics of the actuator.
+   */
+  public static class Pool {
+
+    private int maxSize = 4;
+    private int minIdle = 1;
+    private long connectionTimeout = 5000;
+    private long validationTimeout = 1000;
+    private String validationQuery;
+
+    /**
+     * Maximum number of connections, i.e. number of row queries that may run
+     * concurrently.
+     *
+     * @return the maximum pool size
+     */
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public int getMinIdle() {
+      return minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+      this.minIdle = minIdle;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for a free connection.
+     *
+     * @return the connection timeout
+     */
+    public long getConnectionTimeout() {
+      return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(long connectionTimeout) {
+      this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Maximum time in milliseconds a connection is tested for being alive.
+     *
+     * @return the validation timeout
+     */
+    public long getValidationTimeout() {
+      return validationTimeout;
+    }
+
+    public void setValidationTimeout(long validationTimeout) {
+      this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * Query to validate connections with. If not set, the JDBC4 isValid check
+     * of the driver is used.
+     *
+     * @return the validation query or null
+     */
+    public String getValidationQuery() {
+      return validationQuery;
+    }
+
+    public void setValidationQuery(String validationQuery) {
+      this.validationQuery = validationQuery;
+    }
+
+  }
+
+  private Pipeline pipeline = new Pipeline();
+
+  public Pipeline getPipeline() {
+    return pipeline;
+  }
+
+  public void setPipeline(Pipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Configures the stages of the pipeline handling the change events.
+   */
+  public static class Pipeline {
+
+    private Stage intake = new Stage(1, 100);
+    private Stage fetch = new Stage(4, 1000);
+    private Stage serialize = new Stage(2, 1000);
+    private Stage fanout = new Stage(2, 1000);
+    private Coalesce coalesce = new Coalesce();
+    private long intakeTimeout = 1000;
+    private long shutdownTimeout = 5000;
+
+    /**
+     * Stage collecting the row changes of each event received from the
+     * database. Each notification shard has its own intake and fetch stage,
+     * so the workers and queue capacity apply per shard.
+     *
+     * @return the stage configuration
+     */
+    public Stage getIntake() {
+      return intake;
+    }
+
+    public void setIntake(Stage intake) {
+      this.intake = intake;
+    }
+
+    /**
+     * Stage querying the changed rows, one per notification shard. There is no
+     * use in more workers of all shards of a source than connections in its
+     * query pool.
+     *
+     * @return the stage configuration
+     */
+    public Stage getFetch() {
+      return fetch;
+    }
+
+    public void setFetch(Stage fetch) {
+      this.fetch = fetch;
+    }
+
+    /**
+     * Stage building the messages.
+     *
+     * @return the stage configuration
+     */
+    public Stage getSerialize() {
+      return serialize;
+    }
+
+    public void setSerialize(Stage serialize) {
+      this.serialize = serialize;
+    }
+
+    /**
+     * Stage handing the messages to the subscribers and push targets.
+     *
+     * @return the stage configuration
+     */
+    public Stage getFanout() {
+      return fanout;
+    }
+
+    public void setFanout(Stage fanout) {
+      this.fanout = fanout;
+    }
+
+    /**
+     * Merging of changes on the same table before the rows are fetched.
+     *
+     * @return the coalescing configuration
+     */
+    public Coalesce getCoalesce() {
+      return coalesce;
+    }
+
+    public void setCoalesce(Coalesce coalesce) {
+      this.coalesce = coalesce;
+    }
+
+    /**
+     * Maximum time the notification thread waits for room in a full intake
+     * queue, in milliseconds. The event is dropped after that, so a stalled
+     * pipeline does not block the notifications of the database.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getIntakeTimeout() {
+      return intakeTimeout;
+    }
+
+    public void setIntakeTimeout(long intakeTimeout) {
+      this.intakeTimeout = intakeTimeout;
+    }
+
+    /**
+     * Maximum time each stage waits for its queue to drain on shutdown, in
+     * milliseconds. The items still waiting after that are dropped.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getShutdownTimeout() {
+      return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+      this.shutdownTimeout = shutdownTimeout;
+    }
+
+  }
+
+  /**
+   * Configures the window in which changes on the same table are merged.
+   */
+  public static class Coalesce {
+
+    private boolean enabled;
+    private long window = 100;
+    private int maxBatch = 1000;
+    private HashMap<String, Long> tableWindow = new HashMap<>();
+
+    /**
+     * Indicates if changes are merged. Otherwise each event is fetched and
+     * sent on its own.
+     *
+     * @return if is enabled
+     */
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * Time in milliseconds changes on a table are collected, starting with
+     * the first change.
+     *
+     * @return the window size
+     */
+    public long getWindow() {
+      return window;
+    }
+
+    public void setWindow(long window) {
+      this.window = window;
+    }
+
+    /**
+     * Number of changed rows on a table after which the merged changes are
+     * flushed, even if the window has not ended yet.
+     *
+     * @return the maximum batch size
+     */
+    public int getMaxBatch() {
+      return maxBatch;
+    }
+
+    public void setMaxBatch(int maxBatch) {
+      this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Window sizes in milliseconds for single tables, overriding the default
+     * window. Keys are table names as notified by Oracle, e.g. ADMIN.AIRCRAFT.
+     *
+     * @return map of table name to window size
+     */
+    public HashMap<String, Long> getTableWindow() {
+      return tableWindow;
+    }
+
+    public void setTableWindow(HashMap<String, Long> tableWindow) {
+      this.tableWindow = tableWindow;
+    }
+
+    /**
+     * Get the window size for a table.
+     *
+     * @param tableName the table name as notified by Oracle
+     * @return the window size in milliseconds
+     */
+    public long getWindowFor(String tableName) {
+      Long ret = tableWindow.get(tableName);
+      return (ret == null) ? window : ret;
+    }
+
+  }
+
+  /**
+   * Configures a single stage of the pipeline.
+   */
+  public static class Stage {
+
+    private int workers;
+    private int queueCapacity;
+
+    public Stage() {
+      this(1, 100);
+    }
+
+    public Stage(int workers, int queueCapacity) {
+      this.workers = workers;
+      this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Number of threads working on the stage.
+     *
+     * @return number of workers
+     */
+    public int getWorkers() {
+      return workers;
+    }
+
+    public void setWorkers(int workers) {
+      this.workers = workers;
+    }
+
+    /**
+     * Maximum number of items waiting for a worker of the stage. If the queue
+     * is full, the previous stage waits.
+     *
+     * @return the capacity of the queue
+     */
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+    }
+
+  }
+
+  private Delivery delivery = new Delivery();
+
+  public Delivery getDelivery() {
+    return delivery;
+  }
+
+  public void setDelivery(Delivery delivery) {
+    this.delivery = delivery;
+  }
+
+  /**
+   * Configures how messages are sent to subscribers and push targets.
+   */
+  public static class Delivery {
+
+    private BodyType bodyType = BodyType.MULTIPART;
+    private int maxConnections = 100;
+    private int queueCapacity = 1000;
+    private int concurrency = 4;
+    private long timeout = 5000;
+    private int maxRetries = 3;
+    private long initialBackoff = 200;
+    private long maxBackoff = 10000;
+    private DeliveryQueue.OverflowPolicy overflowPolicy = DeliveryQueue.OverflowPolicy.DROP_OLDEST;
+    private String compression = "none";
+    private int compressionThreshold = 64 * 1024;
+    private long compressionCacheBytes = 16 * 1024 * 1024;
+
+    /**
+     * The format of the request body: form field "message" of a multipart
+     * body or plain json.
+     *
+     * @return the body type
+     */
+    public BodyType getBodyType() {
+      return bodyType;
+    }
+
+    public void setBodyType(BodyType bodyType) {
+      this.bodyType = bodyType;
+    }
+
+    /**
+     * Maximum number of keep-alive connections per endpoint.
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Maximum number of messages waiting per endpoint, at least 1.
+     *
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      if (queueCapacity < 1) {
+        throw new RuntimeException("The delivery queue capacity must be at least 1.");
+      }
+      this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Maximum number of concurrent requests per endpoint.
+     *
+     * @return the concurrency
+     */
+    public int getConcurrency() {
+      return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+    }
+
+    /**
+     * Timeout of a request in milliseconds, for push targets and for
+     * subscriptions without a timeout of their own.
+     *
+     * @return the default timeout
+     */
+    public long getTimeout() {
+      return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+      this.timeout = timeout;
+    }
+
+    /**
+     * Number of retries of a failed request before the message is given up.
+     *
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries() {
+      return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Delay in milliseconds before the first retry. Doubles with every
+     * further retry.
+     *
+     * @return the initial backoff
+     */
+    public long getInitialBackoff() {
+      return initialBackoff;
+    }
+
+    public void setInitialBackoff(long initialBackoff) {
+      this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Maximum delay in milliseconds between retries.
+     *
+     * @return the maximum backoff
+     */
+    public long getMaxBackoff() {
+      return maxBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+      this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Which message to drop if the queue of an endpoint is full. With the
+     * journal enabled, nothing is dropped: a full queue reads the following
+     * messages from the journal later.
+     *
+     * @return the overflow policy
+     */
+    public DeliveryQueue.OverflowPolicy getOverflowPolicy() {
+      return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(DeliveryQueue.OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Content encoding to compress large json and binary bodies with, e.g.
+     * gzip, or none. Multipart bodies are not compressed.
+     *
+     * @return the content encoding
+     */
+    public String getCompression() {
+      return compression;
+    }
+
+    public void setCompression(String compression) {
+      this.compression = compression;
+    }
+
+    /**
+     * Size in bytes from which bodies are compressed.
+     *
+     * @return the compression threshold
+     */
+    public int getCompressionThreshold() {
+      return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+      this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Maximum size in bytes of the compressed bodies kept for the recipients
+     * still to send them to. A body dropped from the cache is compressed
+     * again for a recipient that falls behind.
+     *
+     * @return the number of bytes
+     */
+    public long getCompressionCacheBytes() {
+      return compressionCacheBytes;
+    }
+
+    public void setCompressionCacheBytes(long compressionCacheBytes) {
+      this.compressionCacheBytes = compressionCacheBytes;
+    }
+
+  }
+
+  private Stream stream = new Stream();
+
+  public Stream getStream() {
+    return stream;
+  }
+
+  public void setStream(Stream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Configures the streams of server-sent events to subscribers.
+   */
+  public static class Stream {
+
+    private int bufferSize = 1000;
+    private long heartbeat = 15000;
+
+    /**
+     * Maximum number of messages buffered per stream, if the client does not
+     * keep up. The oldest messages are dropped first.
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+      return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Interval in milliseconds of keep-alive events on idle streams.
+     *
+     * @return the heartbeat interval
+     */
+    public long getHeartbeat() {
+      return heartbeat;
+    }
+
+    public void setHeartbeat(long heartbeat) {
+      this.heartbeat = heartbeat;
+    }
+
+  }
+
+  private Replay replay = new Replay();
+
+  public Replay getReplay() {
+    return replay;
+  }
+
+  public void setReplay(Replay replay) {
+    this.replay = replay;
+  }
+
+  /**
+   * Configures the buffer of the last messages, which subscribers can fetch
+   * again by sequence number.
+   */
+  public static class Replay {
+
+    private int maxMessages = 10000;
+    private long maxBytes = 64 * 1024 * 1024;
+
+    /**
+     * Maximum number of messages kept, 0 to keep none.
+     *
+     * @return the number of messages
+     */
+    public int getMaxMessages() {
+      return maxMessages;
+    }
+
+    public void setMaxMessages(int maxMessages) {
+      this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Maximum size in bytes of the messages kept. The oldest messages are
+     * dropped first.
+     *
+     * @return the number of bytes
+     */
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
   }
 
   private Push push;
@@ -161,4 +995,324 @@ public class ApplicationConfig {
 
   }
 
+  private Cache cache = new Cache();
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public void setCache(Cache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Configures the cache of the last known row images, used to send only the
+   * changed columns of updated rows and the last values of deleted rows.
+   */
+  public static class Cache {
+
+    private boolean enabled = false;
+    private long maxBytes = 16 * 1024 * 1024;
+    private HashMap<String, Long> tableMaxBytes = new HashMap<>();
+
+    /**
+     * If enabled, updated rows found in the cache are sent with their changed
+     * columns only and deleted rows with their last known values.
+     *
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * Estimated memory in bytes the row images of a table may take. The
+     * least recently used rows are evicted first.
+     *
+     * @return the memory budget per table
+     */
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Memory budgets in bytes for single tables, overriding the default
+     * budget. 0 to not cache the rows of a table. Keys are table names as
+     * notified by Oracle, e.g. ADMIN.AIRCRAFT.
+     *
+     * @return map of table name to memory budget
+     */
+    public HashMap<String, Long> getTableMaxBytes() {
+      return tableMaxBytes;
+    }
+
+    public void setTableMaxBytes(HashMap<String, Long> tableMaxBytes) {
+      this.tableMaxBytes = tableMaxBytes;
+    }
+
+    /**
+     * Get the memory budget for a table.
+     *
+     * @param tableName the table name as notified by Oracle
+     * @return the memory budget in bytes
+     */
+    public long getMaxBytesFor(String tableName) {
+      Long ret = tableMaxBytes.get(tableName);
+      return (ret == null) ? maxBytes : ret;
+    }
+
+  }
+
+
+  private Warmup warmup = new Warmup();
+
+  public Warmup getWarmup() {
+    return warmup;
+  }
+
+  public void setWarmup(Warmup warmup) {
+    this.warmup = warmup;
+  }
+
+  /**
+   * Configures the preparations at startup, so the first events do not pay
+   * for metadata lookups, statement parsing and connection setup.
+   */
+  public static class Warmup {
+
+    private boolean enabled = true;
+    private long deliveryTimeout = 5000;
+    private ArrayList<String> connectUrl = new ArrayList<>();
+
+    /**
+     * If enabled, the column metadata of the tables is resolved, the change
+     * queries are parsed and connections to the subscribers and push targets
+     * of {@link #getConnectUrl()} are opened at startup.
+     *
+     * @return true if the warm-up is enabled
+     */
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * Time in milliseconds to wait for the connections to the subscribers
+     * and push targets. Endpoints not reachable by then are connected on
+     * their first message.
+     *
+     * @return the timeout
+     */
+    public long getDeliveryTimeout() {
+      return deliveryTimeout;
+    }
+
+    public void setDeliveryTimeout(long deliveryTimeout) {
+      this.deliveryTimeout = deliveryTimeout;
+    }
+
+    /**
+     * URL prefixes of the subscribers and push targets connected at startup.
+     * They are connected with a HEAD request, so only endpoints known to
+     * accept it should be listed. Empty by default, all other endpoints are
+     * connected on their first message.
+     *
+     * @return the URL prefixes
+     */
+    public ArrayList<String> getConnectUrl() {
+      return connectUrl;
+    }
+
+    public void setConnectUrl(ArrayList<String> connectUrl) {
+      this.connectUrl = connectUrl;
+    }
+
+    /**
+     *
+     * @param url the URL of an endpoint
+     * @return true if the endpoint is connected at startup
+     */
+    public boolean isConnected(String url) {
+      for (String prefix : connectUrl) {
+        if (url.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+
+  private Journal journal = new Journal();
+
+  public Journal getJournal() {
+    return journal;
+  }
+
+  public void setJournal(Journal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Configures the journal of the messages on disk, from which messages not
+   * acknowledged by an endpoint are sent again after a restart. Messages are
+   * journaled when they leave the pipeline; the changes still in the
+   * pipeline are lost on a crash.
+   */
+  public static class Journal {
+
+    private boolean enabled = false;
+    private String directory = "journal";
+    private int segmentSize = 64 * 1024 * 1024;
+    private long flushInterval = 10;
+    private long retention = 24 * 60 * 60 * 1000L;
+
+    /**
+     * If enabled, each message is appended to the journal before it is sent,
+     * and the endpoints get the messages they did not acknowledge again
+     * after a restart.
+     *
+     * @return true if the journal is enabled
+     */
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * The directory of the journal files.
+     *
+     * @return the directory
+     */
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * Size of a journal file in bytes. A new file is started when a message
+     * does not fit into the current one.
+     *
+     * @return the segment size
+     */
+    public int getSegmentSize() {
+      return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+      this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Time in milliseconds between the syncs of the journal to disk. All
+     * messages appended in between are synced at once.
+     *
+     * @return the flush interval
+     */
+    public long getFlushInterval() {
+      return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+      this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Time in milliseconds a journal file is kept at most. Files are deleted
+     * earlier when all endpoints acknowledged their messages. Messages not
+     * acknowledged by then are lost and counted as ons.journal.expired.
+     *
+     * @return the retention time
+     */
+    public long getRetention() {
+      return retention;
+    }
+
+    public void setRetention(long retention) {
+      this.retention = retention;
+    }
+
+  }
+
+  private Store store = new Store();
+
+  public Store getStore() {
+    return store;
+  }
+
+  public void setStore(Store store) {
+    this.store = store;
+  }
+
+  /**
+   * Configures the files the subscriptions are kept in, so they survive a
+   * restart.
+   */
+  public static class Store {
+
+    private boolean enabled = false;
+    private String directory = "subscriptions";
+    private int compactAfter = 10000;
+
+    /**
+     * If enabled, the subscriptions are loaded at startup and each change is
+     * written to the store.
+     *
+     * @return true if the store is enabled
+     */
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    /**
+     * The directory of the store files.
+     *
+     * @return the directory
+     */
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * Number of logged changes after which a new snapshot is written, at
+     * least the number of subscriptions.
+     *
+     * @return the number of changes
+     */
+    public int getCompactAfter() {
+      return compactAfter;
+    }
+
+    public void setCompactAfter(int compactAfter) {
+      this.compactAfter = compactAfter;
+    }
+
+  }
+
 }
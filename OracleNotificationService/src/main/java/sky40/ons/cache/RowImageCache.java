@@ -0,0 +1,377 @@
+package sky40.ons.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.ChangedRowSet;
+import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.subscription.repo.SubscriptionChangeListener;
+import sky40.ons.subscription.repo.SubscriptionRepository;
+
+/**
+ * Keeps the last known values of rows by table and row id, to find the
+ * columns changed by an update and the values of a deleted row. Each table
+ * has its own least recently used map, limited by an estimate of the memory
+ * its row images take.
+ *
+ * An updated row is compared with the image seen last. With more than one
+ * fetch worker, that may not be the image of the previous change.
+ *
+ * Rows sent with their changed columns only are of use to subscribers that
+ * got the previous image. Whenever a subscriber may lack images, because it
+ * was just added or its stream was (re)opened or dropped messages, all images
+ * are dropped and a new generation of images begins, so each row is sent in
+ * full with its next change. Messages with changed columns of an older
+ * generation are not sent to that subscriber, see
+ * {@link #holdsImages(Subscription, long)}. The images of a table are kept for
+ * one set of queried columns, a different set drops them as well.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Component
+@Slf4j
+public class RowImageCache implements SubscriptionChangeListener {
+
+  private static final String UPDATE = "UPDATE";
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private SubscriptionRepository repository;
+
+  /**
+   * Row images by table name, qualified by the source name.
+   */
+  private final ConcurrentHashMap<String, TableImages> tables = new ConcurrentHashMap<>();
+
+  /**
+   * Held to read and update the images, and exclusively to drop them all and
+   * begin a new generation.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Generation of the current images.
+   */
+  private volatile long generation;
+
+  /**
+   * The generation the subscriptions joined in, by subscription id.
+   * Subscriptions not found joined before any image was kept.
+   */
+  private final ConcurrentHashMap<Long, Long> joined = new ConcurrentHashMap<>();
+
+  private Counter hits;
+  private Counter misses;
+  private Counter resets;
+
+  @PostConstruct
+  public void init() {
+    hits = meterRegistry.counter("ons.cache.hits");
+    misses = meterRegistry.counter("ons.cache.misses");
+    resets = meterRegistry.counter("ons.cache.resets");
+    meterRegistry.gauge("ons.cache.bytes", this, RowImageCache::countBytes);
+    meterRegistry.gauge("ons.cache.rows", this, RowImageCache::countRows);
+    repository.addListener(this);
+  }
+
+  /**
+   *
+   * @return true if row images are cached
+   */
+  public boolean isEnabled() {
+    return config.getCache().isEnabled();
+  }
+
+  /**
+   * Keep the values of the rows and find the columns changed by updates.
+   * Rows only updated are compared with their cached image, if there is one
+   * with the same columns.
+   *
+   * @param source name of the database of the table
+   * @param tableName name of the table of the rows
+   * @param rows the queried rows
+   * @return the rows, with the updated rows found in the cache reduced to
+   * their changed columns
+   */
+  public ChangedRowSet update(String source, String tableName, ChangedRowSet rows) {
+    HashMap<String, boolean[]> changedColumns = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      TableImages images = getImages(source, tableName);
+      if (images == null) {
+        return rows;
+      }
+      synchronized (images) {
+        if (rows.rowSize() > 0 && images.useColumns(rows.getColumnNames())) {
+          resets.increment();
+        }
+        for (int row = 0; row < rows.rowSize(); row++) {
+          if (!rows.hasValues(row)) {
+            continue;
+          }
+          RowImage image = new RowImage(rows.getRowId(row), rows.getRowValues(row));
+          RowImage previous = images.put(image);
+
+          Set<String> ops = rows.getOperations(row);
+          if (ops != null && ops.size() == 1 && ops.contains(UPDATE)) {
+            if (previous != null && image.values.hasSameColumns(previous.values)) {
+              hits.increment();
+              changedColumns.put(rows.getRowId(row), image.values.findChangedColumns(previous.values));
+            } else {
+              misses.increment();
+            }
+          }
+        }
+      }
+      return changedColumns.isEmpty() ? rows : rows.withChangedColumns(changedColumns, generation);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove the images of deleted rows.
+   *
+   * @param source name of the database of the table
+   * @param tableName name of the table of the rows
+   * @param rowIds the row ids of the deleted rows
+   * @return the last known images by row id, for the rows found in the cache
+   */
+  public HashMap<String, RowImage> remove(String source, String tableName, Set<String> rowIds) {
+    HashMap<String, RowImage> ret = new HashMap<>();
+    lock.readLock().lock();
+    try {
+      TableImages images = getImages(source, tableName);
+      if (images == null) {
+        return ret;
+      }
+      synchronized (images) {
+        for (String rowId : rowIds) {
+          RowImage image = images.remove(rowId);
+          if (image != null) {
+            ret.put(rowId, image);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    hits.increment(ret.size());
+    misses.increment(rowIds.size() - ret.size());
+    return ret;
+  }
+
+  /**
+   * Let a subscriber join, that may lack the images of the rows: drop all
+   * images and begin a new generation. Messages with changed columns found
+   * by then are not sent to the subscriber.
+   *
+   * @param sub the subscription
+   */
+  public void join(Subscription sub) {
+    lock.writeLock().lock();
+    try {
+      generation++;
+      joined.put(sub.getId(), generation);
+      tables.clear();
+      resets.increment();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Check if a subscriber got the images that the changed columns of a
+   * message were found with.
+   *
+   * @param sub the subscription
+   * @param imageGeneration the generation of the images of the message, -1
+   * if all its rows are complete
+   * @return true if the message can be sent to the subscriber
+   */
+  public boolean holdsImages(Subscription sub, long imageGeneration) {
+    if (imageGeneration < 0) {
+      return true;
+    }
+    Long joinedIn = joined.get(sub.getId());
+    return joinedIn == null || joinedIn <= imageGeneration;
+  }
+
+  /**
+   * A new subscription has no images, even if it takes over the name or
+   * columns of a deleted one.
+   *
+   * @param sub the subscription
+   */
+  @Override
+  public void added(Subscription sub) {
+    if (isEnabled()) {
+      join(sub);
+    }
+  }
+
+  @Override
+  public void deleted(Subscription sub) {
+    joined.remove(sub.getId());
+  }
+
+  /**
+   * Get the images of a table.
+   *
+   * @param source name of the database of the table
+   * @param tableName name of the table
+   * @return the images, null if the rows of the table are not cached
+   */
+  private TableImages getImages(String source, String tableName) {
+    long maxBytes = config.getCache().getMaxBytesFor(tableName);
+    if (maxBytes <= 0) {
+      return null;
+    }
+    return tables.computeIfAbsent(source + ":" + tableName, key -> new TableImages(maxBytes,
+            meterRegistry.counter("ons.cache.evictions", "source", source, "table", tableName)));
+  }
+
+  private double countBytes() {
+    long ret = 0;
+    for (TableImages images : tables.values()) {
+      ret += images.getBytes();
+    }
+    return ret;
+  }
+
+  private double countRows() {
+    long ret = 0;
+    for (TableImages images : tables.values()) {
+      ret += images.getRows();
+    }
+    return ret;
+  }
+
+  /**
+   * The values of a row at the time it was queried.
+   *
+   * Immutable type.
+   */
+  public static class RowImage {
+
+    final String rowId;
+    final ChangedRowSet.RowValues values;
+
+    /**
+     * Estimated memory the image takes, in bytes.
+     */
+    final long bytes;
+
+    RowImage(String rowId, ChangedRowSet.RowValues values) {
+      this.rowId = rowId;
+      this.values = values;
+      this.bytes = 32 + 40 + 2L * rowId.length() + values.estimateBytes();
+    }
+
+    public ChangedRowSet.RowValues getValues() {
+      return values;
+    }
+  }
+
+  /**
+   * Least recently used row images of a table. Not thread safe.
+   */
+  static class TableImages {
+
+    private final long maxBytes;
+    private final Counter evictions;
+    private final LinkedHashMap<String, RowImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long bytes;
+
+    /**
+     * The columns of the images.
+     */
+    private List<String> columns;
+
+    TableImages(long maxBytes, Counter evictions) {
+      this.maxBytes = maxBytes;
+      this.evictions = evictions;
+    }
+
+    /**
+     * Set the columns of the next images. The images of other columns are
+     * dropped, so the changed columns are never found over a part of them.
+     *
+     * @param columnNames the queried columns
+     * @return true if images of other columns were dropped
+     */
+    boolean useColumns(List<String> columnNames) {
+      if (columnNames.equals(columns)) {
+        return false;
+      }
+      boolean ret = !images.isEmpty();
+      images.clear();
+      bytes = 0;
+      columns = columnNames;
+      return ret;
+    }
+
+    /**
+     * Put an image, evicting the least recently used ones if the memory
+     * budget is exceeded.
+     *
+     * @param image the new image
+     * @return the previous image of the row, null if there was none
+     */
+    RowImage put(RowImage image) {
+      RowImage previous = images.put(image.rowId, image);
+      long size = bytes + image.bytes - ((previous == null) ? 0 : previous.bytes);
+      Iterator<RowImage> it = images.values().iterator();
+      while (size > maxBytes && it.hasNext()) {
+        RowImage eldest = it.next();
+        if (eldest != image) {
+          it.remove();
+          size -= eldest.bytes;
+          evictions.increment();
+        }
+      }
+      bytes = size;
+      return previous;
+    }
+
+    /**
+     * Remove the image of a row.
+     *
+     * @param rowId the row id
+     * @return the removed image, null if there was none
+     */
+    RowImage remove(String rowId) {
+      RowImage ret = images.remove(rowId);
+      if (ret != null) {
+        bytes -= ret.bytes;
+      }
+      return ret;
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    int getRows() {
+      return images.size();
+    }
+  }
+
+}
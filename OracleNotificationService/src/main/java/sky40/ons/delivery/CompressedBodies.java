@@ -0,0 +1,117 @@
+package sky40.ons.delivery;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+
+/**
+ * Keeps the compressed bodies of the messages being delivered, so a body is
+ * usually compressed once for all recipients. The cache is bounded by bytes;
+ * the least recently used bodies are dropped first and compressed again if a
+ * slow recipient still needs them.
+ *
+ * Thread safe. Bodies are compressed outside of the lock, so two recipients
+ * asking at the same time may both compress.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class CompressedBodies {
+
+  private final MessageCodec codec;
+  private final long maxBytes;
+
+  /**
+   * Compressed bodies in order of their last use.
+   */
+  private final LinkedHashMap<Key, byte[]> bodies = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  /**
+   * Creates the cache.
+   *
+   * @param codec the codec to compress with
+   * @param maxBytes maximum size in bytes of the compressed bodies kept
+   */
+  public CompressedBodies(MessageCodec codec, long maxBytes) {
+    this.codec = codec;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *
+   * @return the value of the Content-Encoding header of the bodies
+   */
+  public String getEncoding() {
+    return codec.getEncoding();
+  }
+
+  /**
+   * Get the compressed request body of a message.
+   *
+   * @param message the message
+   * @param type the body type
+   * @return the compressed body, not to be modified
+   */
+  public byte[] get(ChangeMessage message, BodyType type) {
+    Key key = new Key(message, type);
+    synchronized (this) {
+      byte[] ret = bodies.get(key);
+      if (ret != null) {
+        return ret;
+      }
+    }
+    byte[] ret = codec.encode(message.getBody(type));
+    synchronized (this) {
+      byte[] previous = bodies.put(key, ret);
+      if (previous != null) {
+        bytes -= previous.length;
+      }
+      bytes += ret.length;
+      Iterator<Map.Entry<Key, byte[]>> eldest = bodies.entrySet().iterator();
+      while (bytes > maxBytes && bodies.size() > 1) {
+        bytes -= eldest.next().getValue().length;
+        eldest.remove();
+      }
+    }
+    return ret;
+  }
+
+  /**
+   *
+   * @return size in bytes of the compressed bodies kept
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * A message and body type, compared by the identity of the message.
+   */
+  private static class Key {
+
+    private final ChangeMessage message;
+    private final BodyType type;
+
+    Key(ChangeMessage message, BodyType type) {
+      this.message = message;
+      this.type = type;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(message) * 31 + type.ordinal();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return message == other.message && type == other.type;
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package sky40.ons.delivery;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Counters of the message delivery over all endpoints.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class DeliveryMetrics {
+
+  private final Counter sent;
+  private final Counter failed;
+  private final Counter retried;
+  private final Counter dropped;
+  private final Counter rewound;
+
+  public DeliveryMetrics(MeterRegistry meterRegistry) {
+    this.sent = meterRegistry.counter("ons.delivery.sent");
+    this.failed = meterRegistry.counter("ons.delivery.failed");
+    this.retried = meterRegistry.counter("ons.delivery.retried");
+    this.dropped = meterRegistry.counter("ons.delivery.dropped");
+    this.rewound = meterRegistry.counter("ons.delivery.rewound");
+  }
+
+  void sent() {
+    sent.increment();
+  }
+
+  void failed() {
+    failed.increment();
+  }
+
+  void retried() {
+    retried.increment();
+  }
+
+  void dropped() {
+    dropped.increment();
+  }
+
+  void rewound() {
+    rewound.increment();
+  }
+
+}
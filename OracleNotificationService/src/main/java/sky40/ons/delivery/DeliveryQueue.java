@@ -0,0 +1,545 @@
+package sky40.ons.delivery;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.journal.Journal;
+import sky40.ons.journal.JournalCursor;
+import sky40.ons.subscription.domain.BatchPolicy;
+
+/**
+ * Delivers the messages to a single endpoint (a subscriber or a push target).
+ * Messages wait in a bounded queue and are sent with a limited number of
+ * concurrent requests. Failed requests are retried with exponential backoff,
+ * while keeping their slot, so a slow or dead endpoint fills its own queue
+ * only and never delays the other endpoints. When the queue is full, the
+ * overflow policy decides which message is dropped.
+ *
+ * If the endpoint wants batches, messages are collected first and the batch
+ * is queued as a single json array message, when the {@link BatchPolicy} says
+ * so.
+ *
+ * If the journal is enabled, the queue never drops a message. It takes the
+ * new messages as they are appended while it has room; when it is full, it
+ * falls behind and reads the following messages from the journal as the
+ * requests complete, until it caught up with the end. The
+ * {@link JournalCursor} of the endpoint is advanced as the messages are
+ * delivered. A message that failed all retries stops the cursor; the queue
+ * pauses for the max. backoff and then reads the messages from the cursor on
+ * again, until they are delivered.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+public class DeliveryQueue {
+
+  /**
+   * What to do with a new message if the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the oldest waiting message to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST
+  }
+
+  private static final long[] NO_OFFSETS = new long[0];
+
+  private final String url;
+  private final WebClient webClient;
+  private final long timeout;
+  private final ApplicationConfig.Delivery config;
+  private final BodyType bodyType;
+  private final CompressedBodies compressedBodies;
+  private final BatchPolicy batchPolicy;
+  private final DeliveryMetrics metrics;
+  private final JournalCursor cursor;
+
+  private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+  private int inFlight;
+  private boolean closed;
+
+  /**
+   * The journal the messages are read from, null until the queue is
+   * replayed, or if the journal is disabled.
+   */
+  private Journal journal;
+
+  /**
+   * Gives the message of a journal entry for the endpoint, null if it is not
+   * meant for it.
+   */
+  private Function<ChangeMessage, ChangeMessage> route;
+
+  /**
+   * End offset of the last journal message taken into the queue or passed
+   * over.
+   */
+  private long position;
+
+  /**
+   * True while new messages are taken as they are appended, false while the
+   * queue reads behind the end of the journal.
+   */
+  private boolean following;
+
+  /**
+   * True while the queue pauses after a failed message.
+   */
+  private boolean rewinding;
+
+  private ArrayList<ChangeMessage> batch = new ArrayList<>();
+  private ArrayList<Long> batchOffsets = new ArrayList<>();
+  private int batchBytes;
+  private long batchNumber;
+
+  /**
+   * Creates a delivery queue.
+   *
+   * @param url the endpoint url
+   * @param webClient client for the endpoint
+   * @param timeout timeout of a request in milliseconds
+   * @param config queue, concurrency and retry configuration
+   * @param bodyType the format to send the messages in
+   * @param compressedBodies compresses large bodies, null for no compression
+   * @param batchPolicy when to send messages as a batch
+   * @param metrics counters to update
+   * @param cursor journal cursor of the endpoint, null if the journal is
+   * disabled
+   */
+  public DeliveryQueue(String url, WebClient webClient, long timeout, ApplicationConfig.Delivery config, BodyType bodyType, CompressedBodies compressedBodies, BatchPolicy batchPolicy, DeliveryMetrics metrics, JournalCursor cursor) {
+    this.url = url;
+    this.webClient = webClient;
+    this.timeout = timeout;
+    this.config = config;
+    this.bodyType = bodyType;
+    // multipart bodies are parsed by the servlet container before any filter
+    // could decompress them
+    this.compressedBodies = (bodyType == BodyType.MULTIPART) ? null : compressedBodies;
+    this.batchPolicy = batchPolicy;
+    this.metrics = metrics;
+    this.cursor = cursor;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   *
+   * @return journal cursor of the endpoint, null if the journal is disabled
+   */
+  public JournalCursor getCursor() {
+    return cursor;
+  }
+
+  /**
+   *
+   * @return number of messages waiting to be sent
+   */
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  /**
+   * Add a message to the queue and send it as soon as a request slot is
+   * free. In batch mode, the message is added to the current batch instead.
+   *
+   * @param message the message to deliver
+   */
+  public void offer(ChangeMessage message) {
+    offer(message, -1);
+  }
+
+  /**
+   * Add a message from the journal to the queue. If the queue is full, it
+   * is read from the journal later.
+   *
+   * @param message the message to deliver
+   * @param offset end offset of the message in the journal, -1 if it is not
+   * in the journal
+   */
+  public void offer(ChangeMessage message, long offset) {
+    synchronized (this) {
+      if (journal != null && offset >= 0) {
+        if (!following || offset <= position) {
+          // read from the journal later, or read already
+          return;
+        }
+        if (queue.size() >= config.getQueueCapacity()) {
+          following = false;
+          cursor.readUpTo(position);
+          log.info("Delivery queue of " + url + " is full, reading the next messages from the journal.");
+          return;
+        }
+        position = offset;
+      }
+    }
+    add(message, offset);
+  }
+
+  /**
+   * Deliver the messages from the journal, which the endpoint did not
+   * acknowledge yet. Afterwards, the queue takes the new messages as they are
+   * appended, until it is full.
+   *
+   * @param journal the journal
+   * @param route gives the message of a journal entry for the endpoint, null
+   * if it is not meant for it
+   */
+  public void replay(Journal journal, Function<ChangeMessage, ChangeMessage> route) {
+    synchronized (this) {
+      cursor.reset();
+      this.journal = journal;
+      this.route = route;
+      position = cursor.getAcknowledged();
+      following = false;
+    }
+    fill();
+  }
+
+  /**
+   * Read the messages behind the queue from the journal while there is room
+   * for them. Reading up to the end switches back to taking the new messages
+   * as they are appended.
+   */
+  private void fill() {
+    long from;
+    synchronized (this) {
+      if (closed || following || rewinding || journal == null) {
+        return;
+      }
+      from = position;
+    }
+    int count = journal.read(from, this::take, this::follow);
+    log.debug("Read " + count + " message(s) from the journal for " + url + ".");
+  }
+
+  /**
+   * Take a message read from the journal.
+   *
+   * @param entry the message with its end offset
+   * @return false if there is no room for it
+   */
+  private boolean take(Journal.Entry entry) {
+    long offset = entry.getOffset();
+    synchronized (this) {
+      if (closed || following || rewinding || queue.size() >= config.getQueueCapacity()) {
+        return false;
+      }
+      if (offset <= position) {
+        // read by a concurrent fill
+        return true;
+      }
+      position = offset;
+    }
+    ChangeMessage message = route.apply(entry.getMessage());
+    if (message != null) {
+      add(message, offset);
+    }
+    cursor.readUpTo(offset);
+    return true;
+  }
+
+  private void follow() {
+    synchronized (this) {
+      if (closed || following || rewinding) {
+        return;
+      }
+      following = true;
+    }
+    cursor.follow();
+    log.info("Delivery queue of " + url + " caught up with the journal.");
+  }
+
+  /**
+   * Add a message to the queue, or to the current batch.
+   *
+   * @param message the message to deliver
+   * @param offset end offset of the message in the journal, -1 if it is not
+   * in the journal
+   */
+  private void add(ChangeMessage message, long offset) {
+    if (cursor != null && offset >= 0) {
+      cursor.track(offset);
+    }
+    if (batchPolicy.isEnabled()) {
+      Delivery full = addToBatch(message, offset);
+      if (full != null) {
+        enqueue(full);
+      }
+    } else {
+      enqueue(new Delivery(message, (offset >= 0) ? new long[]{offset} : NO_OFFSETS));
+    }
+  }
+
+  /**
+   * Add a message to the current batch. The first message of a batch starts
+   * the timer to send it.
+   *
+   * @param message the message to add
+   * @param offset end offset of the message in the journal, -1 if none
+   * @return the batch as a single message if it is full, or else null
+   */
+  private synchronized Delivery addToBatch(ChangeMessage message, long offset) {
+    if (closed) {
+      return null;
+    }
+    batch.add(message);
+    if (offset >= 0) {
+      batchOffsets.add(offset);
+    }
+    batchBytes += message.size();
+    if (batch.size() == 1) {
+      long number = batchNumber;
+      Mono.delay(Duration.ofMillis(batchPolicy.getMaxDelay())).subscribe(tick -> flushBatch(number));
+    }
+    if (batchPolicy.isFull(batch.size(), batchBytes)) {
+      return takeBatch();
+    }
+    return null;
+  }
+
+  /**
+   * Queue the batch when its delay is over, unless it was sent already.
+   *
+   * @param number number of the batch the timer was started for
+   */
+  private void flushBatch(long number) {
+    Delivery full;
+    synchronized (this) {
+      if (number != batchNumber || batch.isEmpty()) {
+        return;
+      }
+      full = takeBatch();
+    }
+    enqueue(full);
+  }
+
+  private Delivery takeBatch() {
+    long[] offsets = new long[batchOffsets.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = batchOffsets.get(i);
+    }
+    Delivery ret = new Delivery(ChangeMessage.combine(batch), offsets);
+    batch = new ArrayList<>();
+    batchOffsets = new ArrayList<>();
+    batchBytes = 0;
+    batchNumber++;
+    return ret;
+  }
+
+  private void enqueue(Delivery delivery) {
+    Delivery dropped = null;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      // a queue fed from the journal stops taking messages when it is full
+      // instead, except for the batch due
+      if (journal == null && queue.size() >= config.getQueueCapacity()) {
+        if (config.getOverflowPolicy() == OverflowPolicy.DROP_NEWEST || queue.isEmpty()) {
+          dropped = delivery;
+        } else {
+          dropped = queue.pollFirst();
+          queue.addLast(delivery);
+        }
+      } else {
+        queue.addLast(delivery);
+      }
+    }
+    if (dropped != null) {
+      // the metrics and the cursor are updated outside of the lock
+      metrics.dropped();
+      log.warn("Delivery queue of " + url + " is full. " + ((dropped == delivery) ? "Message" : "Oldest message") + " dropped.");
+      failed(dropped);
+    }
+    drain();
+  }
+
+  /**
+   * Open a connection to the endpoint with a HEAD request, so it is kept
+   * alive in the pool for the first message. Only for endpoints configured to
+   * accept it, see {@link ApplicationConfig.Warmup#getConnectUrl()}. Errors
+   * are ignored, the endpoint is connected on its first message then.
+   *
+   * @return completes when the connection is open or failed
+   */
+  public Mono<Void> connect() {
+    return webClient.head()
+            .exchange()
+            .flatMap(response -> response.bodyToMono(Void.class))
+            .timeout(Duration.ofMillis(timeout))
+            .onErrorResume(error -> {
+              log.debug("Connecting to " + url + " failed: " + error);
+              return Mono.empty();
+            });
+  }
+
+  /**
+   * Stop delivering. Waiting messages are dropped, running requests finish.
+   */
+  public synchronized void close() {
+    closed = true;
+    queue.clear();
+    batch.clear();
+  }
+
+  /**
+   * Send waiting messages while there are free request slots.
+   */
+  private void drain() {
+    while (true) {
+      Delivery next;
+      synchronized (this) {
+        if (closed || inFlight >= config.getConcurrency() || queue.isEmpty()) {
+          return;
+        }
+        next = queue.pollFirst();
+        inFlight++;
+      }
+      send(next, 0);
+    }
+  }
+
+  private void send(Delivery delivery, int attempt) {
+    log.debug("Sending message to endpoint " + url + " (attempt " + (attempt + 1) + ") ...");
+    ChangeMessage message = delivery.message;
+    byte[] body = message.getBody(bodyType);
+    String encoding = null;
+    if (compressedBodies != null && body.length >= config.getCompressionThreshold()) {
+      body = compressedBodies.get(message, bodyType);
+      encoding = compressedBodies.getEncoding();
+    }
+    WebClient.RequestBodySpec request = webClient.post()
+            .header(HttpHeaders.CONTENT_TYPE, message.getContentType(bodyType));
+    if (encoding != null) {
+      request.header(HttpHeaders.CONTENT_ENCODING, encoding);
+    }
+    request.body(BodyInserters.fromObject(body))
+            .retrieve()
+            .bodyToMono(String.class)
+            .timeout(Duration.ofMillis(timeout))
+            .subscribe(
+                    response -> {
+                    },
+                    error -> onError(delivery, attempt, error),
+                    () -> onSuccess(delivery));
+  }
+
+  private void onSuccess(Delivery delivery) {
+    metrics.sent();
+    if (cursor != null) {
+      for (long offset : delivery.offsets) {
+        cursor.acknowledge(offset);
+      }
+    }
+    release();
+  }
+
+  private void onError(Delivery delivery, int attempt, Throwable error) {
+    boolean isClosed;
+    synchronized (this) {
+      isClosed = closed;
+    }
+    if (attempt < config.getMaxRetries() && !isClosed) {
+      long backoff = Math.min(config.getInitialBackoff() << Math.min(attempt, 30), config.getMaxBackoff());
+      log.info("Sending message to " + url + " failed (" + error + "), retrying in " + backoff + " ms.");
+      metrics.retried();
+      Mono.delay(Duration.ofMillis(backoff)).subscribe(tick -> send(delivery, attempt + 1));
+    } else {
+      log.error("Sending message to " + url + " failed, giving up: " + error);
+      metrics.failed();
+      failed(delivery);
+      release();
+    }
+  }
+
+  /**
+   * Stop the journal cursor in front of a message that was not delivered. A
+   * queue fed from the journal drops the waiting messages and reads them
+   * again from the cursor on after the max. backoff.
+   *
+   * @param delivery the message
+   */
+  private void failed(Delivery delivery) {
+    if (cursor == null || delivery.offsets.length == 0) {
+      return;
+    }
+    for (long offset : delivery.offsets) {
+      cursor.fail(offset);
+    }
+    synchronized (this) {
+      if (closed || rewinding || journal == null) {
+        return;
+      }
+      rewinding = true;
+      following = false;
+      queue.clear();
+      batch = new ArrayList<>();
+      batchOffsets = new ArrayList<>();
+      batchBytes = 0;
+      batchNumber++;
+    }
+    metrics.rewound();
+    log.warn("Delivery to " + url + " paused, sending again from the failed message in " + config.getMaxBackoff() + " ms.");
+    Mono.delay(Duration.ofMillis(config.getMaxBackoff())).subscribe(tick -> rewind());
+  }
+
+  /**
+   * Read the messages from the cursor on again, after a failed message.
+   */
+  private void rewind() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      rewinding = false;
+      cursor.reset();
+      position = cursor.getAcknowledged();
+    }
+    fill();
+  }
+
+  private void release() {
+    boolean refill;
+    synchronized (this) {
+      inFlight--;
+      refill = !following && queue.size() * 2 <= config.getQueueCapacity();
+    }
+    drain();
+    if (refill) {
+      fill();
+    }
+  }
+
+
+  /**
+   * A message waiting to be sent, with the journal offsets of the messages
+   * it contains.
+   */
+  private static class Delivery {
+
+    private final ChangeMessage message;
+    private final long[] offsets;
+
+    Delivery(ChangeMessage message, long[] offsets) {
+      this.message = message;
+      this.offsets = offsets;
+    }
+  }
+
+}
@@ -0,0 +1,33 @@
+package sky40.ons.delivery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses message bodies with gzip.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Component
+public class GzipCodec implements MessageCodec {
+
+  @Override
+  public String getEncoding() {
+    return "gzip";
+  }
+
+  @Override
+  public byte[] encode(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+      gzip.write(body);
+    } catch (IOException ex) {
+      // cannot happen on a byte array stream
+      throw new RuntimeException("Compression failed: " + ex);
+    }
+    return out.toByteArray();
+  }
+
+}
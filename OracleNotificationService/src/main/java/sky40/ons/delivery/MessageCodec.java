@@ -0,0 +1,27 @@
+package sky40.ons.delivery;
+
+/**
+ * Compresses message bodies. Implementations are Spring components, the one
+ * to use is selected by its encoding with ons.delivery.compression.
+ *
+ * Implementations must be thread safe.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public interface MessageCodec {
+
+  /**
+   *
+   * @return the value of the Content-Encoding header, e.g. gzip
+   */
+  String getEncoding();
+
+  /**
+   * Compress a body.
+   *
+   * @param body the body
+   * @return the compressed body
+   */
+  byte[] encode(byte[] body);
+
+}
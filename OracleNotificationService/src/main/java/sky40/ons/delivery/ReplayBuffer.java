@@ -0,0 +1,134 @@
+package sky40.ons.delivery;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.ChangeMessage;
+
+/**
+ * Numbers the messages and keeps the last of them in a ring buffer of fixed
+ * size, so subscribers can fetch the messages they missed, e.g. during a
+ * restart. The oldest messages are dropped when the maximum number of
+ * messages or bytes is exceeded.
+ *
+ * Sequence numbers start at the start time in microseconds, so they keep
+ * increasing over restarts of the service.
+ *
+ * Thread safe.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+@Component
+public class ReplayBuffer {
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private ChangeMessage[] ring;
+  private long maxBytes;
+
+  /**
+   * Index of the oldest message.
+   */
+  private int head;
+  private int count;
+  private long bytes;
+  private long nextSequence;
+
+  @PostConstruct
+  public void init() {
+    ring = new ChangeMessage[Math.max(0, config.getReplay().getMaxMessages())];
+    maxBytes = config.getReplay().getMaxBytes();
+    nextSequence = System.currentTimeMillis() * 1000;
+    meterRegistry.gauge("ons.replay.messages", this, ReplayBuffer::size);
+    meterRegistry.gauge("ons.replay.bytes", this, ReplayBuffer::getBytes);
+  }
+
+  /**
+   * Number a message, keep it and hand it on. The messages are handed on in
+   * the order of their sequence numbers.
+   *
+   * @param message the message, not numbered yet
+   * @param dispatcher hands the numbered message on
+   */
+  public synchronized void publish(ChangeMessage message, Consumer<ChangeMessage> dispatcher) {
+    ChangeMessage numbered = message.withSequence(nextSequence++);
+    if (ring.length > 0) {
+      add(numbered);
+    }
+    dispatcher.accept(numbered);
+  }
+
+  private void add(ChangeMessage message) {
+    if (count == ring.length) {
+      removeOldest();
+    }
+    ring[(head + count) % ring.length] = message;
+    count++;
+    bytes += message.estimateBytes();
+    while (bytes > maxBytes && count > 1) {
+      removeOldest();
+    }
+  }
+
+  private void removeOldest() {
+    bytes -= ring[head].estimateBytes();
+    ring[head] = null;
+    head = (head + 1) % ring.length;
+    count--;
+  }
+
+  /**
+   * Find the messages after a sequence number. The messages are shared, not
+   * copied.
+   *
+   * @param sequence the last sequence number the caller has
+   * @return the messages in the order of their sequence numbers
+   */
+  public synchronized List<ChangeMessage> findAfter(long sequence) {
+    List<ChangeMessage> ret = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ChangeMessage message = ring[(head + i) % ring.length];
+      if (message.getSequence() > sequence) {
+        ret.add(message);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   *
+   * @return sequence number of the oldest message kept, or of the next
+   * message if there is none
+   */
+  public synchronized long getFirstSequence() {
+    return (count == 0) ? nextSequence : ring[head].getSequence();
+  }
+
+  /**
+   *
+   * @return sequence number of the last message
+   */
+  public synchronized long getLastSequence() {
+    return nextSequence - 1;
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  private synchronized double getBytes() {
+    return bytes;
+  }
+
+}
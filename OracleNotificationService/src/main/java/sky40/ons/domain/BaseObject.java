@@ -1,6 +1,7 @@
 package sky40.ons.domain;
 
 import sky40.ons.util.JsonBuilder;
+import sky40.ons.util.JsonWriter;
 
 /**
  * Base class for domain objects, which allow serialization to and from Json. We
@@ -37,6 +38,15 @@ public abstract class BaseObject {
    */
   abstract protected String toJson(boolean isEnclosed);
 
+  /**
+   * Write the json representation of the domain object, enclosed in object
+   * brackets. Same format as {@link #toJson()}, but written in a single pass
+   * without intermediate strings.
+   *
+   * @param writer the writer to write to
+   */
+  abstract public void writeJson(JsonWriter writer);
+
   @Override
   public String toString() {
     return toJson();
@@ -0,0 +1,21 @@
+package sky40.ons.domain;
+
+/**
+ * The formats a change message can be sent in, as chosen by a subscription.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public enum BodyType {
+  /**
+   * Form field "message" of a multipart/form-data body.
+   */
+  MULTIPART,
+  /**
+   * Plain application/json body.
+   */
+  JSON,
+  /**
+   * Binary body as described in data/BINARY FORMAT.txt.
+   */
+  BINARY
+}
@@ -0,0 +1,389 @@
+package sky40.ons.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An encoded change message, shared by all recipients. The body is built once
+ * per format and must not be modified afterwards. The sequence number is
+ * written into the reserved places of copies of the json and binary messages
+ * by {@link #withSequence(long)}, before the message is sent, so the bodies
+ * derived from them later on (multipart, compressed, text) carry it as well.
+ *
+ * Immutable type.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class ChangeMessage {
+
+  private static final String MULTIPART_CONTENT_TYPE = "multipart/form-data;boundary=";
+
+  private static final String MULTIPART_HEADERS = "Content-Disposition: form-data; name=\"message\"\r\n"
+          + "Content-Type: text/plain;charset=UTF-8\r\n"
+          + "\r\n";
+
+  /**
+   * Maximum length of the multipart body around the json message: the headers
+   * and two boundary lines of up to 40 characters.
+   */
+  private static final int MULTIPART_OVERHEAD = MULTIPART_HEADERS.length() + 2 * 40;
+
+  public static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+  public static final String BINARY_CONTENT_TYPE = "application/x-ons-binary";
+
+  /**
+   * Written in place of the sequence number, which is filled in right
+   * aligned. Json allows the leading whitespace.
+   */
+  public static final String SEQUENCE_PLACEHOLDER = "                   0";
+
+  /**
+   * Position of the sequence number in the json message, after {"seq":
+   */
+  private static final int JSON_SEQUENCE_POS = 7;
+
+  /**
+   * Position of the sequence number in the binary message, after the length
+   * and the magic bytes.
+   */
+  private static final int BINARY_SEQUENCE_POS = 8;
+
+  private final String tableName;
+
+  /**
+   * The json message, null if every recipient gets a message with some
+   * columns only.
+   */
+  private final byte[] json;
+
+  /**
+   * The binary message, null if no recipient wants it.
+   */
+  private final byte[] binary;
+
+  /**
+   * Messages with the values of some columns only, by column list.
+   */
+  private final Map<List<String>, ChangeMessage> projections;
+  private volatile byte[] multipart;
+
+  /**
+   * Boundary of the multipart body, chosen when the body is built.
+   */
+  private volatile String boundary;
+
+  private volatile String text;
+  private final long sequence;
+
+  /**
+   * Generation of the row images the changed columns of the message were
+   * found with, -1 if all its rows are complete.
+   */
+  private final long imageGeneration;
+
+  /**
+   * Creates a message.
+   *
+   * @param tableName the changed table the message is about, null if it is
+   * about several tables
+   * @param json the UTF-8 encoded json message
+   */
+  public ChangeMessage(String tableName, byte[] json) {
+    this(tableName, json, null, Collections.emptyMap());
+  }
+
+  /**
+   * Creates a message, along with the messages for subscribers of some
+   * columns only.
+   *
+   * @param tableName the changed table the message is about
+   * @param json the UTF-8 encoded json message, null if no recipient wants
+   * all columns
+   * @param binary the binary message, null if no recipient wants it
+   * @param projections the messages with some columns only, by column list
+   */
+  public ChangeMessage(String tableName, byte[] json, byte[] binary, Map<List<String>, ChangeMessage> projections) {
+    this(tableName, json, binary, projections, -1);
+  }
+
+  /**
+   * Creates a message, that may send rows with their changed columns only.
+   *
+   * @param tableName the changed table the message is about
+   * @param json the UTF-8 encoded json message, null if no recipient wants
+   * all columns
+   * @param binary the binary message, null if no recipient wants it
+   * @param projections the messages with some columns only, by column list
+   * @param imageGeneration generation of the row images the changed columns
+   * were found with, -1 if all rows are complete
+   */
+  public ChangeMessage(String tableName, byte[] json, byte[] binary, Map<List<String>, ChangeMessage> projections, long imageGeneration) {
+    this(tableName, json, binary, projections, imageGeneration, 0);
+  }
+
+  private ChangeMessage(String tableName, byte[] json, byte[] binary, Map<List<String>, ChangeMessage> projections, long imageGeneration, long sequence) {
+    this.tableName = tableName;
+    this.json = json;
+    this.binary = binary;
+    this.projections = projections;
+    this.imageGeneration = imageGeneration;
+    this.sequence = sequence;
+  }
+
+  /**
+   * Get the message for a subscriber of some columns.
+   *
+   * @param columns the column list of the subscriber, empty for all columns
+   * @return the message with these columns, this message if there is none
+   */
+  public ChangeMessage forColumns(List<String> columns) {
+    if (columns.isEmpty()) {
+      return this;
+    }
+    ChangeMessage ret = projections.get(columns);
+    return (ret == null) ? this : ret;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   *
+   * @return the sequence number, 0 if the message is not numbered
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   *
+   * @return generation of the row images the changed columns of the message
+   * were found with, -1 if all its rows are complete
+   */
+  public long getImageGeneration() {
+    return imageGeneration;
+  }
+
+  /**
+   * Get the message with a sequence number, written into copies of the json
+   * and binary messages, and the messages with some columns only. The
+   * message to send and to combine with others.
+   *
+   * @param sequence the sequence number
+   * @return the numbered message
+   */
+  public ChangeMessage withSequence(long sequence) {
+    byte[] numberedJson = null;
+    if (json != null) {
+      numberedJson = json.clone();
+      writeDigits(numberedJson, JSON_SEQUENCE_POS, sequence);
+    }
+    byte[] numberedBinary = null;
+    if (binary != null) {
+      numberedBinary = binary.clone();
+      for (int i = 0; i < 8; i++) {
+        numberedBinary[BINARY_SEQUENCE_POS + i] = (byte) (sequence >>> (56 - 8 * i));
+      }
+    }
+    Map<List<String>, ChangeMessage> numberedProjections = projections.isEmpty() ? projections : new HashMap<>();
+    for (Map.Entry<List<String>, ChangeMessage> entry : projections.entrySet()) {
+      numberedProjections.put(entry.getKey(), entry.getValue().withSequence(sequence));
+    }
+    return new ChangeMessage(tableName, numberedJson, numberedBinary, numberedProjections, imageGeneration, sequence);
+  }
+
+  private static void writeDigits(byte[] bytes, int pos, long value) {
+    int end = pos + SEQUENCE_PLACEHOLDER.length();
+    for (int i = end - 1; i >= pos; i--) {
+      bytes[i] = (i == end - 1 || value > 0) ? (byte) ('0' + (value % 10)) : (byte) ' ';
+      value /= 10;
+    }
+  }
+
+  /**
+   *
+   * @return the messages with some columns only, by column list
+   */
+  public Map<List<String>, ChangeMessage> getProjections() {
+    return projections;
+  }
+
+  /**
+   * Combine several messages into one json array message. The binary
+   * messages are simply concatenated, as each is prefixed with its length.
+   *
+   * @param messages the messages to combine
+   * @return the combined message
+   */
+  public static ChangeMessage combine(List<ChangeMessage> messages) {
+    int size = 2 + Math.max(0, messages.size() - 1);
+    int binarySize = 0;
+    for (ChangeMessage message : messages) {
+      size += message.json.length;
+      binarySize = (binarySize < 0 || message.binary == null) ? -1 : binarySize + message.binary.length;
+    }
+
+    byte[] ret = new byte[size];
+    int pos = 0;
+    ret[pos++] = '[';
+    for (ChangeMessage message : messages) {
+      if (pos > 1) {
+        ret[pos++] = ',';
+      }
+      System.arraycopy(message.json, 0, ret, pos, message.json.length);
+      pos += message.json.length;
+    }
+    ret[pos] = ']';
+
+    byte[] binaryRet = null;
+    if (binarySize >= 0) {
+      binaryRet = new byte[binarySize];
+      pos = 0;
+      for (ChangeMessage message : messages) {
+        System.arraycopy(message.binary, 0, binaryRet, pos, message.binary.length);
+        pos += message.binary.length;
+      }
+    }
+    return new ChangeMessage(null, ret, binaryRet, Collections.emptyMap());
+  }
+
+  /**
+   *
+   * @return the UTF-8 encoded json message, null if it was not built
+   */
+  public byte[] getJson() {
+    return json;
+  }
+
+  /**
+   * Get the json message as a string, e.g. for text based streams. Decoded on
+   * first use.
+   *
+   * @return the json message, null if it was not built
+   */
+  public String getText() {
+    String ret = text;
+    if (ret == null && json != null) {
+      ret = new String(json, StandardCharsets.UTF_8);
+      text = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * Get the request body of the message. The multipart body is built on first
+   * use.
+   *
+   * @param type the body type
+   * @return the body, not to be modified
+   */
+  public byte[] getBody(BodyType type) {
+    if (json == null) {
+      throw new IllegalStateException("Message of " + tableName + " with all columns was not built.");
+    }
+    if (type == BodyType.JSON) {
+      return json;
+    }
+    if (type == BodyType.BINARY) {
+      if (binary == null) {
+        throw new IllegalStateException("Binary message of " + tableName + " was not built.");
+      }
+      return binary;
+    }
+    byte[] ret = multipart;
+    if (ret == null) {
+      ret = buildMultipart();
+    }
+    return ret;
+  }
+
+  /**
+   * Build the multipart body with a random boundary. The json message holds
+   * the values of the rows, so any fixed boundary could occur in it.
+   *
+   * @return the multipart body
+   */
+  private synchronized byte[] buildMultipart() {
+    if (multipart != null) {
+      return multipart;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String newBoundary = "ons-" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36)
+            + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+    byte[] head = ("--" + newBoundary + "\r\n" + MULTIPART_HEADERS).getBytes(StandardCharsets.US_ASCII);
+    byte[] tail = ("\r\n--" + newBoundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] ret = new byte[head.length + json.length + tail.length];
+    System.arraycopy(head, 0, ret, 0, head.length);
+    System.arraycopy(json, 0, ret, head.length, json.length);
+    System.arraycopy(tail, 0, ret, head.length + json.length, tail.length);
+    boundary = newBoundary;
+    multipart = ret;
+    return ret;
+  }
+
+  /**
+   *
+   * @param type the body type
+   * @return true if the message can be sent with this body type
+   */
+  public boolean hasBody(BodyType type) {
+    return (type == BodyType.BINARY) ? binary != null : json != null;
+  }
+
+  /**
+   * Get the content type header value of a body. The multipart content type
+   * names the boundary of this message's body, which is built if necessary.
+   *
+   * @param type the body type
+   * @return the content type header value of the body
+   */
+  public String getContentType(BodyType type) {
+    switch (type) {
+      case JSON:
+        return JSON_CONTENT_TYPE;
+      case BINARY:
+        return BINARY_CONTENT_TYPE;
+      default:
+        getBody(type);
+        return MULTIPART_CONTENT_TYPE + boundary;
+    }
+  }
+
+  /**
+   *
+   * @return size of the json message in bytes, 0 if it was not built
+   */
+  public int size() {
+    return (json == null) ? 0 : json.length;
+  }
+
+  /**
+   * Estimate the memory the message takes, with the messages with some
+   * columns only. The multipart body and the text are counted even if they
+   * are not built yet, so the estimate does not change while the message is
+   * in use.
+   *
+   * @return estimated size in bytes
+   */
+  public long estimateBytes() {
+    long ret = 0;
+    if (json != null) {
+      // json, multipart copy and text with up to one char of 2 bytes per byte
+      ret += json.length + (json.length + MULTIPART_OVERHEAD) + 2L * json.length;
+    }
+    if (binary != null) {
+      ret += binary.length;
+    }
+    for (ChangeMessage projection : projections.values()) {
+      ret += projection.estimateBytes();
+    }
+    return ret;
+  }
+
+}
@@ -1,15 +1,28 @@
 package sky40.ons.domain;
 
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import javafx.util.Pair;
+import sky40.ons.util.BinaryWriter;
+import sky40.ons.util.JsonWriter;
 
 /**
  * Takes a set of changed rows. Container class. Adds utility functions.
  *
+ * The rows are stored by column: the row ids in one array and the values of
+ * each column in an array of its type, with a bitmap of the null values.
+ * Rows and columns are accessed by index, so iterating the values does not
+ * allocate any objects.
+ *
  * Extends {@link BaseObject} for serialization.
  *
  * Immutable type.
@@ -19,86 +32,318 @@ import javafx.util.Pair;
 public class ChangedRowSet extends BaseObject {
 
   /**
-   * Maps the row to the list of values.
+   * The types the values of a column are read and stored as.
    */
-  private final HashMap<String, List<String>> rowToValuesMap;
+  public enum ColumnType {
+    /**
+     * Any value, stored as its string representation.
+     */
+    STRING,
+    /**
+     * Integer numbers, stored as long values.
+     */
+    LONG,
+    /**
+     * Other numbers, stored as plain string representation.
+     */
+    DECIMAL,
+    /**
+     * Binary floating point numbers, stored as double values.
+     */
+    DOUBLE,
+    /**
+     * Dates and timestamps, read in UTC and stored as milliseconds since the
+     * epoch. Only used for typed json, otherwise they keep the string of the
+     * driver.
+     */
+    TIMESTAMP,
+    /**
+     * Character LOBs, streamed and stored as string.
+     */
+    CLOB,
+    /**
+     * Binary LOBs, streamed and stored as base64 string.
+     */
+    BLOB;
+
+    boolean isStoredAsLong() {
+      return this == LONG || this == TIMESTAMP;
+    }
+
+    boolean isStoredAsString() {
+      return this == STRING || this == DECIMAL || this == CLOB || this == BLOB;
+    }
+  }
+
+  private static final byte[] ROWS = JsonWriter.encodeName("rows");
+  private static final byte[] ATTRIBUTES = JsonWriter.encodeName("attributes");
+  private static final byte[] ROW_ID = JsonWriter.encodeName("rowId");
+  private static final byte[] OPERATIONS = JsonWriter.encodeName("operations");
+  private static final byte[] DELTA = JsonWriter.encodeName("delta");
+  private static final Set<String> DELETE = Collections.singleton("DELETE");
 
   /**
-   * Maps the row to the list of operations.
+   * Formats timestamps in UTC like {@link java.sql.Timestamp#toString()}.
    */
-  private final HashMap<String, Set<String>> rowToOperationMap;
+  private static final DateTimeFormatter TIMESTAMP_FORMAT = new DateTimeFormatterBuilder()
+          .appendPattern("uuuu-MM-dd HH:mm:ss")
+          .appendFraction(ChronoField.NANO_OF_SECOND, 1, 9, true)
+          .toFormatter()
+          .withZone(ZoneOffset.UTC);
+
+  private static final String[] NO_STRINGS = new String[0];
+  private static final long[] NO_LONGS = new long[0];
+  private static final double[] NO_DOUBLES = new double[0];
+
+  private final int rowCount;
+  private final String[] rowIds;
+
+  /**
+   * The operations by row.
+   */
+  private final Set<String>[] operations;
 
   /**
-   * The list of column names (same for all rows)
+   * The list of column names (same for all rows), without the row id.
    */
   private final List<String> columnNames;
+  private final ColumnType[] columnTypes;
+
+  /**
+   * The values by column, a String[], long[] or double[] as of the column
+   * type.
+   */
+  private final Object[] columnValues;
+
+  /**
+   * Bitmaps of the null values by column, one bit per row.
+   */
+  private final long[][] nullBits;
+
+  /**
+   * Bitmap of the rows with unknown values, like deleted rows.
+   */
+  private final long[] unknownBits;
+
+  /**
+   * Flags of the changed columns by row, for rows sent with their changed
+   * columns only. Null if all rows are complete.
+   */
+  private final boolean[][] changedColumns;
+
+  /**
+   * Generation of the row images the changed columns were found with, see
+   * {@link sky40.ons.cache.RowImageCache}. -1 if all rows are complete.
+   */
+  private final long imageGeneration;
+
+  /**
+   * Indicates if numbers and timestamps are written as json numbers.
+   * Otherwise all values are written as json strings.
+   */
+  private final boolean typedJson;
 
-  public ChangedRowSet(HashMap<String, List<String>> rowToValuesMap, List<String> columnNames, HashMap<String, Set<String>> rowToOperationMap) {
-    this.rowToValuesMap = rowToValuesMap;
+  private ChangedRowSet(int rowCount, String[] rowIds, Set<String>[] operations, List<String> columnNames, ColumnType[] columnTypes,
+          Object[] columnValues, long[][] nullBits, long[] unknownBits, boolean[][] changedColumns, long imageGeneration, boolean typedJson) {
+    this.rowCount = rowCount;
+    this.rowIds = rowIds;
+    this.operations = operations;
     this.columnNames = columnNames;
-    this.rowToOperationMap = rowToOperationMap;
+    this.columnTypes = columnTypes;
+    this.columnValues = columnValues;
+    this.nullBits = nullBits;
+    this.unknownBits = unknownBits;
+    this.changedColumns = changedColumns;
+    this.imageGeneration = imageGeneration;
+    this.typedJson = typedJson;
   }
 
   public List<String> getColumnNames() {
     return columnNames;
   }
 
-  public HashMap<String, List<String>> getRowToValuesMap() {
-    return rowToValuesMap;
+  /**
+   *
+   * @return number of rows in the result set.
+   */
+  public int rowSize() {
+    return rowCount;
   }
 
   /**
-   * Convenience method to get column name and value of the row.
    *
-   * @param rowId
-   * @param column
-   * @return
+   * @return number of columns in the result set.
    */
-  public Pair<String, String> findRowPair(String rowId, int column) {
-    String key = columnNames.get(column);
-    String value = rowToValuesMap.get(rowId).get(column);
+  public int columnSize() {
+    return columnNames.size();
+  }
 
-    return new Pair<>(key, value);
+  public ColumnType getColumnType(int col) {
+    return columnTypes[col];
+  }
+
+  public String getRowId(int row) {
+    return rowIds[row];
+  }
+
+  public Set<String> getOperations(int row) {
+    return operations[row];
   }
 
   /**
    *
-   * @return number of rows in the result set.
+   * @param row the row index
+   * @return false if the values of the row are not known, like of a deleted
+   * row
    */
-  public int rowSize() {
-    return rowToValuesMap.size();
+  public boolean hasValues(int row) {
+    return !isSet(unknownBits, row);
   }
 
   /**
    *
-   * @return number of columns in the result set.
+   * @param row the row index
+   * @return flags of the changed columns if only these are sent, otherwise
+   * null
    */
-  public int columnSize() {
-    return columnNames.size();
+  public boolean[] getChangedColumns(int row) {
+    return (changedColumns == null) ? null : changedColumns[row];
+  }
+
+  /**
+   *
+   * @return generation of the row images the changed columns were found
+   * with, -1 if all rows are complete
+   */
+  public long getImageGeneration() {
+    return imageGeneration;
+  }
+
+  public boolean isNull(int row, int col) {
+    return isSet(nullBits[col], row);
+  }
+
+  /**
+   * Get a value of a LONG or TIMESTAMP column.
+   *
+   * @param row the row index
+   * @param col the column index
+   * @return the value, 0 if it is null
+   */
+  public long getLong(int row, int col) {
+    return ((long[]) columnValues[col])[row];
+  }
+
+  /**
+   * Get a value of a DOUBLE column.
+   *
+   * @param row the row index
+   * @param col the column index
+   * @return the value, 0 if it is null
+   */
+  public double getDouble(int row, int col) {
+    return ((double[]) columnValues[col])[row];
+  }
+
+  /**
+   * Get a value as string. Allocates the string of columns not stored as
+   * strings. Timestamps are formatted in UTC like yyyy-mm-dd hh:mm:ss.fffffffff.
+   *
+   * @param row the row index
+   * @param col the column index
+   * @return the value, null if it is null
+   */
+  public String getString(int row, int col) {
+    if (isNull(row, col)) {
+      return null;
+    }
+    switch (columnTypes[col]) {
+      case LONG:
+        return Long.toString(getLong(row, col));
+      case TIMESTAMP:
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(getLong(row, col)));
+      case DOUBLE:
+        return Double.toString(getDouble(row, col));
+      default:
+        return ((String[]) columnValues[col])[row];
+    }
+  }
+
+  /**
+   * Get a copy of the values of a row, in the types they are stored as.
+   *
+   * @param row the row index, of a row with values
+   * @return the values
+   */
+  public RowValues getRowValues(int row) {
+    return new RowValues(this, row);
+  }
+
+  /**
+   * Get a row set, that sends some rows with their changed columns only.
+   *
+   * @param rowToChangedColumnsMap flags of the changed columns by row id
+   * @param imageGeneration generation of the row images the changed columns
+   * were found with
+   * @return the new row set
+   */
+  public ChangedRowSet withChangedColumns(Map<String, boolean[]> rowToChangedColumnsMap, long imageGeneration) {
+    boolean[][] changed = new boolean[rowCount][];
+    for (int row = 0; row < rowCount; row++) {
+      changed[row] = rowToChangedColumnsMap.get(rowIds[row]);
+    }
+    return new ChangedRowSet(rowCount, rowIds, operations, columnNames, columnTypes, columnValues, nullBits, unknownBits, changed, imageGeneration, typedJson);
+  }
+
+  /**
+   * Get a row set with the deleted rows added. If this set has neither rows
+   * nor columns, it takes the columns of the first known values. Values of
+   * other columns than those of the set are sent as unknown.
+   *
+   * @param deletedRowToValuesMap the last known values by row id of the
+   * deleted rows, null values if they are not known
+   * @return the new row set
+   */
+  public ChangedRowSet withDeletedRows(Map<String, RowValues> deletedRowToValuesMap) {
+    RowValues first = null;
+    if (columnNames.isEmpty() && rowCount == 0) {
+      for (RowValues values : deletedRowToValuesMap.values()) {
+        if (values != null) {
+          first = values;
+          break;
+        }
+      }
+    }
+    Builder builder = (first != null)
+            ? new Builder(first.columnNames, first.columnTypes).setTypedJson(typedJson)
+            : new Builder(this);
+    for (Map.Entry<String, RowValues> row : deletedRowToValuesMap.entrySet()) {
+      builder.addRow(row.getKey(), DELETE);
+      RowValues values = row.getValue();
+      if (values != null && values.hasColumns(builder.columnNames, builder.columnTypes)) {
+        builder.setValues(values);
+      } else {
+        builder.setUnknown();
+      }
+    }
+    return builder.build();
   }
 
   @Override
   protected String toJson(boolean isEnclosed) {
-
-    Iterator<String> rowIdIterator = rowToValuesMap.keySet().iterator();
     ArrayList<String> rowStrings = new ArrayList<>();
     // iterate rows
-    for (int row = 0; row < rowSize(); row++) {
-      String rowId = rowIdIterator.next();
+    for (int row = 0; row < rowCount; row++) {
       ArrayList<String> jsonPairs = new ArrayList<>();
-      // iterate columns
-      for (int col = 0; col < columnSize(); col++) {
-        Pair<String, String> pair = findRowPair(rowId, col);
-        String key = pair.getKey();
-        if (!"rowid".equalsIgnoreCase(key)) {
-          jsonPairs.add(jsonBuilder.pair(pair.getKey(), pair.getValue()));
-        }
+      // iterate columns, if the values are known
+      for (int col = 0; hasValues(row) && col < columnSize(); col++) {
+        jsonPairs.add(jsonBuilder.pair(columnNames.get(col), getString(row, col)));
       }
       String rowStr
               = jsonBuilder.object(
                       jsonBuilder.pair("attributes", jsonBuilder.object(jsonPairs)),
-                      jsonBuilder.pair("rowId", rowId),
-                      jsonBuilder.pair("operations", jsonBuilder.array(true, rowToOperationMap.get(rowId)))
+                      jsonBuilder.pair("rowId", rowIds[row]),
+                      jsonBuilder.pair("operations", jsonBuilder.array(true, operations[row]))
               );
       rowStrings.add(rowStr);
     }
@@ -110,4 +355,434 @@ public class ChangedRowSet extends BaseObject {
     return ret;
   }
 
+  @Override
+  public void writeJson(JsonWriter writer) {
+    writeJson(writer, null, null);
+  }
+
+  /**
+   * Write the json representation of the row set, using pre-encoded column
+   * names.
+   *
+   * @param writer the writer to write to
+   * @param columnKeys the column names encoded by
+   * {@link JsonWriter#encodeName(java.lang.String)} or null to encode them on
+   * the fly
+   * @param included flags of the columns to write, null for all columns
+   */
+  public void writeJson(JsonWriter writer, byte[][] columnKeys, boolean[] included) {
+    writer.beginObject().name(ROWS).beginArray();
+    for (int row = 0; row < rowCount; row++) {
+      boolean[] changed = getChangedColumns(row);
+      writer.beginObject().name(ATTRIBUTES).beginObject();
+      for (int col = 0; hasValues(row) && col < columnSize(); col++) {
+        if ((included == null || included[col]) && (changed == null || changed[col])) {
+          if (columnKeys != null) {
+            writer.name(columnKeys[col]);
+          } else {
+            writer.name(columnNames.get(col));
+          }
+          writeJsonValue(writer, row, col);
+        }
+      }
+      writer.endObject()
+              .name(ROW_ID).value(rowIds[row])
+              .name(OPERATIONS).array(operations[row]);
+      if (changed != null) {
+        writer.name(DELTA).value(true);
+      }
+      writer.endObject();
+    }
+    writer.endArray().endObject();
+  }
+
+  private void writeJsonValue(JsonWriter writer, int row, int col) {
+    if (isNull(row, col)) {
+      writer.nullValue();
+      return;
+    }
+    switch (columnTypes[col]) {
+      case LONG:
+        if (typedJson) {
+          writer.value(getLong(row, col));
+        } else {
+          writer.stringValue(getLong(row, col));
+        }
+        break;
+      case TIMESTAMP:
+        if (typedJson) {
+          writer.value(getLong(row, col));
+        } else {
+          writer.value(getString(row, col));
+        }
+        break;
+      case DOUBLE:
+        double value = getDouble(row, col);
+        if (typedJson && !Double.isNaN(value) && !Double.isInfinite(value)) {
+          writer.value(value);
+        } else {
+          writer.value(Double.toString(value));
+        }
+        break;
+      case DECIMAL:
+        if (typedJson) {
+          writer.numberValue(((String[]) columnValues[col])[row]);
+        } else {
+          writer.value(((String[]) columnValues[col])[row]);
+        }
+        break;
+      default:
+        writer.value(((String[]) columnValues[col])[row]);
+    }
+  }
+
+  /**
+   * Write the column names and rows in the binary format described in
+   * data/BINARY FORMAT.txt. Only DOUBLE and TIMESTAMP values are formatted
+   * into new strings.
+   *
+   * @param writer the writer to write to
+   * @param included flags of the columns to write, null for all columns
+   */
+  public void writeBinary(BinaryWriter writer, boolean[] included) {
+    int[] columns = new int[columnSize()];
+    int columnCount = 0;
+    for (int col = 0; col < columnSize(); col++) {
+      if (included == null || included[col]) {
+        columns[columnCount++] = col;
+      }
+    }
+
+    writer.writeShort(columnCount);
+    for (int i = 0; i < columnCount; i++) {
+      writer.writeString(columnNames.get(columns[i]));
+    }
+    writer.writeInt(rowCount);
+    byte[] present = new byte[(columnCount + 7) / 8];
+    for (int row = 0; row < rowCount; row++) {
+      boolean[] changed = getChangedColumns(row);
+      writer.writeString(rowIds[row])
+              .writeStrings(operations[row])
+              .writeByte(((changed != null) ? 1 : 0) | (hasValues(row) ? 0 : 2));
+      if (!hasValues(row)) {
+        continue;
+      }
+      Arrays.fill(present, (byte) 0);
+      for (int i = 0; i < columnCount; i++) {
+        if (changed == null || changed[columns[i]]) {
+          present[i >> 3] |= 1 << (i & 7);
+        }
+      }
+      writer.write(present);
+      for (int i = 0; i < columnCount; i++) {
+        int col = columns[i];
+        if (changed != null && !changed[col]) {
+          continue;
+        }
+        if (columnTypes[col] == ColumnType.LONG && !isNull(row, col)) {
+          writer.writeString(getLong(row, col));
+        } else if (columnTypes[col].isStoredAsString()) {
+          writer.writeString(((String[]) columnValues[col])[row]);
+        } else {
+          writer.writeString(getString(row, col));
+        }
+      }
+    }
+  }
+
+  private static boolean isSet(long[] bits, int index) {
+    int word = index >> 6;
+    return word < bits.length && (bits[word] & (1L << index)) != 0;
+  }
+
+  private static long[] set(long[] bits, int index) {
+    int word = index >> 6;
+    if (word >= bits.length) {
+      bits = Arrays.copyOf(bits, Math.max(bits.length * 2, word + 1));
+    }
+    bits[word] |= 1L << index;
+    return bits;
+  }
+
+  /**
+   * Builds a row set row by row. The arrays of the columns grow as needed.
+   *
+   * Not thread safe.
+   */
+  public static class Builder {
+
+    private final List<String> columnNames;
+    private final ColumnType[] columnTypes;
+    private final Object[] columnValues;
+    private final long[][] nullBits;
+    private long[] unknownBits = NO_LONGS;
+    private boolean[][] changedColumns;
+    private long imageGeneration = -1;
+    private String[] rowIds = NO_STRINGS;
+    private Set<String>[] operations = newSetArray(0);
+    private int rowCount;
+    private boolean typedJson;
+
+    /**
+     * Creates a builder for an empty row set.
+     *
+     * @param columnNames names of the columns, without the row id
+     * @param columnTypes types of the columns, null for STRING columns only
+     */
+    public Builder(List<String> columnNames, ColumnType[] columnTypes) {
+      this.columnNames = columnNames;
+      this.columnTypes = new ColumnType[columnNames.size()];
+      this.columnValues = new Object[columnNames.size()];
+      this.nullBits = new long[columnNames.size()][];
+      for (int col = 0; col < this.columnTypes.length; col++) {
+        this.columnTypes[col] = (columnTypes == null) ? ColumnType.STRING : columnTypes[col];
+        this.columnValues[col] = this.columnTypes[col].isStoredAsLong() ? NO_LONGS
+                : this.columnTypes[col].isStoredAsString() ? NO_STRINGS : NO_DOUBLES;
+        this.nullBits[col] = NO_LONGS;
+      }
+    }
+
+    /**
+     * Creates a builder to add rows to a row set.
+     *
+     * @param base the rows to start with
+     */
+    private Builder(ChangedRowSet base) {
+      this.columnNames = base.columnNames;
+      this.columnTypes = base.columnTypes;
+      this.columnValues = base.columnValues.clone();
+      this.nullBits = new long[base.nullBits.length][];
+      for (int col = 0; col < nullBits.length; col++) {
+        this.nullBits[col] = base.nullBits[col].clone();
+      }
+      this.unknownBits = base.unknownBits.clone();
+      this.changedColumns = base.changedColumns;
+      this.imageGeneration = base.imageGeneration;
+      this.rowIds = base.rowIds;
+      this.operations = base.operations;
+      this.rowCount = base.rowCount;
+      this.typedJson = base.typedJson;
+      // the arrays of the base are not to be written
+      resize(rowCount);
+    }
+
+    /**
+     * Start a new row. Its values are null until they are set.
+     *
+     * @param rowId the row id
+     * @param ops the operations on the row
+     * @return this builder
+     */
+    public Builder addRow(String rowId, Set<String> ops) {
+      if (rowCount == rowIds.length) {
+        resize(Math.max(16, rowIds.length * 2));
+      }
+      rowIds[rowCount] = rowId;
+      operations[rowCount] = ops;
+      rowCount++;
+      return this;
+    }
+
+    public Builder setString(int col, String value) {
+      if (value == null) {
+        return setNull(col);
+      }
+      ((String[]) columnValues[col])[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder setLong(int col, long value) {
+      ((long[]) columnValues[col])[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder setDouble(int col, double value) {
+      ((double[]) columnValues[col])[rowCount - 1] = value;
+      return this;
+    }
+
+    public Builder setNull(int col) {
+      nullBits[col] = set(nullBits[col], rowCount - 1);
+      return this;
+    }
+
+    /**
+     * Set the values of the current row.
+     *
+     * @param values the values, of the same column types as the builder
+     * @return this builder
+     */
+    public Builder setValues(RowValues values) {
+      for (int col = 0; col < columnTypes.length; col++) {
+        if (isSet(values.nullBits, col)) {
+          setNull(col);
+        } else if (columnTypes[col].isStoredAsLong()) {
+          setLong(col, values.numbers[col]);
+        } else if (columnTypes[col].isStoredAsString()) {
+          setString(col, values.strings[col]);
+        } else {
+          setDouble(col, Double.longBitsToDouble(values.numbers[col]));
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Write numbers and timestamps as json numbers, instead of strings.
+     *
+     * @param typedJson true for typed values
+     * @return this builder
+     */
+    public Builder setTypedJson(boolean typedJson) {
+      this.typedJson = typedJson;
+      return this;
+    }
+
+    /**
+     * Mark the values of the current row as unknown.
+     *
+     * @return this builder
+     */
+    public Builder setUnknown() {
+      unknownBits = set(unknownBits, rowCount - 1);
+      return this;
+    }
+
+    public int rowSize() {
+      return rowCount;
+    }
+
+    public int columnSize() {
+      return columnTypes.length;
+    }
+
+    public ColumnType getColumnType(int col) {
+      return columnTypes[col];
+    }
+
+    public ChangedRowSet build() {
+      boolean[][] changed = (changedColumns == null) ? null : Arrays.copyOf(changedColumns, rowCount);
+      return new ChangedRowSet(rowCount, rowIds, operations, columnNames, columnTypes, columnValues, nullBits, unknownBits, changed, imageGeneration, typedJson);
+    }
+
+    /**
+     * Copy the arrays of the rows into new ones.
+     *
+     * @param capacity the new capacity
+     */
+    private void resize(int capacity) {
+      rowIds = Arrays.copyOf(rowIds, capacity);
+      operations = Arrays.copyOf(operations, capacity);
+      for (int col = 0; col < columnValues.length; col++) {
+        if (columnTypes[col].isStoredAsLong()) {
+          columnValues[col] = Arrays.copyOf((long[]) columnValues[col], capacity);
+        } else if (columnTypes[col].isStoredAsString()) {
+          columnValues[col] = Arrays.copyOf((String[]) columnValues[col], capacity);
+        } else {
+          columnValues[col] = Arrays.copyOf((double[]) columnValues[col], capacity);
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String>[] newSetArray(int size) {
+      return new Set[size];
+    }
+  }
+
+  /**
+   * The values of one row, copied out of the columns of a row set in the
+   * types they are stored as. LONG and TIMESTAMP values are kept as long
+   * values, DOUBLE values by their bits, the others as strings.
+   *
+   * Immutable type.
+   */
+  public static class RowValues {
+
+    private final List<String> columnNames;
+    private final ColumnType[] columnTypes;
+    private final long[] numbers;
+    private final String[] strings;
+    private final long[] nullBits;
+
+    private RowValues(ChangedRowSet rows, int row) {
+      int size = rows.columnSize();
+      this.columnNames = rows.columnNames;
+      this.columnTypes = rows.columnTypes;
+      this.numbers = new long[size];
+      this.strings = new String[size];
+      long[] nulls = NO_LONGS;
+      for (int col = 0; col < size; col++) {
+        if (rows.isNull(row, col)) {
+          nulls = set(nulls, col);
+        } else if (columnTypes[col].isStoredAsLong()) {
+          numbers[col] = rows.getLong(row, col);
+        } else if (columnTypes[col].isStoredAsString()) {
+          strings[col] = ((String[]) rows.columnValues[col])[row];
+        } else {
+          numbers[col] = Double.doubleToRawLongBits(rows.getDouble(row, col));
+        }
+      }
+      this.nullBits = nulls;
+    }
+
+    public List<String> getColumnNames() {
+      return columnNames;
+    }
+
+    /**
+     *
+     * @param names the column names
+     * @param types the column types
+     * @return true if the values are of these columns
+     */
+    public boolean hasColumns(List<String> names, ColumnType[] types) {
+      return Arrays.equals(columnTypes, types) && columnNames.equals(names);
+    }
+
+    /**
+     *
+     * @param other other values
+     * @return true if the other values are of the same columns
+     */
+    public boolean hasSameColumns(RowValues other) {
+      return hasColumns(other.columnNames, other.columnTypes);
+    }
+
+    /**
+     * Find the columns changed since previous values of the row.
+     *
+     * @param previous the previous values, of the same columns
+     * @return flags of the changed columns
+     */
+    public boolean[] findChangedColumns(RowValues previous) {
+      boolean[] ret = new boolean[columnTypes.length];
+      for (int col = 0; col < ret.length; col++) {
+        boolean isNull = isSet(nullBits, col);
+        if (isNull != isSet(previous.nullBits, col)) {
+          ret[col] = true;
+        } else if (!isNull) {
+          ret[col] = numbers[col] != previous.numbers[col] || !Objects.equals(strings[col], previous.strings[col]);
+        }
+      }
+      return ret;
+    }
+
+    /**
+     * Estimate the memory the values take. The column names and types are
+     * shared by all rows of a query and not counted.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimateBytes() {
+      long ret = 80 + 8L * nullBits.length + 16L * columnTypes.length;
+      for (String value : strings) {
+        if (value != null) {
+          ret += 40 + 2L * value.length();
+        }
+      }
+      return ret;
+    }
+  }
+
 }
@@ -0,0 +1,139 @@
+package sky40.ons.domain;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Describes a column of a table, as found in the meta data of a query. Decides
+ * how the values of the column are read and stored.
+ *
+ * Immutable type.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class ColumnDescriptor {
+
+  /**
+   * Oracle type codes of BINARY_FLOAT and BINARY_DOUBLE.
+   */
+  private static final int ORACLE_BINARY_FLOAT = 100;
+  private static final int ORACLE_BINARY_DOUBLE = 101;
+
+  private final String name;
+  private final int sqlType;
+  private final String typeName;
+  private final int precision;
+  private final int scale;
+  private final ChangedRowSet.ColumnType type;
+
+  public ColumnDescriptor(String name, int sqlType, String typeName, int precision, int scale) {
+    this.name = name;
+    this.sqlType = sqlType;
+    this.typeName = typeName;
+    this.precision = precision;
+    this.scale = scale;
+    this.type = findType(sqlType, precision, scale);
+  }
+
+  /**
+   * Create the descriptor of a column of a result set.
+   *
+   * @param rsmd the meta data of the result set
+   * @param column the column index, starting with 1
+   * @return the descriptor
+   * @throws SQLException
+   */
+  public static ColumnDescriptor of(ResultSetMetaData rsmd, int column) throws SQLException {
+    return new ColumnDescriptor(rsmd.getColumnName(column), rsmd.getColumnType(column), rsmd.getColumnTypeName(column),
+            rsmd.getPrecision(column), rsmd.getScale(column));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   *
+   * @return the type as of {@link java.sql.Types}
+   */
+  public int getSqlType() {
+    return sqlType;
+  }
+
+  /**
+   *
+   * @return the database specific type name, e.g. VARCHAR2
+   */
+  public String getTypeName() {
+    return typeName;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public int getScale() {
+    return scale;
+  }
+
+  /**
+   *
+   * @return how the values are read and stored
+   */
+  public ChangedRowSet.ColumnType getType() {
+    return type;
+  }
+
+  /**
+   * Get how the values are read and stored if all of them are sent as
+   * strings. Integers and LOBs are read by type, as their strings do not
+   * differ from those of the driver. All other values keep the string of the
+   * driver, with its precision and without time zone conversion.
+   *
+   * @return how the values are read and stored
+   */
+  public ChangedRowSet.ColumnType getStringType() {
+    switch (type) {
+      case LONG:
+      case CLOB:
+      case BLOB:
+        return type;
+      default:
+        return ChangedRowSet.ColumnType.STRING;
+    }
+  }
+
+  private static ChangedRowSet.ColumnType findType(int sqlType, int precision, int scale) {
+    switch (sqlType) {
+      case Types.NUMERIC:
+      case Types.DECIMAL:
+        // a NUMBER without precision has precision 0
+        return (scale == 0 && precision > 0 && precision <= 18) ? ChangedRowSet.ColumnType.LONG : ChangedRowSet.ColumnType.DECIMAL;
+      case Types.FLOAT:
+        // an Oracle FLOAT is a NUMBER with binary precision
+        return ChangedRowSet.ColumnType.DECIMAL;
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        return ChangedRowSet.ColumnType.LONG;
+      case Types.REAL:
+      case Types.DOUBLE:
+      case ORACLE_BINARY_FLOAT:
+      case ORACLE_BINARY_DOUBLE:
+        return ChangedRowSet.ColumnType.DOUBLE;
+      case Types.DATE:
+      case Types.TIMESTAMP:
+        return ChangedRowSet.ColumnType.TIMESTAMP;
+      case Types.CLOB:
+      case Types.NCLOB:
+        return ChangedRowSet.ColumnType.CLOB;
+      case Types.BLOB:
+        return ChangedRowSet.ColumnType.BLOB;
+      default:
+        return ChangedRowSet.ColumnType.STRING;
+    }
+  }
+
+}
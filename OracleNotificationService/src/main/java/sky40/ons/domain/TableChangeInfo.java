@@ -1,7 +1,12 @@
 package sky40.ons.domain;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
 import oracle.jdbc.dcn.TableChangeDescription;
+import sky40.ons.util.BinaryWriter;
+import sky40.ons.util.JsonWriter;
 
 /**
  * Class to gather information on a changed table.
@@ -14,22 +19,72 @@ import oracle.jdbc.dcn.TableChangeDescription;
  */
 public class TableChangeInfo extends BaseObject {
 
+  private static final byte[] SEQ = JsonWriter.encodeName("seq");
+  private static final byte[] SOURCE = JsonWriter.encodeName("source");
+  private static final byte[] TABLE = JsonWriter.encodeName("table");
+  private static final byte[] OPERATIONS = JsonWriter.encodeName("operations");
+  private static final byte[] TIME = JsonWriter.encodeName("time");
+  private static final byte[] PART = JsonWriter.encodeName("part");
+  private static final byte[] LAST_PART = JsonWriter.encodeName("lastPart");
+  private static final byte[] ROWS = JsonWriter.encodeName("rows");
+
+  private final String source;
   private final Date timestamp;
-  private final TableChangeDescription desc;
+  private final String tableName;
+  private final EnumSet<TableChangeDescription.TableOperation> operations;
   private final ChangedRowSet changedRows;
 
-  public TableChangeInfo(Date timestamp, TableChangeDescription desc, ChangedRowSet changedRows) {
+  /**
+   * Number of the part, if the changed rows are sent in several messages, or
+   * 0 if all are sent at once.
+   */
+  private final int part;
+  private final boolean lastPart;
+
+  public TableChangeInfo(String source, Date timestamp, String tableName, EnumSet<TableChangeDescription.TableOperation> operations, ChangedRowSet changedRows) {
+    this(source, timestamp, tableName, operations, changedRows, 0, true);
+  }
+
+  public TableChangeInfo(String source, Date timestamp, String tableName, EnumSet<TableChangeDescription.TableOperation> operations, ChangedRowSet changedRows, int part, boolean lastPart) {
+    this.source = source;
     this.timestamp = timestamp;
-    this.desc = desc;
+    this.tableName = tableName;
+    this.operations = operations;
     this.changedRows = changedRows;
+    this.part = part;
+    this.lastPart = lastPart;
+  }
+
+  /**
+   *
+   * @return name of the database the table is in
+   */
+  public String getSource() {
+    return source;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   *
+   * @return generation of the row images the changed columns were found
+   * with, -1 if all rows are complete
+   */
+  public long getImageGeneration() {
+    return changedRows.getImageGeneration();
   }
 
   @Override
   protected String toJson(boolean isEnclosed) {
     String ret = jsonBuilder.chain(
-            jsonBuilder.pair("table", desc.getTableName()),
-            jsonBuilder.pair("operations", jsonBuilder.array(true, desc.getTableOperations())),
+            jsonBuilder.pair("source", source),
+            jsonBuilder.pair("table", tableName),
+            jsonBuilder.pair("operations", jsonBuilder.array(true, operations)),
             jsonBuilder.pair("time", timestamp.getTime()),
+            (part > 0) ? jsonBuilder.pair("part", part) : EMPTY,
+            (part > 0) ? jsonBuilder.pair("lastPart", lastPart) : EMPTY,
             jsonBuilder.pair("rows", changedRows)
     );
 
@@ -39,4 +94,80 @@ public class TableChangeInfo extends BaseObject {
     return ret;
   }
 
+  @Override
+  public void writeJson(JsonWriter writer) {
+    writeJson(writer, null);
+  }
+
+  /**
+   * Write the json representation with the values of some columns only.
+   *
+   * @param writer the writer to write to
+   * @param columns names of the columns to write, null for all columns
+   */
+  public void writeJson(JsonWriter writer, Collection<String> columns) {
+    // the sequence number is filled in when the message is sent
+    writer.beginObject()
+            .name(SEQ).numberValue(ChangeMessage.SEQUENCE_PLACEHOLDER)
+            .name(SOURCE).value(source)
+            .name(TABLE).value(tableName)
+            .name(OPERATIONS).array(operations)
+            .name(TIME).value(timestamp.getTime());
+    if (part > 0) {
+      writer.name(PART).value(part)
+              .name(LAST_PART).value(lastPart);
+    }
+    writer.name(ROWS);
+    if (changedRows == null) {
+      writer.nullValue();
+    } else {
+      // the column names are encoded once per table
+      changedRows.writeJson(writer, JsonWriter.encodeNames(tableName, changedRows.getColumnNames()), findIncluded(columns));
+    }
+    writer.endObject();
+  }
+
+  /**
+   * Write the binary representation with the values of some columns only, as
+   * a single message of the format described in data/BINARY FORMAT.txt.
+   *
+   * @param writer the writer to write to
+   * @param columns names of the columns to write, null for all columns
+   */
+  public void writeBinary(BinaryWriter writer, Collection<String> columns) {
+    int start = writer.beginMessage();
+    // the sequence number is filled in when the message is sent
+    writer.writeLong(0)
+            .writeString(source)
+            .writeString(tableName)
+            .writeStrings(operations)
+            .writeLong(timestamp.getTime())
+            .writeInt(part)
+            .writeByte(lastPart ? 1 : 0);
+    if (changedRows == null) {
+      writer.writeShort(0).writeInt(-1);
+    } else {
+      changedRows.writeBinary(writer, findIncluded(columns));
+    }
+    writer.endMessage(start);
+  }
+
+  /**
+   * Find the columns of the changed rows to write.
+   *
+   * @param columns names of the columns to write, null for all columns
+   * @return flags of the columns to write, null for all columns
+   */
+  private boolean[] findIncluded(Collection<String> columns) {
+    if (columns == null) {
+      return null;
+    }
+    List<String> columnNames = changedRows.getColumnNames();
+    boolean[] ret = new boolean[columnNames.size()];
+    for (int col = 0; col < ret.length; col++) {
+      ret[col] = columns.contains(columnNames.get(col));
+    }
+    return ret;
+  }
+
 }
@@ -0,0 +1,129 @@
+package sky40.ons.domain;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import oracle.jdbc.dcn.TableChangeDescription;
+
+/**
+ * Collects the row changes on a single table as notified by the database,
+ * before the changed rows are queried. Container class. Changes of later
+ * events on the same table may be merged into it.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class TableRowChanges {
+
+  private final String source;
+  private final Date timestamp;
+  private final String tableName;
+  private final EnumSet<TableChangeDescription.TableOperation> operations;
+  private final HashMap<String, Set<String>> changedRowMap;
+  private final Set<String> deletedRows;
+  private int eventCount = 1;
+
+  public TableRowChanges(String source, Date timestamp, TableChangeDescription desc, HashMap<String, Set<String>> changedRowMap, Set<String> deletedRows) {
+    this.source = source;
+    this.timestamp = timestamp;
+    this.tableName = desc.getTableName();
+    this.operations = EnumSet.copyOf(desc.getTableOperations());
+    this.changedRowMap = changedRowMap;
+    this.deletedRows = deletedRows;
+  }
+
+  /**
+   *
+   * @return name of the database the table is in
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   *
+   * @return time of the (first) notification event
+   */
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public String getTableName() {
+    return tableName;
+  }
+
+  /**
+   *
+   * @return the table name, qualified by the source name
+   */
+  public String getQualifiedName() {
+    return source + ":" + tableName;
+  }
+
+  /**
+   *
+   * @return the operations on the table as notified by Oracle
+   */
+  public EnumSet<TableChangeDescription.TableOperation> getOperations() {
+    return operations;
+  }
+
+  /**
+   *
+   * @return map of inserted or updated row ids to their operations
+   */
+  public HashMap<String, Set<String>> getChangedRowMap() {
+    return changedRowMap;
+  }
+
+  /**
+   *
+   * @return row ids of the deleted rows
+   */
+  public Set<String> getDeletedRows() {
+    return deletedRows;
+  }
+
+  /**
+   *
+   * @return number of rows inserted, updated or deleted
+   */
+  public int rowSize() {
+    return changedRowMap.size() + deletedRows.size();
+  }
+
+  /**
+   *
+   * @return number of events the changes were collected from
+   */
+  public int getEventCount() {
+    return eventCount;
+  }
+
+  /**
+   * Merge the changes of a later event on the same table into this one. A row
+   * deleted by the later event is no longer changed, a row inserted by the
+   * later event is no longer deleted.
+   *
+   * @param later the changes of the later event
+   */
+  public void merge(TableRowChanges later) {
+    operations.addAll(later.operations);
+    for (String rowid : later.deletedRows) {
+      changedRowMap.remove(rowid);
+      deletedRows.add(rowid);
+    }
+    for (Map.Entry<String, Set<String>> entry : later.changedRowMap.entrySet()) {
+      deletedRows.remove(entry.getKey());
+      Set<String> ops = changedRowMap.get(entry.getKey());
+      if (ops == null) {
+        changedRowMap.put(entry.getKey(), entry.getValue());
+      } else {
+        ops.addAll(entry.getValue());
+      }
+    }
+    eventCount += later.eventCount;
+  }
+
+}
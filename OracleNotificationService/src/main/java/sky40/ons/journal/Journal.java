@@ -0,0 +1,544 @@
+package sky40.ons.journal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.util.BinaryWriter;
+
+/**
+ * Append-only journal of the change messages on disk, written into memory
+ * mapped segment files. Appending a message is a copy into the mapping; the
+ * segments are synced to disk by a background thread every flush interval,
+ * so all messages appended in between share one sync.
+ *
+ * Each endpoint has a {@link JournalCursor} with the offset up to which it
+ * acknowledged the messages, named by the subscription id or push url. The
+ * cursors are saved with each sync. After a restart, the messages from its
+ * cursor on are sent to the endpoint again (at least once delivery).
+ * Segments are deleted when all cursors passed them, or after the retention
+ * time; the messages expired before an endpoint acknowledged them are counted
+ * as ons.journal.expired.
+ *
+ * The journal holds the built messages, appended when they leave the
+ * pipeline. Change events still waiting in the pipeline stages are lost on a
+ * crash. Oracle's change notification only carries the row ids; the rows are
+ * read by the fetch stage, so a journaled event could only be replayed as a
+ * query of the rows as they are then, without the deleted ones. Writing on
+ * the notification thread would also hold up the next notification.
+ *
+ * Thread safe.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+@Component
+public class Journal {
+
+  private static final String CURSORS_FILE = "cursors.properties";
+
+  /**
+   * Time in milliseconds between the checks for segments to delete.
+   */
+  private static final long RETENTION_CHECK_INTERVAL = 60 * 1000;
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private File directory;
+
+  /**
+   * Segments by base offset. Guarded by this.
+   */
+  private final TreeMap<Long, JournalSegment> segments = new TreeMap<>();
+  private JournalSegment active;
+
+  /**
+   * Segments with records not synced to disk yet. Guarded by this.
+   */
+  private final List<JournalSegment> unsynced = new ArrayList<>();
+
+  /**
+   * Offset up to which all messages were handed to their endpoints.
+   */
+  private volatile long dispatched;
+
+  private final ConcurrentHashMap<String, JournalCursor> cursors = new ConcurrentHashMap<>();
+  private Map<String, Long> savedCursors = Collections.emptyMap();
+
+  private ScheduledExecutorService flusher;
+  private long lastRetentionCheck;
+  private Counter appended;
+  private Counter expired;
+  private Timer syncs;
+
+  @PostConstruct
+  public void init() throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    directory = new File(config.getJournal().getDirectory());
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create journal directory " + directory.getAbsolutePath() + ".");
+    }
+    openSegments();
+    loadCursors();
+
+    appended = meterRegistry.counter("ons.journal.appended");
+    expired = meterRegistry.counter("ons.journal.expired");
+    syncs = meterRegistry.timer("ons.journal.sync");
+    meterRegistry.gauge("ons.journal.bytes", this, Journal::countBytes);
+    meterRegistry.gauge("ons.journal.segments", this, Journal::countSegments);
+
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread ret = new Thread(r, "ons-journal");
+      ret.setDaemon(true);
+      return ret;
+    });
+    long interval = Math.max(1, config.getJournal().getFlushInterval());
+    flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    log.info("Journal opened in " + directory.getAbsolutePath() + " with " + segments.size() + " segment(s) up to offset " + dispatched + ".");
+  }
+
+  /**
+   * Syncs the journal and saves the cursors a last time.
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (flusher != null) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      flush();
+    }
+  }
+
+  public boolean isEnabled() {
+    return config.getJournal().isEnabled();
+  }
+
+  /**
+   * Append a message and hand it to its endpoints. The dispatcher is called
+   * in the order of the journal, so the endpoints see the messages in that
+   * order.
+   *
+   * @param message the message
+   * @param dispatcher takes the end offset of the message, to hand the
+   * message to the endpoints with
+   */
+  public void append(ChangeMessage message, LongConsumer dispatcher) {
+    byte[] record = encode(message);
+    synchronized (this) {
+      try {
+        if (!active.append(record)) {
+          roll(record.length);
+          active.append(record);
+        }
+      } catch (IOException ex) {
+        throw new RuntimeException("Appending to the journal failed.", ex);
+      }
+      if (unsynced.isEmpty() || unsynced.get(unsynced.size() - 1) != active) {
+        unsynced.add(active);
+      }
+      long offset = active.getEndOffset();
+      dispatcher.accept(offset);
+      dispatched = offset;
+    }
+    appended.increment();
+  }
+
+  /**
+   * Start a new segment at the end of the active one. Records larger than
+   * the segment size get a segment of their own.
+   *
+   * @param recordSize size of the record that did not fit
+   * @throws IOException
+   */
+  private void roll(int recordSize) throws IOException {
+    int size = Math.max(config.getJournal().getSegmentSize(), JournalSegment.HEADER_SIZE + recordSize);
+    long baseOffset = active.getEndOffset();
+    if (active.isEmpty()) {
+      // nothing written yet, replace it
+      segments.remove(active.getBaseOffset());
+      unsynced.remove(active);
+      active.delete();
+    }
+    active = JournalSegment.create(directory, baseOffset, size);
+    segments.put(baseOffset, active);
+    log.info("Journal segment " + active.getFile().getName() + " started.");
+  }
+
+  /**
+   * Read the message at an offset.
+   *
+   * @param offset the offset, e.g. the acknowledged offset of a cursor or the
+   * end offset of the previous message
+   * @return the message with its end offset, null if there is none
+   */
+  public Entry read(long offset) {
+    JournalSegment segment;
+    synchronized (this) {
+      Map.Entry<Long, JournalSegment> floor = segments.floorEntry(offset);
+      if (floor == null) {
+        // deleted already, continue with the oldest message
+        floor = segments.firstEntry();
+      }
+      segment = floor.getValue();
+      if (segment.getBaseOffset() > offset) {
+        offset = segment.getBaseOffset();
+      }
+    }
+    ByteBuffer record = segment.read(offset);
+    if (record == null) {
+      return null;
+    }
+    long end = offset + JournalSegment.HEADER_SIZE + record.remaining();
+    return new Entry(end, decode(record));
+  }
+
+  /**
+   * Read the messages from an offset on, as long as the reader takes them.
+   * Messages are not appended meanwhile, so a reader that read up to the end
+   * gets the following messages from the dispatcher of
+   * {@link #append(ChangeMessage, LongConsumer)} without a gap.
+   *
+   * @param from the offset to start at
+   * @param reader takes a message, false if it has no room for it
+   * @param atEnd called when the reader took all messages up to the end
+   * @return number of messages read
+   */
+  public synchronized int read(long from, Predicate<Entry> reader, Runnable atEnd) {
+    int ret = 0;
+    long offset = from;
+    Entry entry;
+    while ((entry = read(offset)) != null) {
+      if (!reader.test(entry)) {
+        return ret;
+      }
+      offset = entry.getOffset();
+      ret++;
+    }
+    atEnd.run();
+    return ret;
+  }
+
+  /**
+   * Get the cursor of an endpoint. A new endpoint starts at the current end
+   * of the journal.
+   *
+   * @param name the endpoint, e.g. subscription:id or push:url
+   * @return the cursor
+   */
+  public JournalCursor getCursor(String name) {
+    return cursors.computeIfAbsent(name, key -> new JournalCursor(key, dispatched));
+  }
+
+  /**
+   * Check if an endpoint has a cursor, i.e. messages may have to be sent
+   * again.
+   *
+   * @param name the endpoint
+   * @return true if there is a cursor
+   */
+  public boolean hasCursor(String name) {
+    return cursors.containsKey(name);
+  }
+
+  /**
+   * Forget the cursor of an endpoint that is gone for good.
+   *
+   * @param name the endpoint
+   */
+  public void removeCursor(String name) {
+    cursors.remove(name);
+  }
+
+  /**
+   * Forget the cursors of all endpoints but the given ones, e.g. of the
+   * subscriptions that are gone after a restart.
+   *
+   * @param names the endpoints to keep the cursors of
+   */
+  public void retainCursors(Set<String> names) {
+    cursors.keySet().retainAll(names);
+  }
+
+  /**
+   *
+   * @return offset after the last message handed to the endpoints
+   */
+  public long getEndOffset() {
+    return dispatched;
+  }
+
+  /**
+   * Sync the appended records to disk and save the cursors. Deletes old
+   * segments from time to time.
+   */
+  private void flush() {
+    try {
+      List<JournalSegment> toSync;
+      synchronized (this) {
+        toSync = new ArrayList<>(unsynced);
+        unsynced.clear();
+      }
+      if (!toSync.isEmpty()) {
+        long start = System.nanoTime();
+        for (JournalSegment segment : toSync) {
+          segment.force();
+        }
+        syncs.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      }
+      saveCursors();
+      if (System.currentTimeMillis() - lastRetentionCheck > RETENTION_CHECK_INTERVAL) {
+        lastRetentionCheck = System.currentTimeMillis();
+        deleteOldSegments();
+      }
+    } catch (IOException | RuntimeException ex) {
+      log.error("Journal flush failed: " + ex);
+    }
+  }
+
+  /**
+   * Delete the segments all cursors passed, and those older than the
+   * retention time. The active segment is kept.
+   */
+  void deleteOldSegments() {
+    long minCursor = dispatched;
+    for (JournalCursor cursor : cursors.values()) {
+      minCursor = Math.min(minCursor, cursor.getAcknowledged());
+    }
+    long expiry = System.currentTimeMillis() - config.getJournal().getRetention();
+    List<JournalSegment> deleted = new ArrayList<>();
+    synchronized (this) {
+      while (segments.size() > 1) {
+        JournalSegment oldest = segments.firstEntry().getValue();
+        if (oldest.getEndOffset() > minCursor && oldest.getFile().lastModified() >= expiry) {
+          break;
+        }
+        segments.remove(oldest.getBaseOffset());
+        deleted.add(oldest);
+      }
+    }
+    for (JournalSegment segment : deleted) {
+      if (segment.getEndOffset() > minCursor) {
+        int lost = segment.countRecordsFrom(minCursor);
+        expired.increment(lost);
+        log.warn("Journal segment " + segment.getFile().getName() + " expired with " + lost + " message(s) not acknowledged by all endpoints.");
+      }
+      if (!segment.delete()) {
+        log.warn("Journal segment " + segment.getFile().getName() + " could not be deleted.");
+      }
+    }
+  }
+
+  private void openSegments() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(JournalSegment.SUFFIX));
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        JournalSegment segment = JournalSegment.open(file);
+        segments.put(segment.getBaseOffset(), segment);
+      }
+    }
+    if (segments.isEmpty()) {
+      active = JournalSegment.create(directory, 0, config.getJournal().getSegmentSize());
+      segments.put(0L, active);
+    } else {
+      // appending continues in a new segment, the last one may be corrupt at its end
+      JournalSegment last = segments.lastEntry().getValue();
+      active = JournalSegment.create(directory, last.getEndOffset(), config.getJournal().getSegmentSize());
+      segments.put(active.getBaseOffset(), active);
+    }
+    dispatched = active.getEndOffset();
+  }
+
+  /**
+   * Load the cursors of the endpoints. Cursors beyond the end of the journal
+   * (the end was not synced before a crash) are moved back to the end.
+   *
+   * @throws IOException
+   */
+  private void loadCursors() throws IOException {
+    File file = new File(directory, CURSORS_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    for (String name : props.stringPropertyNames()) {
+      long offset = Math.min(Long.parseLong(props.getProperty(name)), dispatched);
+      cursors.put(name, new JournalCursor(name, offset));
+    }
+    log.info("Journal cursors of " + cursors.size() + " endpoint(s) loaded.");
+  }
+
+  /**
+   * Save the cursors, if they changed. Written to a temporary file first, so
+   * a crash leaves either the old or the new file.
+   *
+   * @throws IOException
+   */
+  private void saveCursors() throws IOException {
+    long end = dispatched;
+    Map<String, Long> current = new HashMap<>();
+    for (JournalCursor cursor : cursors.values()) {
+      cursor.skipTo(end);
+      current.put(cursor.getName(), cursor.getAcknowledged());
+    }
+    if (current.equals(savedCursors)) {
+      return;
+    }
+    Properties props = new Properties();
+    for (Map.Entry<String, Long> entry : current.entrySet()) {
+      props.setProperty(entry.getKey(), entry.getValue().toString());
+    }
+    File tmp = new File(directory, CURSORS_FILE + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, "acknowledged journal offsets by endpoint");
+      out.getFD().sync();
+    }
+    Files.move(tmp.toPath(), new File(directory, CURSORS_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    savedCursors = current;
+  }
+
+  private synchronized double countBytes() {
+    return dispatched - segments.firstKey();
+  }
+
+  private synchronized double countSegments() {
+    return segments.size();
+  }
+
+  /**
+   * Encode a message as journal record: table name, json, binary message and
+   * the messages with some columns only.
+   *
+   * @param message the message
+   * @return the record
+   */
+  private static byte[] encode(ChangeMessage message) {
+    BinaryWriter writer = new BinaryWriter(message.size() + 256);
+    writer.writeString(message.getTableName());
+    writeBody(writer, message);
+    Map<List<String>, ChangeMessage> projections = message.getProjections();
+    writer.writeShort(projections.size());
+    for (Map.Entry<List<String>, ChangeMessage> entry : projections.entrySet()) {
+      writer.writeStrings(entry.getKey());
+      writeBody(writer, entry.getValue());
+    }
+    return writer.toByteArray();
+  }
+
+  private static void writeBody(BinaryWriter writer, ChangeMessage message) {
+    writeBytes(writer, message.getJson());
+    writeBytes(writer, message.hasBody(BodyType.BINARY) ? message.getBody(BodyType.BINARY) : null);
+  }
+
+  private static void writeBytes(BinaryWriter writer, byte[] bytes) {
+    if (bytes == null) {
+      writer.writeInt(-1);
+    } else {
+      writer.writeInt(bytes.length).write(bytes);
+    }
+  }
+
+  private static ChangeMessage decode(ByteBuffer buf) {
+    String tableName = readString(buf);
+    byte[] json = readBytes(buf);
+    byte[] binary = readBytes(buf);
+    int count = buf.getShort() & 0xffff;
+    Map<List<String>, ChangeMessage> projections = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      int columnCount = buf.getShort() & 0xffff;
+      List<String> columns = new ArrayList<>(columnCount);
+      for (int col = 0; col < columnCount; col++) {
+        columns.add(readString(buf));
+      }
+      projections.put(columns, new ChangeMessage(tableName, readBytes(buf), readBytes(buf), Collections.emptyMap()));
+    }
+    return new ChangeMessage(tableName, json, binary, projections);
+  }
+
+  private static byte[] readBytes(ByteBuffer buf) {
+    int length = buf.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] ret = new byte[length];
+    buf.get(ret);
+    return ret;
+  }
+
+  private static String readString(ByteBuffer buf) {
+    byte[] bytes = readBytes(buf);
+    return (bytes == null) ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A message read from the journal.
+   */
+  public static class Entry {
+
+    private final long offset;
+    private final ChangeMessage message;
+
+    Entry(long offset, ChangeMessage message) {
+      this.offset = offset;
+      this.message = message;
+    }
+
+    /**
+     *
+     * @return end offset of the message, where the next one starts
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    public ChangeMessage getMessage() {
+      return message;
+    }
+
+  }
+
+}
@@ -0,0 +1,159 @@
+package sky40.ons.journal;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The position of an endpoint in the journal: all messages before the
+ * acknowledged offset were delivered (or were not meant for the endpoint).
+ * Messages are identified by their end offset, which is where the next
+ * message starts.
+ *
+ * Messages may be delivered out of order, so the cursor only advances over
+ * the delivered messages in front of the first one still pending. A message
+ * that could not be delivered stops the cursor until the endpoint is replayed
+ * from the journal. While the endpoint reads behind the end of the journal,
+ * the cursor does not pass the messages it has not read yet.
+ *
+ * Thread safe.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class JournalCursor {
+
+  private final String name;
+  private long acknowledged;
+
+  /**
+   * End offsets of the messages being delivered.
+   */
+  private final TreeSet<Long> pending = new TreeSet<>();
+
+  /**
+   * End offsets of the delivered messages behind a pending one.
+   */
+  private final TreeSet<Long> delivered = new TreeSet<>();
+
+  /**
+   * End offset of the first message that could not be delivered.
+   */
+  private long failed = Long.MAX_VALUE;
+
+  /**
+   * Offset up to which the endpoint read the journal, while it reads behind
+   * the end. Long.MAX_VALUE while it gets the messages as they are appended.
+   */
+  private long readOffset = Long.MAX_VALUE;
+
+  /**
+   * Creates a cursor.
+   *
+   * @param name the endpoint, e.g. subscription:id
+   * @param acknowledged the offset to start from
+   */
+  public JournalCursor(String name, long acknowledged) {
+    this.name = name;
+    this.acknowledged = acknowledged;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   *
+   * @return offset of the first message not acknowledged by the endpoint
+   */
+  public synchronized long getAcknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * A message is handed to the endpoint.
+   *
+   * @param offset end offset of the message
+   */
+  public synchronized void track(long offset) {
+    if (offset > acknowledged) {
+      pending.add(offset);
+    }
+  }
+
+  /**
+   * A message was delivered to the endpoint.
+   *
+   * @param offset end offset of the message
+   */
+  public synchronized void acknowledge(long offset) {
+    if (!pending.remove(offset) || offset > failed) {
+      // sent again after a replay anyway
+      return;
+    }
+    delivered.add(offset);
+    long limit = Math.min(failed, pending.isEmpty() ? Long.MAX_VALUE : pending.first());
+    SortedSet<Long> done = delivered.headSet(limit);
+    if (!done.isEmpty()) {
+      acknowledged = Math.max(acknowledged, done.last());
+      done.clear();
+    }
+  }
+
+  /**
+   * A message could not be delivered to the endpoint. The cursor stays in
+   * front of it.
+   *
+   * @param offset end offset of the message
+   */
+  public synchronized void fail(long offset) {
+    if (pending.remove(offset)) {
+      failed = Math.min(failed, offset);
+      delivered.tailSet(failed).clear();
+    }
+  }
+
+  /**
+   * The endpoint reads the messages from the journal, behind its end. All
+   * messages up to the offset were handed to the endpoint, if they were meant
+   * for it.
+   *
+   * @param offset end offset of the last message read
+   */
+  public synchronized void readUpTo(long offset) {
+    readOffset = offset;
+  }
+
+  /**
+   * The endpoint read up to the end of the journal and gets the messages as
+   * they are appended again.
+   */
+  public synchronized void follow() {
+    readOffset = Long.MAX_VALUE;
+  }
+
+  /**
+   * Move the cursor over messages that were not meant for the endpoint. If
+   * nothing is pending, all messages up to the dispatched offset were either
+   * delivered or not routed to the endpoint, or up to the offset read if the
+   * endpoint reads behind the end of the journal.
+   *
+   * @param dispatched offset up to which all messages were handed to their
+   * endpoints
+   */
+  public synchronized void skipTo(long dispatched) {
+    if (pending.isEmpty() && failed == Long.MAX_VALUE) {
+      acknowledged = Math.max(acknowledged, Math.min(dispatched, readOffset));
+    }
+  }
+
+  /**
+   * Start over from the acknowledged offset, when the messages from there on
+   * are read from the journal again.
+   */
+  public synchronized void reset() {
+    pending.clear();
+    delivered.clear();
+    failed = Long.MAX_VALUE;
+    readOffset = acknowledged;
+  }
+
+}
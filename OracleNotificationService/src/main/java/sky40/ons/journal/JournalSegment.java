@@ -0,0 +1,210 @@
+package sky40.ons.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file of the journal, mapped into memory. Records are written one after
+ * the other as length, CRC32 checksum and payload. The file is preallocated,
+ * so a length of 0 marks the end of the records.
+ *
+ * Offsets are positions in the whole journal: the file name is the offset of
+ * its first record, and a new segment starts at the end offset of the
+ * previous one.
+ *
+ * Appending is not thread safe, reading records below the end offset is.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+class JournalSegment {
+
+  static final String SUFFIX = ".journal";
+
+  /**
+   * Length and checksum in front of each record.
+   */
+  static final int HEADER_SIZE = 8;
+
+  private final File file;
+  private final long baseOffset;
+  private final MappedByteBuffer buf;
+
+  /**
+   * Write position. Written after the record, so readers see complete
+   * records only.
+   */
+  private volatile int position;
+
+  private JournalSegment(File file, long baseOffset, MappedByteBuffer buf, int position) {
+    this.file = file;
+    this.baseOffset = baseOffset;
+    this.buf = buf;
+    this.position = position;
+  }
+
+  /**
+   * Create a new segment file.
+   *
+   * @param directory the journal directory
+   * @param baseOffset offset of the first record
+   * @param size size of the file in bytes
+   * @return the segment
+   * @throws IOException
+   */
+  static JournalSegment create(File directory, long baseOffset, int size) throws IOException {
+    File file = new File(directory, String.format("%020d", baseOffset) + SUFFIX);
+    return new JournalSegment(file, baseOffset, map(file, size), 0);
+  }
+
+  /**
+   * Open an existing segment file. The records are checked up to the first
+   * incomplete or corrupt one, which is where the next record is written.
+   *
+   * @param file the segment file
+   * @return the segment
+   * @throws IOException
+   */
+  static JournalSegment open(File file) throws IOException {
+    String name = file.getName();
+    long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    MappedByteBuffer buf = map(file, (int) file.length());
+    int pos = 0;
+    while (true) {
+      int length = readLength(buf, pos);
+      if (length <= 0 || !checksumMatches(buf, pos, length)) {
+        break;
+      }
+      pos += HEADER_SIZE + length;
+    }
+    return new JournalSegment(file, baseOffset, buf, pos);
+  }
+
+  private static MappedByteBuffer map(File file, int size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel()) {
+      // the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  long getBaseOffset() {
+    return baseOffset;
+  }
+
+  /**
+   *
+   * @return offset after the last record
+   */
+  long getEndOffset() {
+    return baseOffset + position;
+  }
+
+  /**
+   *
+   * @return true if the segment has no records
+   */
+  boolean isEmpty() {
+    return position == 0;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Append a record.
+   *
+   * @param payload the record
+   * @return false if the record does not fit into the segment
+   */
+  boolean append(byte[] payload) {
+    int pos = position;
+    if (pos + HEADER_SIZE + payload.length > buf.capacity()) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos + 4);
+    dup.putInt((int) crc.getValue());
+    dup.put(payload);
+    // the length last, so the record is complete when it is found
+    buf.putInt(pos, payload.length);
+    position = pos + HEADER_SIZE + payload.length;
+    return true;
+  }
+
+  /**
+   * Read the record at an offset.
+   *
+   * @param offset offset of the record, not below the base offset
+   * @return the record, or null if there is none at the offset
+   */
+  ByteBuffer read(long offset) {
+    int pos = (int) (offset - baseOffset);
+    if (pos < 0 || pos >= position) {
+      return null;
+    }
+    int length = readLength(buf, pos);
+    ByteBuffer ret = buf.duplicate();
+    ret.position(pos + HEADER_SIZE);
+    ret.limit(pos + HEADER_SIZE + length);
+    return ret.slice();
+  }
+
+  /**
+   * Count the records starting at or after an offset.
+   *
+   * @param offset the offset
+   * @return number of records
+   */
+  int countRecordsFrom(long offset) {
+    int ret = 0;
+    int end = position;
+    for (int pos = 0; pos < end; pos += HEADER_SIZE + readLength(buf, pos)) {
+      if (baseOffset + pos >= offset) {
+        ret++;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Write the records to disk.
+   */
+  void force() {
+    buf.force();
+  }
+
+  /**
+   * Delete the segment file. Must not be read afterwards.
+   *
+   * @return true if the file was deleted
+   */
+  boolean delete() {
+    return file.delete();
+  }
+
+  private static int readLength(ByteBuffer buf, int pos) {
+    if (pos + HEADER_SIZE > buf.capacity()) {
+      return 0;
+    }
+    int length = buf.getInt(pos);
+    return (pos + HEADER_SIZE + length > buf.capacity()) ? 0 : length;
+  }
+
+  private static boolean checksumMatches(ByteBuffer buf, int pos, int length) {
+    ByteBuffer payload = buf.duplicate();
+    payload.position(pos + HEADER_SIZE);
+    payload.limit(pos + HEADER_SIZE + length);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return buf.getInt(pos + 4) == (int) crc.getValue();
+  }
+
+}
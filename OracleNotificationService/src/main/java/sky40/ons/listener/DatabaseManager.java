@@ -1,50 +1,125 @@
 package sky40.ons.listener;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 import oracle.jdbc.NotificationRegistration;
 import oracle.jdbc.OracleStatement;
 import oracle.jdbc.dcn.DatabaseChangeListener;
 import oracle.jdbc.dcn.DatabaseChangeRegistration;
 import oracle.jdbc.driver.OracleConnection;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Component;
 import sky40.ons.ApplicationConfig;
 import sky40.ons.domain.ChangedRowSet;
+import sky40.ons.domain.ColumnDescriptor;
+import sky40.ons.util.StartupTimings;
 
 /**
- * The class that manages all operations with the database. Use as a singleton
- * by injecting as @autowired with spring.
+ * The class that manages all operations with a database. There is one per
+ * configured source, created and looked up by the {@link DatabaseSources}.
  *
  * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
  */
 @Slf4j
-@Component
 public class DatabaseManager {
 
-  DatabaseChangeRegistration reg = null;
-  OracleConnection conn = null;
+  /**
+   * Time zone dates and timestamps without time zone are read in.
+   */
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private final ApplicationConfig.Source source;
+
+  /**
+   * The change registrations the tables are partitioned across.
+   */
+  private final List<NotificationShard> shards = new ArrayList<>();
+
+  /**
+   * Pool of connections to query changed rows with.
+   */
+  private HikariDataSource queryPool = null;
 
-  @Autowired
-  private ApplicationConfig config;
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Statement texts of the change queries by table and chunk size.
+   */
+  private final Map<String, String> changesQueries = new ConcurrentHashMap<>();
+
+  /**
+   * System change number by table, up to which all changed rows were streamed
+   * (or from when on the table was listened to).
+   */
+  private final Map<String, Long> streamedScn = new ConcurrentHashMap<>();
+
+  /**
+   * Position of the interrupted stream by table, if the last stream failed.
+   */
+  private final Map<String, StreamCheckpoint> streamCheckpoints = new ConcurrentHashMap<>();
+
+  /**
+   * Lock by table, so a table is streamed by one thread at a time.
+   */
+  private final Map<String, Object> streamLocks = new ConcurrentHashMap<>();
+
+  /**
+   * Column descriptors by table. Invalidated when the table is altered.
+   */
+  private final Map<String, List<ColumnDescriptor>> tableColumns = new ConcurrentHashMap<>();
+
+  private final ApplicationConfig config;
+
+  /**
+   * Creates the manager of a source. Does not connect yet.
+   *
+   * @param source the database and tables to listen to
+   * @param config the application configuration, for the query settings
+   * @param meterRegistry registry of the pool metrics
+   */
+  public DatabaseManager(ApplicationConfig.Source source, ApplicationConfig config, MeterRegistry meterRegistry) {
+    this.source = source;
+    this.config = config;
+    this.meterRegistry = meterRegistry;
+  }
 
   public ApplicationConfig getConfig() {
     return config;
   }
 
-  @Autowired
-  public void setConfig(ApplicationConfig config) {
-    this.config = config;
+  /**
+   *
+   * @return name of the source
+   */
+  public String getName() {
+    return source.getName();
   }
 
   /**
@@ -52,22 +127,39 @@ public class DatabaseManager {
    * taken from application.properties file.
    *
    * @param listener The Change listener to call on changes.
+   * @param timings takes the durations of the startup phases
    */
-  public void startup(DatabaseChangeListener listener) {
-    log.info("Database Manager startup");
+  public void startup(DatabaseChangeListener listener, StartupTimings timings) {
+    log.info("Database Manager startup for source " + getName());
     log.info("Connecting to database ...");
 
     try {
-      conn = connectDatabase();
-      reg = getNotificationRegistration(conn);
-      if (reg != null) {
-        log.info("Registered change notification with id " + reg.getRegId());
-        NotificationRegistration.RegistrationState state = reg.getState();
-        log.info("registration STATE is " + state);
-        log.info("adding listener ...");
-        reg.addListener(listener);
-        registerTablesOnListener(conn, reg);
+      long start = System.nanoTime();
+      shards.addAll(partitionTables());
+      for (NotificationShard shard : shards) {
+        shard.conn = connectDatabase();
       }
+      timings.record("connect", start);
+
+      start = System.nanoTime();
+      queryPool = createQueryPool();
+      timings.record("query-pool", start);
+
+      start = System.nanoTime();
+      for (NotificationShard shard : shards) {
+        shard.reg = getNotificationRegistration(shard);
+        if (shard.reg != null) {
+          log.info("Registered change notification with id " + shard.reg.getRegId() + " on port " + shard.getPort());
+          NotificationRegistration.RegistrationState state = shard.reg.getState();
+          log.info("registration STATE is " + state);
+          log.info("adding listener ...");
+          // events are handed to the listener on the worker of the shard
+          shard.reg.addListener(listener, shard.getWorker());
+          registerTablesOnListener(shard);
+        }
+      }
+      initStreamedScn();
+      timings.record("registration", start);
 
     } catch (SQLException ex) {
       log.error("SQL error: " + ex);
@@ -77,31 +169,262 @@ public class DatabaseManager {
   }
 
   /**
-   * Register the tables to listen changes for
+   * Partition the configured tables across the configured number of shards.
+   * Tables pinned to a shard are put there, the others are spread round
+   * robin. Shard i listens on the client port + i.
    *
-   * @param conn The databsse connection object.
-   * @param reg The change registration handler object to attach to.
+   * @return the shards, with their tables
+   * @throws RuntimeException if a table is pinned to a shard that does not
+   * exist
+   */
+  private List<NotificationShard> partitionTables() {
+    ApplicationConfig.Notification notification = source.getNotification();
+    int count = Math.max(1, notification.getShards());
+    List<NotificationShard> ret = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ret.add(new NotificationShard(getName(), i, notification.getClientPort() + i));
+    }
+    int next = 0;
+    for (String tableName : notification.getTableName()) {
+      Integer pinned = findPinnedShard(tableName);
+      if (pinned != null) {
+        if (pinned < 0 || pinned >= count) {
+          throw new RuntimeException("Table " + tableName + " of source " + getName() + " is pinned to shard " + pinned
+                  + ", but there are only shards 0 to " + (count - 1) + ".");
+        }
+        ret.get(pinned).getTables().add(tableName);
+      } else {
+        ret.get(next++ % count).getTables().add(tableName);
+      }
+    }
+    // a shard without tables would only hold a connection and a port
+    ret.removeIf(shard -> shard.getTables().isEmpty() && shard.getIndex() > 0);
+    return ret;
+  }
+
+  private Integer findPinnedShard(String tableName) {
+    for (Map.Entry<String, Integer> entry : source.getNotification().getTableShard().entrySet()) {
+      if (entry.getKey().equalsIgnoreCase(tableName)) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Register the tables of a shard to listen changes for
+   *
+   * @param shard The shard with the connection and registration to use.
    * @throws SQLException
    */
-  private void registerTablesOnListener(OracleConnection conn, DatabaseChangeRegistration reg) throws SQLException {
+  private void registerTablesOnListener(NotificationShard shard) throws SQLException {
     // add objects in the registration:
-    try (Statement stmt = conn.createStatement()) {
+    try (Statement stmt = shard.conn.createStatement()) {
       OracleStatement ostmt = (OracleStatement) stmt;
       // associate the statement with the registration:
-      ostmt.setDatabaseChangeRegistration(reg);
+      ostmt.setDatabaseChangeRegistration(shard.reg);
 
-      for (String tableName : config.getNotification().getTableName()) {
+      for (String tableName : shard.getTables()) {
         try (ResultSet rs = ostmt.executeQuery("SELECT * FROM " + tableName + " WHERE rownum<=1")) {
           while (rs.next()) {
           }
-          String[] tableNames = reg.getTables();
-          for (int i = 0; i < tableNames.length; i++) {
-            log.info("table " + tableNames[i] + " will be listened for.");
+        }
+      }
+      for (String tableName : shard.getRegisteredTables()) {
+        log.info("table " + tableName + " will be listened for on shard " + (shard.getIndex() + 1) + " of source " + getName() + ".");
+      }
+    }
+  }
+
+  /**
+   *
+   * @return names of the tables registered on all shards
+   */
+  private List<String> getRegisteredTables() {
+    List<String> ret = new ArrayList<>();
+    for (NotificationShard shard : shards) {
+      Collections.addAll(ret, shard.getRegisteredTables());
+    }
+    return ret;
+  }
+
+  /**
+   * Prepare the queries of changed rows, so the first events do not pay for
+   * it: The column metadata of the registered tables is resolved, and the
+   * change queries of all chunk sizes are executed once with empty row ids on
+   * the idle connections of the pool. This parses the statements in the
+   * database and fills the statement caches of the connections.
+   *
+   * @param columnsByTable the columns to query by table, as currently
+   * requested by the recipients (null for all columns)
+   * @param timings takes the durations of the warm-up phases
+   */
+  public void warmUp(Function<String, Set<String>> columnsByTable, StartupTimings timings) {
+    List<String> tableNames = getRegisteredTables();
+    if (tableNames.isEmpty() || queryPool == null) {
+      log.warn("Not registered, skipping warm-up of the change queries.");
+      return;
+    }
+    List<Connection> queryConns = new ArrayList<>();
+    try {
+      for (int i = 0; i < Math.max(1, getPoolConfig().getMinIdle()); i++) {
+        queryConns.add(borrowQueryConnection());
+      }
+
+      long start = System.nanoTime();
+      Map<String, String> selectLists = new HashMap<>();
+      for (String tableName : tableNames) {
+        selectLists.put(tableName, buildSelectList(selectColumns(queryConns.get(0), tableName, columnsByTable.apply(tableName))));
+      }
+      timings.record("metadata", start);
+
+      start = System.nanoTime();
+      for (Connection queryConn : queryConns) {
+        for (Map.Entry<String, String> entry : selectLists.entrySet()) {
+          for (int chunkSize : config.getQuery().getChunkSize()) {
+            try (PreparedStatement stmt = queryConn.prepareStatement(buildChangesQuery(entry.getKey(), entry.getValue(), chunkSize))) {
+              for (int i = 0; i < chunkSize; i++) {
+                stmt.setString(i + 1, null);
+              }
+              try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                }
+              }
+            }
           }
         }
       }
+      timings.record("statements", start);
+      log.info("Change queries of " + tableNames.size() + " table(s) prepared on " + queryConns.size() + " connection(s).");
+    } catch (SQLException ex) {
+      log.warn("Warm-up of the change queries failed: " + ex);
+    } finally {
+      for (Connection queryConn : queryConns) {
+        try {
+          queryConn.close();
+        } catch (SQLException ex) {
+          log.error("Error returning connection to pool: " + ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remember the current system change number for all registered tables, so
+   * a later stream of all changed rows starts from here.
+   */
+  private void initStreamedScn() {
+    try (Connection queryConn = borrowQueryConnection()) {
+      long scn = querySystemChangeNumber(queryConn);
+      if (scn > 0) {
+        for (String tableName : getRegisteredTables()) {
+          streamedScn.put(tableName, scn);
+        }
+      }
+    } catch (SQLException ex) {
+      log.error("Error initializing system change numbers: " + ex);
+    }
+  }
+
+  /**
+   * Query the current system change number of the database.
+   *
+   * !Note: accessing is allowed if this was granted: GRANT EXECUTE ON
+   * DBMS_FLASHBACK to ADMIN
+   *
+   * @param queryConn connection to query with
+   * @return the system change number or -1 if it is not available
+   */
+  private long querySystemChangeNumber(Connection queryConn) {
+    try (PreparedStatement stmt = queryConn.prepareStatement("SELECT dbms_flashback.get_system_change_number FROM dual");
+            ResultSet rs = stmt.executeQuery()) {
+      if (rs.next()) {
+        return rs.getLong(1);
+      }
+    } catch (SQLException ex) {
+      log.warn("System change number not available, streaming all rows instead: " + ex);
+    }
+    return -1;
+  }
+
+  /**
+   * Closes the query connection pool and the registration connections.
+   */
+  public void shutdown() {
+    if (queryPool != null) {
+      queryPool.close();
+    }
+    for (NotificationShard shard : shards) {
+      shard.getWorker().shutdown();
+      if (shard.conn != null) {
+        try {
+          shard.conn.close();
+        } catch (SQLException ex) {
+          log.error("Error closing database connection: " + ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the pool of connections used to query changed rows. Kept apart
+   * from the registration connection, so row queries for several tables and
+   * events can run concurrently.
+   *
+   * @return the connection pool
+   */
+  private HikariDataSource createQueryPool() {
+    ApplicationConfig.Pool pool = getPoolConfig();
+
+    HikariConfig hikari = new HikariConfig();
+    hikari.setPoolName("ons-query-" + getName());
+    hikari.setDriverClassName("oracle.jdbc.OracleDriver");
+    hikari.setJdbcUrl(getDatabaseUrl());
+    hikari.setUsername(source.getOracle().getUser());
+    hikari.setPassword(source.getOracle().getPass());
+    hikari.setMaximumPoolSize(pool.getMaxSize());
+    hikari.setMinimumIdle(pool.getMinIdle());
+    hikari.setConnectionTimeout(pool.getConnectionTimeout());
+    hikari.setValidationTimeout(pool.getValidationTimeout());
+    hikari.setConnectionTestQuery(pool.getValidationQuery());
+    hikari.setReadOnly(true);
+    hikari.setMetricRegistry(meterRegistry);
+
+    HikariDataSource ret = new HikariDataSource(hikari);
+    log.info("Query connection pool of source " + getName() + " created with max. " + pool.getMaxSize() + " connections.");
+    return ret;
+  }
 
+  /**
+   *
+   * @return the pool configuration of the source, or else the global one
+   */
+  ApplicationConfig.Pool getPoolConfig() {
+    return (source.getPool() != null) ? source.getPool() : config.getPool();
+  }
+
+  /**
+   * Borrow a connection from the query pool. The implicit statement cache of
+   * the driver is enabled on first use of a physical connection.
+   *
+   * @return pooled connection, to be closed after use
+   * @throws SQLException
+   */
+  private Connection borrowQueryConnection() throws SQLException {
+    Connection ret = queryPool.getConnection();
+    OracleConnection oraConn = ret.unwrap(OracleConnection.class);
+    if (!oraConn.getImplicitCachingEnabled()) {
+      oraConn.setImplicitCachingEnabled(true);
+      oraConn.setStatementCacheSize(config.getQuery().getStatementCacheSize());
     }
+    return ret;
+  }
+
+  /**
+   * @return the JDBC url of the configured database
+   */
+  private String getDatabaseUrl() {
+    return "jdbc:oracle:thin:@" + source.getOracle().getHostname() + ":" + source.getOracle().getPort() + ":" + source.getOracle().getDatabase(); // localhost:1521:XE";
   }
 
   /**
@@ -112,9 +435,9 @@ public class DatabaseManager {
    * @throws ClassNotFoundException
    */
   private OracleConnection connectDatabase() throws SQLException, ClassNotFoundException {
-    String dbURL = "jdbc:oracle:thin:@" + config.getOracle().getHostname() + ":" + config.getOracle().getPort() + ":" + config.getOracle().getDatabase(); // localhost:1521:XE";
-    String username = config.getOracle().getUser(); // z.B. "ADMIN";
-    String password = config.getOracle().getPass(); // z.B. "ISTRATOR" 
+    String dbURL = getDatabaseUrl();
+    String username = source.getOracle().getUser(); // z.B. "ADMIN";
+    String password = source.getOracle().getPass(); // z.B. "ISTRATOR" 
 
     Class.forName("oracle.jdbc.OracleDriver");
     Connection dbConn = DriverManager.getConnection(dbURL, username, password);
@@ -136,11 +459,12 @@ public class DatabaseManager {
    * !Note: accessing is allowed if this was granted: GRANT EXECUTE ON
    * DBMS_CQ_NOTIFICATION to ADMIN and GRANT CHANGE NOTIFICATION to ADMIN
    *
-   * @param oraConn The connection object to use.
+   * @param shard The shard with the connection to use and the port to listen
+   * on.
    * @return The registration object.
    * @throws SQLException Is thrown in case of an invalid operation.
    */
-  private DatabaseChangeRegistration getNotificationRegistration(OracleConnection oraConn) throws SQLException {
+  private DatabaseChangeRegistration getNotificationRegistration(NotificationShard shard) throws SQLException {
     DatabaseChangeRegistration ret = null;
 
     if (ret == null) // build a new registration
@@ -155,16 +479,36 @@ public class DatabaseManager {
       properties.setProperty(OracleConnection.DCN_IGNORE_INSERTOP, "false");
       properties.setProperty(OracleConnection.DCN_IGNORE_UPDATEOP, "false");
       properties.setProperty(OracleConnection.DCN_NOTIFY_ROWIDS, "true");
-      properties.setProperty(OracleConnection.NTF_LOCAL_HOST, config.getNotification().getClientHostname());
-      properties.setProperty(OracleConnection.NTF_LOCAL_TCP_PORT, config.getNotification().getClientPort() + "");
+      properties.setProperty(OracleConnection.NTF_LOCAL_HOST, source.getNotification().getClientHostname());
+      properties.setProperty(OracleConnection.NTF_LOCAL_TCP_PORT, shard.getPort() + "");
 
-      ret = oraConn.registerDatabaseChangeNotification(properties);
+      ret = shard.conn.registerDatabaseChangeNotification(properties);
     }
     return ret;
   }
 
-  long getRegistrationId() {
-    return (this.reg == null) ? -1 : this.reg.getRegId();
+  /**
+   *
+   * @param regId id of a registration
+   * @return true if it is the registration of one of the shards
+   */
+  boolean isRegistered(long regId) {
+    return findShard(regId) >= 0;
+  }
+
+  /**
+   * Find the shard of a registration.
+   *
+   * @param regId id of a registration
+   * @return index of the shard, -1 if it is none of the shards
+   */
+  public int findShard(long regId) {
+    for (NotificationShard shard : shards) {
+      if (shard.getRegistrationId() == regId) {
+        return shard.getIndex();
+      }
+    }
+    return -1;
   }
 
   /**
@@ -173,17 +517,22 @@ public class DatabaseManager {
    * @param regId id of the registration
    */
   void removeRegistration(int regId) {
+    if (shards.isEmpty() || shards.get(0).conn == null) {
+      return;
+    }
     try {
-      log.info(this.reg.getRegistrationOptions().toString());
-      this.conn.unregisterDatabaseChangeNotification(regId, config.getOracle().getHostname(), config.getOracle().getPort());
+      shards.get(0).conn.unregisterDatabaseChangeNotification(regId, source.getOracle().getHostname(), source.getOracle().getPort());
     } catch (SQLException ex) {
       log.error("Error unregistering registration with id " + regId + ":" + ex);
     }
   }
 
   /**
-   * Query all changes (on a single table) at once and return the changed
-   * entities.
+   * Query all changes (on a single table) and return the changed entities. The
+   * row ids are queried in chunks of the configured sizes with bind variables,
+   * so the statements are parsed once and then served from the statement
+   * cache. Uses a connection of the query pool, so it may be called
+   * concurrently.
    *
    * @param tableName Name of the table to query changes.
    * @param changedRowMap map of changed rows
@@ -191,61 +540,486 @@ public class DatabaseManager {
    * @throws SQLException
    */
   public ChangedRowSet queryChanges(String tableName, HashMap<String, Set<String>> changedRowMap) throws SQLException {
+    return queryChanges(tableName, changedRowMap, null);
+  }
 
-    String query = buildChangesQuery(tableName, changedRowMap.keySet());
+  /**
+   * Query the changes (on a single table) for some of the columns only.
+   *
+   * @param tableName Name of the table to query changes.
+   * @param changedRowMap map of changed rows
+   * @param columnNames names of the columns to query, null for all columns.
+   * Names that are no columns of the table are ignored.
+   * @return map with changed rows
+   * @throws SQLException
+   */
+  public ChangedRowSet queryChanges(String tableName, HashMap<String, Set<String>> changedRowMap, Collection<String> columnNames) throws SQLException {
 
-    try (Statement stmt = conn.createStatement()) {
-      OracleStatement ostmt = (OracleStatement) stmt;
+    List<String> rowIds = new ArrayList<>(changedRowMap.keySet());
+    if (rowIds.isEmpty()) {
+      return createRowSetBuilder(Collections.emptyList()).build();
+    }
 
-      try (ResultSet rs = ostmt.executeQuery(query)) {
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int cols = rsmd.getColumnCount();
+    try (Connection queryConn = borrowQueryConnection()) {
+      List<ColumnDescriptor> columns = selectColumns(queryConn, tableName, columnNames);
+      String selectList = buildSelectList(columns);
+      ChangedRowSet.Builder rows = createRowSetBuilder(columns);
+      int chunkStart = 0;
+      while (chunkStart < rowIds.size()) {
+        int chunkSize = findChunkSize(rowIds.size() - chunkStart);
+        int chunkEnd = Math.min(chunkStart + chunkSize, rowIds.size());
+        queryChunk(queryConn, tableName, selectList, chunkSize, rowIds.subList(chunkStart, chunkEnd), changedRowMap, rows);
+        chunkStart = chunkEnd;
+      }
+      return rows.build();
+    }
+  }
 
-        ArrayList<String> columns = new ArrayList<>();
-        for (int col = 0; col < cols; col++) {
-          String name = rsmd.getColumnName(col + 1);
-          columns.add(name);
+  /**
+   * Stream all rows of a table changed since the last stream, in chunks of
+   * the configured size. Used when Oracle notifies a change of all rows
+   * (ALL_ROWS) instead of single row ids. The rows are found by their
+   * ORA_ROWSCN, which is tracked per block unless the table was created with
+   * ROWDEPENDENCIES, so unchanged rows of a changed block are streamed too.
+   * The chunks are paginated by row id, so only a single chunk is held in
+   * memory at a time.
+   *
+   * A table is streamed by one thread at a time; a concurrent stream waits
+   * and then streams the rows changed meanwhile only. After each chunk, the
+   * position of the stream is checkpointed. If a stream fails, the next one
+   * continues after the last chunk handed on, and then streams the rows
+   * before it that changed since.
+   *
+   * @param tableName Name of the table to query changes.
+   * @param operations operations to report for each row
+   * @param columnNames names of the columns to query, null for all columns
+   * @param consumer takes each chunk of rows and if it is the last one
+   * @throws SQLException
+   */
+  public void streamAllChanges(String tableName, Set<String> operations, Collection<String> columnNames, BiConsumer<ChangedRowSet, Boolean> consumer) throws SQLException {
+    synchronized (streamLocks.computeIfAbsent(tableName, name -> new Object())) {
+      try (Connection queryConn = borrowQueryConnection()) {
+        List<ColumnDescriptor> columns = selectColumns(queryConn, tableName, columnNames);
+        String selectList = buildSelectList(columns);
+        long currentScn = querySystemChangeNumber(queryConn);
+        StreamCheckpoint interrupted = streamCheckpoints.get(tableName);
+
+        if (interrupted == null) {
+          long sinceScn = streamedScn.getOrDefault(tableName, 0L);
+          log.info("Streaming rows of " + tableName + " changed since SCN " + sinceScn + " ...");
+          streamChunks(queryConn, tableName, columns, selectList, operations,
+                  new StreamCheckpoint(sinceScn, currentScn, null), null, consumer, true);
+        } else {
+          log.info("Resuming the stream of rows of " + tableName + " changed since SCN " + interrupted.sinceScn
+                  + " after row id " + interrupted.lastRowId + " ...");
+          streamChunks(queryConn, tableName, columns, selectList, operations,
+                  interrupted, null, consumer, false);
+          // the rows streamed before the failure may have changed since
+          streamChunks(queryConn, tableName, columns, selectList, operations,
+                  new StreamCheckpoint(interrupted.untilScn, interrupted.untilScn, null), interrupted.lastRowId, consumer, true);
         }
 
-        HashMap<String, List<String>> rows = new HashMap<>();
+        streamCheckpoints.remove(tableName);
+        if (currentScn > 0) {
+          streamedScn.put(tableName, currentScn);
+        }
+      }
+    }
+  }
 
-        while (rs.next()) {
-          List<String> values = new ArrayList<>();
-          for (int col = 0; col < cols; col++) {
-            String value = rs.getString(col + 1);
-            values.add(value);
-          }
-          rows.put(rs.getString("rowid"), values);
+  /**
+   * Stream the chunks of rows changed since a system change number, in the
+   * order of their row ids, checkpointing the stream after each chunk.
+   *
+   * @param queryConn connection to query with
+   * @param tableName name of the table to query
+   * @param columns the selected columns
+   * @param selectList the columns to select
+   * @param operations operations to report for each row
+   * @param from the system change numbers and the row id to continue after,
+   * null to start with the first row
+   * @param upToRowId last row id to stream, null for all
+   * @param consumer takes each chunk of rows and if it is the last one
+   * @param isLastPass false if the last chunk is not the last one for the
+   * consumer
+   * @throws SQLException
+   */
+  private void streamChunks(Connection queryConn, String tableName, List<ColumnDescriptor> columns, String selectList, Set<String> operations,
+          StreamCheckpoint from, String upToRowId, BiConsumer<ChangedRowSet, Boolean> consumer, boolean isLastPass) throws SQLException {
+    int chunkSize = config.getQuery().getStreamChunkSize();
+    String lastRowId = from.lastRowId;
+    boolean more = true;
+    while (more) {
+      String query = buildStreamQuery(tableName, selectList, lastRowId != null, upToRowId != null);
+      try (PreparedStatement stmt = queryConn.prepareStatement(query)) {
+        stmt.setFetchSize(Math.min(chunkSize + 1, config.getQuery().getFetchSize()));
+        int param = 1;
+        stmt.setLong(param++, from.sinceScn);
+        if (lastRowId != null) {
+          stmt.setString(param++, lastRowId);
         }
+        if (upToRowId != null) {
+          stmt.setString(param++, upToRowId);
+        }
+        // one more row than needed, to know if there is another chunk
+        stmt.setInt(param, chunkSize + 1);
 
-        ChangedRowSet ret = new ChangedRowSet(rows, columns, changedRowMap);
-        return ret;
+        ChangedRowSet.Builder rows = createRowSetBuilder(columns);
+        String chunkEnd;
+        try (ResultSet rs = stmt.executeQuery()) {
+          chunkEnd = readRows(rs, chunkSize, rows, rowId -> operations);
+          more = rs.next();
+        }
+        consumer.accept(rows.build(), isLastPass && !more);
+        if (chunkEnd != null) {
+          lastRowId = chunkEnd;
+          // a failing stream is continued here
+          streamCheckpoints.put(tableName, new StreamCheckpoint(from.sinceScn, from.untilScn, lastRowId));
+        }
       }
     }
   }
 
   /**
-   * Build a query on changed rows for the table.
+   * Query a single chunk of row ids. If the chunk is smaller than the chunk
+   * size, the remaining bind variables are padded with the last row id.
    *
+   * @param queryConn connection to query with
    * @param tableName name of the table to query
-   * @param changedRows map of the rows to query the changes for.
+   * @param selectList the columns to select
+   * @param chunkSize number of bind variables of the statement
+   * @param rowIds row ids to query, not more than the chunk size
+   * @param changedRowMap operations by row id
+   * @param rows the builder to add the rows to
+   * @throws SQLException
+   */
+  private void queryChunk(Connection queryConn, String tableName, String selectList, int chunkSize, List<String> rowIds,
+          Map<String, Set<String>> changedRowMap, ChangedRowSet.Builder rows) throws SQLException {
+    try (PreparedStatement stmt = queryConn.prepareStatement(buildChangesQuery(tableName, selectList, chunkSize))) {
+      stmt.setFetchSize(config.getQuery().getFetchSize());
+      for (int i = 0; i < chunkSize; i++) {
+        stmt.setString(i + 1, rowIds.get(Math.min(i, rowIds.size() - 1)));
+      }
+
+      try (ResultSet rs = stmt.executeQuery()) {
+        readRows(rs, Integer.MAX_VALUE, rows, changedRowMap::get);
+      }
+    }
+  }
+
+  /**
+   * Create the builder of a row set for the selected columns.
+   *
+   * @param columns the selected columns
+   * @return the builder
+   */
+  private ChangedRowSet.Builder createRowSetBuilder(List<ColumnDescriptor> columns) {
+    boolean typedJson = config.getQuery().isTypedJson();
+    List<String> columnNames = new ArrayList<>(columns.size());
+    ChangedRowSet.ColumnType[] columnTypes = new ChangedRowSet.ColumnType[columns.size()];
+    for (int col = 0; col < columnTypes.length; col++) {
+      columnNames.add(columns.get(col).getName());
+      columnTypes[col] = typedJson ? columns.get(col).getType() : columns.get(col).getStringType();
+    }
+    return new ChangedRowSet.Builder(columnNames, columnTypes).setTypedJson(typedJson);
+  }
+
+  /**
+   * Read the rows of a change query. The first column is expected to be the
+   * row id, followed by the columns of the builder. Each value is read by the
+   * getter of its type, LOBs are streamed.
+   *
+   * @param rs the result set to read
+   * @param maxRows maximum number of rows to read
+   * @param rows the builder to add the rows to
+   * @param operations gives the operations by row id
+   * @return the row id of the last row read or null if there was none
+   * @throws SQLException
+   */
+  private String readRows(ResultSet rs, int maxRows, ChangedRowSet.Builder rows, Function<String, Set<String>> operations) throws SQLException {
+    String rowId = null;
+    int count = 0;
+    Calendar utc = Calendar.getInstance(UTC);
+    while (count < maxRows && rs.next()) {
+      rowId = rs.getString(1);
+      rows.addRow(rowId, operations.apply(rowId));
+      for (int col = 0; col < rows.columnSize(); col++) {
+        readValue(rs, col + 2, rows, col, utc);
+      }
+      count++;
+    }
+    return rowId;
+  }
+
+  /**
+   * Read a value of the current row.
+   *
+   * @param rs the result set to read
+   * @param column the column index in the result set
+   * @param rows the builder to set the value in
+   * @param col the column index in the builder
+   * @param utc calendar to read timestamps in UTC with
+   * @throws SQLException
+   */
+  private void readValue(ResultSet rs, int column, ChangedRowSet.Builder rows, int col, Calendar utc) throws SQLException {
+    switch (rows.getColumnType(col)) {
+      case LONG:
+        long longValue = rs.getLong(column);
+        if (rs.wasNull()) {
+          rows.setNull(col);
+        } else {
+          rows.setLong(col, longValue);
+        }
+        break;
+      case DOUBLE:
+        double doubleValue = rs.getDouble(column);
+        if (rs.wasNull()) {
+          rows.setNull(col);
+        } else {
+          rows.setDouble(col, doubleValue);
+        }
+        break;
+      case DECIMAL:
+        BigDecimal decimal = rs.getBigDecimal(column);
+        rows.setString(col, (decimal == null) ? null : decimal.toPlainString());
+        break;
+      case TIMESTAMP:
+        Timestamp timestamp = rs.getTimestamp(column, utc);
+        if (timestamp == null) {
+          rows.setNull(col);
+        } else {
+          rows.setLong(col, timestamp.getTime());
+        }
+        break;
+      case CLOB:
+        rows.setString(col, readClob(rs, column));
+        break;
+      case BLOB:
+        rows.setString(col, readBlob(rs, column));
+        break;
+      default:
+        rows.setString(col, rs.getString(column));
+    }
+  }
+
+  private static String readClob(ResultSet rs, int column) throws SQLException {
+    try (Reader reader = rs.getCharacterStream(column)) {
+      if (reader == null) {
+        return null;
+      }
+      StringBuilder ret = new StringBuilder();
+      char[] buf = new char[8192];
+      int len;
+      while ((len = reader.read(buf)) >= 0) {
+        ret.append(buf, 0, len);
+      }
+      return ret.toString();
+    } catch (IOException ex) {
+      throw new SQLException("Reading CLOB failed.", ex);
+    }
+  }
+
+  private static String readBlob(ResultSet rs, int column) throws SQLException {
+    try (InputStream in = rs.getBinaryStream(column)) {
+      if (in == null) {
+        return null;
+      }
+      ByteArrayOutputStream ret = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) >= 0) {
+        ret.write(buf, 0, len);
+      }
+      return Base64.getEncoder().encodeToString(ret.toByteArray());
+    } catch (IOException ex) {
+      throw new SQLException("Reading BLOB failed.", ex);
+    }
+  }
+
+  /**
+   * Find the columns to select, in the order of the table. Only existing
+   * columns are taken.
+   *
+   * @param queryConn connection to look up the columns of the table with
+   * @param tableName name of the table to query
+   * @param columnNames names of the columns to query, null for all columns
+   * @return the columns, empty if none of the names is a column
+   * @throws SQLException
+   */
+  private List<ColumnDescriptor> selectColumns(Connection queryConn, String tableName, Collection<String> columnNames) throws SQLException {
+    List<ColumnDescriptor> columns = getTableColumns(queryConn, tableName);
+    if (columnNames == null) {
+      return columns;
+    }
+    List<ColumnDescriptor> ret = new ArrayList<>();
+    for (ColumnDescriptor column : columns) {
+      if (columnNames.contains(column.getName())) {
+        ret.add(column);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Build the list of columns to select. The names are taken from the meta
+   * data of the table and quoted, so mixed case names and names that are
+   * reserved words can be selected. The columns are always named, so the
+   * statement text changes with the columns of the table.
+   *
+   * @param columns the columns to select
+   * @return the select list, empty if there are no columns
+   * @throws SQLException if a name cannot be quoted
+   */
+  private static String buildSelectList(List<ColumnDescriptor> columns) throws SQLException {
+    StringBuilder ret = new StringBuilder();
+    for (ColumnDescriptor column : columns) {
+      if (column.getName().isEmpty() || column.getName().indexOf('"') >= 0) {
+        throw new SQLException("Column name " + column.getName() + " cannot be quoted.");
+      }
+      if (ret.length() > 0) {
+        ret.append(", ");
+      }
+      ret.append('"').append(column.getName()).append('"');
+    }
+    return ret.toString();
+  }
+
+  /**
+   * Get the column descriptors of a table. Looked up once per table, until
+   * the table is altered.
+   *
+   * @param queryConn connection to look up the columns with
+   * @param tableName name of the table
+   * @return the column descriptors in the order of the table
+   * @throws SQLException
+   */
+  private List<ColumnDescriptor> getTableColumns(Connection queryConn, String tableName) throws SQLException {
+    List<ColumnDescriptor> ret = tableColumns.get(tableName);
+    if (ret == null) {
+      ret = new ArrayList<>();
+      try (PreparedStatement stmt = queryConn.prepareStatement("SELECT * FROM " + tableName + " WHERE 1=0");
+              ResultSet rs = stmt.executeQuery()) {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        for (int col = 0; col < rsmd.getColumnCount(); col++) {
+          ret.add(ColumnDescriptor.of(rsmd, col + 1));
+        }
+      }
+      ret = Collections.unmodifiableList(ret);
+      tableColumns.put(tableName, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * Forget the columns and statement texts of a table, after it was altered
+   * or dropped. They are looked up again on the next query.
+   *
+   * @param tableName name of the table
+   */
+  public void invalidateTable(String tableName) {
+    if (tableColumns.remove(tableName) != null) {
+      log.info("Column descriptors of " + tableName + " invalidated.");
+    }
+    changesQueries.keySet().removeIf(key -> key.startsWith(tableName + "#"));
+  }
+
+  /**
+   * Find the chunk size (number of bind variables) to use for the next query.
+   * That is the largest configured size if there are more row ids left, or
+   * else the smallest size that still takes all remaining row ids.
+   *
+   * @param remaining number of row ids left to query
+   * @return the chunk size to use
+   */
+  int findChunkSize(int remaining) {
+    int largest = 0;
+    int fitting = Integer.MAX_VALUE;
+    for (int size : config.getQuery().getChunkSize()) {
+      largest = Math.max(largest, size);
+      if (size >= remaining) {
+        fitting = Math.min(fitting, size);
+      }
+    }
+    return (fitting == Integer.MAX_VALUE) ? largest : fitting;
+  }
+
+  /**
+   * Build a query for a chunk of rows changed since a system change number,
+   * ordered by row id. Parameters are the system change number, the row id to
+   * continue after (if not the first chunk), the last row id (if bounded) and
+   * the maximum number of rows.
+   *
+   * @param tableName name of the table to query
+   * @param selectList the columns to select
+   * @param isContinued true if the chunk follows a previous one
+   * @param isBounded true if the rows up to a row id are queried only
    * @return Db query
    */
-  String buildChangesQuery(String tableName, Set<String> changedRows) {
-    // like this: SELECT rowid, admin.aircraft.* FROM admin.aircraft WHERE rowid IN ('AAAE6zAAFAAAAJ7AAB','AAAE6zAAFAAAAJ7AAC');
-    StringBuilder query = new StringBuilder("SELECT rowid, " + tableName + ".* FROM " + tableName + " WHERE rowid IN (");
-    int i = 0;
-    for (String id : changedRows) {
-      if (i++ > 0) {
-        query.append(", ");
+  String buildStreamQuery(String tableName, String selectList, boolean isContinued, boolean isBounded) {
+    String key = tableName + (isContinued ? "#next" : "#first") + (isBounded ? "#bounded#" : "#") + selectList;
+    String query = changesQueries.get(key);
+    if (query == null) {
+      query = "SELECT * FROM (SELECT ROWIDTOCHAR(rowid) row_id" + (selectList.isEmpty() ? "" : ", " + selectList) + " FROM " + tableName
+              + " WHERE ORA_ROWSCN > ?"
+              + (isContinued ? " AND rowid > CHARTOROWID(?)" : "")
+              + (isBounded ? " AND rowid <= CHARTOROWID(?)" : "")
+              + " ORDER BY rowid) WHERE rownum <= ?";
+      changesQueries.put(key, query);
+
+      log.debug("query is : " + query);
+    }
+    return query;
+  }
+
+  /**
+   * Build a query on changed rows for the table. The statement text only
+   * depends on the table, the selected columns and the number of row ids, so
+   * it is cached.
+   *
+   * @param tableName name of the table to query
+   * @param selectList the columns to select
+   * @param chunkSize number of row ids (bind variables) to query
+   * @return Db query
+   */
+  String buildChangesQuery(String tableName, String selectList, int chunkSize) {
+    String key = tableName + "#" + chunkSize + "#" + selectList;
+    String query = changesQueries.get(key);
+    if (query == null) {
+      // like this: SELECT rowid, "ID", "NAME" FROM admin.aircraft WHERE rowid IN (?, ?);
+      StringBuilder sb = new StringBuilder("SELECT rowid" + (selectList.isEmpty() ? "" : ", " + selectList) + " FROM " + tableName + " WHERE rowid IN (");
+      for (int i = 0; i < chunkSize; i++) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        sb.append("?");
       }
-      query.append("'").append(id).append("'");
+      sb.append(")");
+      query = sb.toString();
+      changesQueries.put(key, query);
+
+      log.debug("query is : " + query);
     }
-    query.append(")");
+    return query;
+  }
+
+  /**
+   * Position of a stream of changed rows: the rows after the row id are
+   * streamed if changed since the first system change number, the rows up to
+   * it were streamed as of the second one.
+   *
+   * Immutable type.
+   */
+  private static class StreamCheckpoint {
 
-    log.debug("query is : " + query.toString());
-    return query.toString();
+    private final long sinceScn;
+    private final long untilScn;
+    private final String lastRowId;
 
+    StreamCheckpoint(long sinceScn, long untilScn, String lastRowId) {
+      this.sinceScn = sinceScn;
+      this.untilScn = untilScn;
+      this.lastRowId = lastRowId;
+    }
   }
 
 }
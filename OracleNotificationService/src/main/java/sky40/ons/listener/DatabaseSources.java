@@ -0,0 +1,148 @@
+package sky40.ons.listener;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.pipeline.ChangePipeline;
+import sky40.ons.util.StartupTimings;
+
+/**
+ * The databases the service listens to, each with its own
+ * {@link DatabaseManager}. The sources are configured as a list, or else the
+ * single database of oracle and notification is the only source. All sources
+ * share the pipeline, the notifier and the subscriptions.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+@Component
+public class DatabaseSources {
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  /**
+   * Managers by source name, in the order of the configuration.
+   */
+  private final Map<String, DatabaseManager> managers = new LinkedHashMap<>();
+
+  @PostConstruct
+  public void init() {
+    for (ApplicationConfig.Source source : findSources()) {
+      if (managers.containsKey(source.getName())) {
+        throw new RuntimeException("Source " + source.getName() + " is configured twice.");
+      }
+      managers.put(source.getName(), new DatabaseManager(source, config, meterRegistry));
+    }
+    checkClientPorts();
+    log.info(managers.size() + " source(s) configured: " + managers.keySet());
+  }
+
+  /**
+   * Check that the sources listen on different ports: each one on its client
+   * port + the index of the shard.
+   *
+   * @throws RuntimeException if the ports of two sources overlap
+   */
+  private void checkClientPorts() {
+    List<ApplicationConfig.Source> sources = findSources();
+    for (int i = 0; i < sources.size(); i++) {
+      for (int j = i + 1; j < sources.size(); j++) {
+        ApplicationConfig.Notification a = sources.get(i).getNotification();
+        ApplicationConfig.Notification b = sources.get(j).getNotification();
+        if (a.getClientPort() <= lastClientPort(b) && b.getClientPort() <= lastClientPort(a)) {
+          throw new RuntimeException("Client ports " + a.getClientPort() + "-" + lastClientPort(a) + " of source " + sources.get(i).getName()
+                  + " overlap with ports " + b.getClientPort() + "-" + lastClientPort(b) + " of source " + sources.get(j).getName() + ".");
+        }
+      }
+    }
+  }
+
+  private static int lastClientPort(ApplicationConfig.Notification notification) {
+    return notification.getClientPort() + Math.max(1, notification.getShards()) - 1;
+  }
+
+  private List<ApplicationConfig.Source> findSources() {
+    if (!config.getSource().isEmpty()) {
+      return config.getSource();
+    }
+    ApplicationConfig.Source ret = new ApplicationConfig.Source();
+    ret.setOracle(config.getOracle());
+    ret.setNotification(config.getNotification());
+    return Collections.singletonList(ret);
+  }
+
+  /**
+   * Connect to all databases and register for their changes.
+   *
+   * @param pipeline the pipeline to hand the change events to
+   * @param timings takes the durations of the startup phases
+   */
+  public void startup(ChangePipeline pipeline, StartupTimings timings) {
+    for (DatabaseManager manager : managers.values()) {
+      manager.startup(new ONSchangeListener(manager, pipeline), timings);
+    }
+  }
+
+  /**
+   * Prepare the queries of changed rows of all databases.
+   *
+   * @param columnsByTable the columns to query by table, as currently
+   * requested by the recipients (null for all columns)
+   * @param timings takes the durations of the warm-up phases
+   * @see DatabaseManager#warmUp(java.util.function.Function,
+   * sky40.ons.util.StartupTimings)
+   */
+  public void warmUp(Function<String, Set<String>> columnsByTable, StartupTimings timings) {
+    for (DatabaseManager manager : managers.values()) {
+      manager.warmUp(columnsByTable, timings);
+    }
+  }
+
+  /**
+   * Closes the connections of all databases.
+   */
+  @PreDestroy
+  public void shutdown() {
+    for (DatabaseManager manager : managers.values()) {
+      manager.shutdown();
+    }
+  }
+
+  /**
+   * Get the manager of a source.
+   *
+   * @param name name of the source
+   * @return the manager
+   */
+  public DatabaseManager get(String name) {
+    DatabaseManager ret = managers.get(name);
+    if (ret == null) {
+      throw new RuntimeException("Unknown source " + name + ".");
+    }
+    return ret;
+  }
+
+  /**
+   *
+   * @return the managers of all sources
+   */
+  public Collection<DatabaseManager> getAll() {
+    return Collections.unmodifiableCollection(managers.values());
+  }
+
+}
@@ -0,0 +1,87 @@
+package sky40.ons.listener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import oracle.jdbc.dcn.DatabaseChangeRegistration;
+import oracle.jdbc.driver.OracleConnection;
+
+/**
+ * One of the change registrations the tables are partitioned across. Each
+ * shard has its own connection and notification port, so Oracle sends its
+ * events on a socket of their own, its own listener thread and its own intake
+ * and fetch stages in the pipeline, so a busy table does not delay the events
+ * of the tables in other shards.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+class NotificationShard {
+
+  private final int index;
+  private final int port;
+  private final List<String> tables = new ArrayList<>();
+
+  /**
+   * Calls the listener for the events of the registration.
+   */
+  private final ExecutorService worker;
+
+  /**
+   * Connection holding the change registration.
+   */
+  OracleConnection conn = null;
+
+  DatabaseChangeRegistration reg = null;
+
+  NotificationShard(String source, int index, int port) {
+    this.index = index;
+    this.port = port;
+    this.worker = Executors.newSingleThreadExecutor(r -> {
+      Thread ret = new Thread(r, "ons-dcn-" + source + "-" + (index + 1));
+      ret.setDaemon(true);
+      return ret;
+    });
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   *
+   * @return the local port Oracle sends the events to
+   */
+  int getPort() {
+    return port;
+  }
+
+  /**
+   *
+   * @return names of the tables to register, as configured
+   */
+  List<String> getTables() {
+    return tables;
+  }
+
+  ExecutorService getWorker() {
+    return worker;
+  }
+
+  /**
+   *
+   * @return id of the registration, or -1 if not registered
+   */
+  long getRegistrationId() {
+    return (reg == null) ? -1 : reg.getRegId();
+  }
+
+  /**
+   *
+   * @return names of the registered tables, as known by Oracle
+   */
+  String[] getRegisteredTables() {
+    return (reg == null) ? new String[0] : reg.getTables();
+  }
+
+}
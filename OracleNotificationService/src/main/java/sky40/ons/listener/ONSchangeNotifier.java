@@ -1,22 +1,52 @@
 package sky40.ons.listener;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import sky40.ons.ApplicationConfig;
+import sky40.ons.cache.RowImageCache;
+import sky40.ons.delivery.CompressedBodies;
+import sky40.ons.delivery.DeliveryMetrics;
+import sky40.ons.delivery.DeliveryQueue;
+import sky40.ons.delivery.MessageCodec;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.journal.Journal;
+import sky40.ons.journal.JournalCursor;
+import sky40.ons.subscription.domain.BatchPolicy;
 import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.subscription.svc.StreamService;
 import sky40.ons.subscription.svc.SubscriptionService;
+import sky40.ons.util.StartupTimings;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
+import reactor.ipc.netty.resources.PoolResources;
 
 /**
  * Notifies the subscribers and push targets about changes. Uses asynchronous
  * notification and thread pooling via reactive streams to decouple the
  * notifications of each client.
  *
+ * The message body is encoded once and shared by all recipients. Each
+ * endpoint gets its own {@link DeliveryQueue} with a long-lived web client,
+ * all of them sharing a pool of keep-alive connections. Subscribers with an
+ * open stream get the messages through the {@link StreamService} instead.
+ *
+ * If the journal is enabled, a new delivery queue first gets the messages
+ * from the journal its endpoint did not acknowledge yet.
+ *
  * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
  */
 @Service
@@ -29,47 +59,366 @@ public class ONSchangeNotifier {
   @Autowired
   ApplicationConfig config;
 
-  public void notify(String message) {
-    notifySubscribers(message);
-    notifyPush(message);
+  @Autowired
+  StreamService streamSvc;
+
+  @Autowired
+  MeterRegistry meterRegistry;
+
+  @Autowired
+  List<MessageCodec> codecs;
+
+  @Autowired
+  Journal journal;
+
+  @Autowired
+  RowImageCache rowImages;
+
+  private ReactorClientHttpConnector connector;
+  private DeliveryMetrics metrics;
+  private CompressedBodies compressedBodies;
+
+  /**
+   * Delivery queues of the subscribers by subscription id.
+   */
+  private final ConcurrentHashMap<Long, DeliveryQueue> subscriberQueues = new ConcurrentHashMap<>();
+
+  /**
+   * Delivery queues of the push targets by url.
+   */
+  private final ConcurrentHashMap<String, DeliveryQueue> pushQueues = new ConcurrentHashMap<>();
+
+  /**
+   * The subscriptions the queues were last checked against. The snapshot of
+   * the subscriptions is replaced on every change.
+   */
+  private volatile Collection<Subscription> checkedSubscriptions;
+
+  @PostConstruct
+  public void init() {
+    PoolResources pool = PoolResources.fixed("ons-delivery", config.getDelivery().getMaxConnections());
+    connector = new ReactorClientHttpConnector(options -> options.poolResources(pool));
+    metrics = new DeliveryMetrics(meterRegistry);
+    MessageCodec codec = findCodec(config.getDelivery().getCompression());
+    if (codec != null) {
+      compressedBodies = new CompressedBodies(codec, config.getDelivery().getCompressionCacheBytes());
+      meterRegistry.gauge("ons.delivery.compressed.bytes", compressedBodies, CompressedBodies::getBytes);
+    }
+    meterRegistry.gauge("ons.delivery.queued", this, ONSchangeNotifier::countQueued);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    for (DeliveryQueue queue : subscriberQueues.values()) {
+      queue.close();
+    }
+    for (DeliveryQueue queue : pushQueues.values()) {
+      queue.close();
+    }
+  }
+
+  /**
+   * Create the delivery queues of the known subscribers and push targets. If
+   * the journal is enabled, they get the messages they did not acknowledge
+   * before the restart. The journal cursors of endpoints that are gone, e.g.
+   * subscriptions that were not kept over the restart, are removed.
+   *
+   * @return the created queues
+   */
+  public List<DeliveryQueue> openQueues() {
+    List<DeliveryQueue> ret = new ArrayList<>();
+    for (Subscription sub : subSvc.findSubscriptionAll()) {
+      if (sub.getUrl() != null && !sub.getUrl().isEmpty()) {
+        ret.add(getSubscriberQueue(sub, getBodyType(sub)));
+      }
+    }
+    if (isPushing()) {
+      for (String url : config.getPush().getEndpoint()) {
+        ret.add(getPushQueue(url));
+      }
+    }
+    if (journal.isEnabled()) {
+      Set<String> names = new HashSet<>();
+      for (DeliveryQueue queue : ret) {
+        names.add(queue.getCursor().getName());
+      }
+      journal.retainCursors(names);
+    }
+    return ret;
+  }
+
+  /**
+   * Open the connections to the known subscribers and push targets whose URL
+   * is configured to be connected at startup, so the first messages do not
+   * pay for the connection setup. Waits until all are connected or the
+   * configured timeout is over.
+   *
+   * @param timings takes the duration of the warm-up
+   */
+  public void warmUp(StartupTimings timings) {
+    long start = System.nanoTime();
+    List<Mono<Void>> connects = new ArrayList<>();
+    for (DeliveryQueue queue : openQueues()) {
+      if (config.getWarmup().isConnected(queue.getUrl())) {
+        connects.add(queue.connect());
+      }
+    }
+    if (!connects.isEmpty()) {
+      try {
+        Mono.when(connects).block(Duration.ofMillis(config.getWarmup().getDeliveryTimeout()));
+      } catch (RuntimeException ex) {
+        log.warn("Connecting to the recipients did not complete: " + ex);
+      }
+    }
+    timings.record("delivery", start);
+    log.info("Connected to " + connects.size() + " recipient(s).");
+  }
+
+  /**
+   * Send a message to the subscribers of its table and to all push targets.
+   *
+   * @param message the message
+   */
+  public void notify(ChangeMessage message) {
+    notify(message, -1);
+  }
+
+  /**
+   * Send a message from the journal to the subscribers of its table and to
+   * all push targets.
+   *
+   * @param message the message
+   * @param offset end offset of the message in the journal, -1 if it is not
+   * in the journal
+   */
+  public void notify(ChangeMessage message, long offset) {
+    notifySubscribers(message, offset);
+    notifyPush(message, offset);
+  }
+
+  /**
+   * Check if there is anybody to send the changes of a table to.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return true if there are subscribers or push targets for the table
+   */
+  public boolean hasRecipients(String tableName) {
+    return isPushing() || !subSvc.findSubscriptionsForTable(tableName).isEmpty();
+  }
+
+  /**
+   * Find the columns of a table the recipients are interested in. Push
+   * targets always get all columns.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return the column names, null for all columns
+   */
+  public Set<String> getQueryColumns(String tableName) {
+    return isPushing() ? null : subSvc.findColumnsForTable(tableName);
   }
 
-  private void notifyPush(String message) {
+  /**
+   * Find the distinct column lists to build messages of a table for.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return immutable list of the column lists
+   */
+  public List<List<String>> getProjections(String tableName) {
+    return subSvc.findProjectionsForTable(tableName);
+  }
+
+  /**
+   * Check if binary messages have to be built for a table.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return true if any recipient wants binary messages
+   */
+  public boolean isBinaryRequested(String tableName) {
+    return (isPushing() && config.getDelivery().getBodyType() == BodyType.BINARY)
+            || subSvc.isBinaryRequested(tableName);
+  }
+
+  private boolean isPushing() {
+    ApplicationConfig.Push push = config.getPush();
+    return push.isEnabled() && push.getEndpoint() != null && !push.getEndpoint().isEmpty();
+  }
+
+  private void notifyPush(ChangeMessage message, long offset) {
     log.info("Notify via PUSH-service.");
     if (config.getPush().isEnabled()) {
       for (String url : config.getPush().getEndpoint()) {
-        sendMessage(url, message);
+        getPushQueue(url).offer(message, offset);
       }
     } else {
       log.info("Not pushing to targets. Feature is disabled.");
     }
   }
 
-  private void notifySubscribers(String message) {
+  private void notifySubscribers(ChangeMessage message, long offset) {
     log.info("Notify via Subscriber-service.");
+    for (Subscription sub : subSvc.findSubscriptionsForTable(message.getTableName())) {
+      ChangeMessage subMessage = message.forColumns(sub.getColumns());
+      if (!subMessage.hasBody(BodyType.JSON)) {
+        // subscribed after the message was built
+        log.debug("No message with the columns of subscription " + sub.getName() + ".");
+        continue;
+      }
+      if (!rowImages.holdsImages(sub, subMessage.getImageGeneration())) {
+        // joined after the changed columns were found, gets the rows in full with their next change
+        log.debug("No complete rows for subscription " + sub.getName() + ".");
+        continue;
+      }
+      if (streamSvc.publish(sub, subMessage)) {
+        continue;
+      }
+      BodyType bodyType = getBodyType(sub);
+      if (!subMessage.hasBody(bodyType)) {
+        // subscribed after the message was built
+        log.debug("No " + bodyType + " message for subscription " + sub.getName() + ".");
+        continue;
+      }
+      getSubscriberQueue(sub, bodyType).offer(subMessage, offset);
+    }
     Collection<Subscription> subscriptions = subSvc.findSubscriptionAll();
+    if (subscriptions != checkedSubscriptions) {
+      checkedSubscriptions = subscriptions;
+      removeOrphanedQueues(subscriptions);
+    }
+  }
+
+  /**
+   * Close the queues of subscriptions that were deleted.
+   *
+   * @param subscriptions the current subscriptions
+   */
+  private void removeOrphanedQueues(Collection<Subscription> subscriptions) {
+    Set<Long> ids = new HashSet<>();
     for (Subscription sub : subscriptions) {
-      String url = sub.getUrl();
-      sendMessage(url, message);
+      ids.add(sub.getId());
+    }
+    for (Map.Entry<Long, DeliveryQueue> entry : subscriberQueues.entrySet()) {
+      if (!ids.contains(entry.getKey())) {
+        closeSubscriberQueue(entry.getKey(), entry.getValue());
+      }
     }
   }
 
-  private void sendMessage(String url, String message) {
-    log.info("Sending message to endpoint " + url + " ...");
-    LinkedMultiValueMap map = new LinkedMultiValueMap();
-    map.add("message", message);
-    WebClient webClient = getWebClient(url);
-    Mono<String> mono = webClient.post()
-            .body(BodyInserters.fromMultipartData(map))
-            .retrieve()
-            .bodyToMono(String.class);
-    mono.subscribe();
-    log.info("... message sent.");
+  private void closeSubscriberQueue(Long id, DeliveryQueue queue) {
+    if (subscriberQueues.remove(id, queue)) {
+      queue.close();
+      if (queue.getCursor() != null) {
+        journal.removeCursor(queue.getCursor().getName());
+      }
+      log.info("Delivery queue of " + queue.getUrl() + " closed.");
+    }
   }
 
-  private WebClient getWebClient(String endpoint) {
-    WebClient ret;
-    ret = WebClient.builder().baseUrl(endpoint).build();
+  private BodyType getBodyType(Subscription sub) {
+    return (sub.getBodyType() != null) ? sub.getBodyType() : config.getDelivery().getBodyType();
+  }
+
+  /**
+   * Get the delivery queue of a subscriber. A new queue gets the messages
+   * from the journal first, which the subscription did not acknowledge.
+   *
+   * @param sub the subscription
+   * @param bodyType the format to send the messages in
+   * @return the queue
+   */
+  private DeliveryQueue getSubscriberQueue(Subscription sub, BodyType bodyType) {
+    DeliveryQueue ret = subscriberQueues.get(sub.getId());
+    if (ret == null) {
+      JournalCursor cursor = getCursor("subscription:" + sub.getId());
+      DeliveryQueue created = createQueue(sub.getUrl(), (sub.getTimeout() > 0) ? sub.getTimeout() : config.getDelivery().getTimeout(), bodyType, sub.getBatchPolicy(), cursor);
+      ret = subscriberQueues.putIfAbsent(sub.getId(), created);
+      if (ret == null) {
+        ret = created;
+        if (subSvc.findSubscriptionById(sub.getId()) == null) {
+          // deleted while the message was routed, after the queues were checked
+          closeSubscriberQueue(sub.getId(), created);
+          return created;
+        }
+        replay(ret, sub, bodyType);
+      }
+    }
+    return ret;
+  }
+
+  private DeliveryQueue getPushQueue(String url) {
+    DeliveryQueue ret = pushQueues.get(url);
+    if (ret == null) {
+      DeliveryQueue created = createQueue(url, config.getDelivery().getTimeout(), config.getDelivery().getBodyType(), BatchPolicy.NONE, getCursor("push:" + url));
+      ret = pushQueues.putIfAbsent(url, created);
+      if (ret == null) {
+        ret = created;
+        replay(ret, null, config.getDelivery().getBodyType());
+      }
+    }
+    return ret;
+  }
+
+  private JournalCursor getCursor(String name) {
+    return journal.isEnabled() ? journal.getCursor(name) : null;
+  }
+
+  /**
+   * Send the messages from the journal an endpoint did not acknowledge. The
+   * queue reads them as it has room for them.
+   *
+   * @param queue the new queue of the endpoint
+   * @param sub the subscription, null for a push target
+   * @param bodyType the format to send the messages in
+   */
+  private void replay(DeliveryQueue queue, Subscription sub, BodyType bodyType) {
+    if (queue.getCursor() == null) {
+      return;
+    }
+    queue.replay(journal, message -> {
+      if (sub != null) {
+        if (!subSvc.findSubscriptionsForTable(message.getTableName()).contains(sub)) {
+          return null;
+        }
+        message = message.forColumns(sub.getColumns());
+      }
+      return message.hasBody(bodyType) ? message : null;
+    });
+  }
+
+  private DeliveryQueue createQueue(String url, long timeout, BodyType bodyType, BatchPolicy batchPolicy, JournalCursor cursor) {
+    WebClient webClient = WebClient.builder()
+            .clientConnector(connector)
+            .baseUrl(url)
+            .build();
+    return new DeliveryQueue(url, webClient, timeout, config.getDelivery(), bodyType, compressedBodies, batchPolicy, metrics, cursor);
+  }
+
+  /**
+   * Find the codec to compress bodies with.
+   *
+   * @param encoding the configured content encoding
+   * @return the codec, null for no compression
+   */
+  private MessageCodec findCodec(String encoding) {
+    if (encoding == null || encoding.isEmpty() || "none".equalsIgnoreCase(encoding)) {
+      return null;
+    }
+    for (MessageCodec candidate : codecs) {
+      if (candidate.getEncoding().equalsIgnoreCase(encoding)) {
+        log.info("Compressing bodies from " + config.getDelivery().getCompressionThreshold() + " bytes on with " + encoding + ".");
+        return candidate;
+      }
+    }
+    throw new RuntimeException("Unknown compression " + encoding + ".");
+  }
+
+  private double countQueued() {
+    int ret = 0;
+    for (DeliveryQueue queue : subscriberQueues.values()) {
+      ret += queue.size();
+    }
+    for (DeliveryQueue queue : pushQueues.values()) {
+      ret += queue.size();
+    }
     return ret;
   }
 
@@ -0,0 +1,160 @@
+package sky40.ons.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.TableRowChanges;
+
+/**
+ * Merges the row changes of events on the same table that arrive within a
+ * time window, so the changed rows are queried and sent only once for all of
+ * them. The window of a table starts with the first change after the last
+ * flush. The merged changes are flushed when the window ends or as soon as
+ * they cover the maximum number of rows.
+ *
+ * The timer never waits for room in the fetch stage, since it flushes the
+ * windows of all tables of the lane: if the queue of the stage is full, the
+ * changes are kept and merged with the following ones until the next window
+ * ends. A flush due to the maximum number of rows waits for room, so the
+ * intake stage is slowed down. On shutdown, the pending changes are flushed.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+public class ChangeCoalescer {
+
+  private final ApplicationConfig.Coalesce config;
+  private final PipelineStage<TableRowChanges, ?> next;
+  private final Counter merged;
+  private final Counter requeued;
+
+  /**
+   * Pending changes by table name, qualified by the source name.
+   */
+  private final Map<String, TableRowChanges> pending = new HashMap<>();
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "ons-coalesce");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Creates a coalescer.
+   *
+   * @param config window and batch configuration
+   * @param next the stage taking the merged changes when flushed
+   * @param meterRegistry registry to publish the number of merged and
+   * requeued events to
+   */
+  public ChangeCoalescer(ApplicationConfig.Coalesce config, PipelineStage<TableRowChanges, ?> next, MeterRegistry meterRegistry) {
+    this.config = config;
+    this.next = next;
+    this.merged = meterRegistry.counter("ons.pipeline.coalesced");
+    this.requeued = meterRegistry.counter("ons.pipeline.coalesce.requeued");
+  }
+
+  /**
+   * Add changes on a table. Either opens a new window for the table or merges
+   * the changes into the pending ones.
+   *
+   * @param changes the changes to add
+   */
+  public void add(TableRowChanges changes) {
+    String tableName = changes.getQualifiedName();
+    TableRowChanges flush = null;
+
+    synchronized (pending) {
+      TableRowChanges current = pending.get(tableName);
+      if (current == null) {
+        current = changes;
+        pending.put(tableName, current);
+        long window = config.getWindowFor(changes.getTableName());
+        final TableRowChanges scheduled = current;
+        timer.schedule(() -> flushIfPending(tableName, scheduled), window, TimeUnit.MILLISECONDS);
+      } else {
+        current.merge(changes);
+        merged.increment();
+      }
+      if (current.rowSize() >= config.getMaxBatch()) {
+        pending.remove(tableName);
+        flush = current;
+      }
+    }
+
+    if (flush != null) {
+      log.debug("Flushing " + flush.getEventCount() + " event(s) on " + tableName + ", max. batch size reached.");
+      next.submit(flush);
+    }
+  }
+
+  /**
+   * Flushes the changes of a table when its window ends, unless they were
+   * flushed already. If the fetch stage is full, they are pending again.
+   */
+  private void flushIfPending(String tableName, TableRowChanges scheduled) {
+    synchronized (pending) {
+      if (pending.get(tableName) != scheduled) {
+        return;
+      }
+      pending.remove(tableName);
+    }
+    if (next.offer(scheduled)) {
+      log.debug("Flushing " + scheduled.getEventCount() + " event(s) on " + tableName + ".");
+      return;
+    }
+    requeued.increment();
+    log.debug("Fetch stage is full, keeping " + scheduled.getEventCount() + " event(s) on " + tableName + ".");
+    synchronized (pending) {
+      if (timer.isShutdown()) {
+        // flushed by the shutdown
+        pending.put(tableName, scheduled);
+        return;
+      }
+      // the window of the changes added since ends as well
+      TableRowChanges later = pending.get(tableName);
+      if (later != null) {
+        scheduled.merge(later);
+      }
+      pending.put(tableName, scheduled);
+      timer.schedule(() -> flushIfPending(tableName, scheduled), config.getWindowFor(scheduled.getTableName()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops the timer and flushes the pending changes. Changes added later are
+   * not flushed anymore, so the stage in front has to be stopped first.
+   *
+   * @param timeout maximum time to wait for room in the fetch stage in
+   * milliseconds, for each table
+   */
+  public void shutdown(long timeout) {
+    timer.shutdownNow();
+    try {
+      // a running flush may make its changes pending again
+      timer.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    List<TableRowChanges> flush;
+    synchronized (pending) {
+      flush = new ArrayList<>(pending.values());
+      pending.clear();
+    }
+    for (TableRowChanges changes : flush) {
+      next.offer(changes, timeout);
+    }
+    if (!flush.isEmpty()) {
+      log.info("Flushed the pending changes on " + flush.size() + " table(s).");
+    }
+  }
+
+}
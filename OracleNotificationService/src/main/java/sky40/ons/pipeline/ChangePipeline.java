@@ -0,0 +1,442 @@
+package sky40.ons.pipeline;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import oracle.jdbc.dcn.DatabaseChangeEvent;
+import oracle.jdbc.dcn.RowChangeDescription;
+import oracle.jdbc.dcn.TableChangeDescription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.cache.RowImageCache;
+import sky40.ons.delivery.ReplayBuffer;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.domain.ChangedRowSet;
+import sky40.ons.domain.TableChangeInfo;
+import sky40.ons.domain.TableRowChanges;
+import sky40.ons.journal.Journal;
+import sky40.ons.listener.DatabaseManager;
+import sky40.ons.listener.DatabaseSources;
+import sky40.ons.listener.ONSchangeNotifier;
+import sky40.ons.util.BinaryWriter;
+import sky40.ons.util.JsonWriter;
+
+/**
+ * Handles the database change events in stages, each with its own workers and
+ * connected by bounded queues: the intake stage collects the row changes per
+ * table of an event, the fetch stage queries the changed rows, the serialize
+ * stage builds the messages and the fan-out stage notifies the subscribers,
+ * after appending the message to the journal if it is enabled.
+ * Thus the notification thread of the driver only has to enqueue the event.
+ * Optionally, the changes of several events on the same table are merged by a
+ * {@link ChangeCoalescer} before they are fetched.
+ *
+ * Each notification shard of the {@link DatabaseSources} has a lane of its
+ * own intake and fetch stages, so a busy table fills only the queues of its
+ * shard and does not stall the others. The lanes share the serialize and
+ * fan-out stages; the rows are fetched from the source of the event.
+ *
+ * With more than one fetch or serialize worker, messages may be sent in a
+ * different order than the events were received.
+ *
+ * On shutdown, the stages are stopped from the front to the back, each one
+ * handling its waiting items first, within the configured shutdown timeout.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Service
+@Slf4j
+public class ChangePipeline {
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private DatabaseSources sources;
+
+  @Autowired
+  private ONSchangeNotifier notifier;
+
+  @Autowired
+  private RowImageCache rowImages;
+
+  @Autowired
+  private Journal journal;
+
+  @Autowired
+  private ReplayBuffer replayBuffer;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  /**
+   * Intake and fetch stages by shard, created on the first event of a shard.
+   */
+  private final Map<String, Lane> lanes = new LinkedHashMap<>();
+  private PipelineStage<TableChangeInfo, ChangeMessage> serialize;
+  private PipelineStage<ChangeMessage, Void> fanOut;
+
+  /**
+   * Reusable json buffer of each serialize worker.
+   */
+  private final ThreadLocal<JsonWriter> jsonWriter = ThreadLocal.withInitial(JsonWriter::new);
+
+  /**
+   * Reusable binary buffer of each serialize worker.
+   */
+  private final ThreadLocal<BinaryWriter> binaryWriter = ThreadLocal.withInitial(BinaryWriter::new);
+
+  @PostConstruct
+  public void init() {
+    ApplicationConfig.Pipeline cfg = config.getPipeline();
+
+    fanOut = createStage("fanout", cfg.getFanout(), this::fanOut, null);
+    serialize = createStage("serialize", cfg.getSerialize(), this::serialize, fanOut::submit);
+    fanOut.start();
+    serialize.start();
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    long timeout = config.getPipeline().getShutdownTimeout();
+    for (Lane lane : lanes.values()) {
+      lane.stop(timeout);
+    }
+    serialize.stop(timeout);
+    fanOut.stop(timeout);
+  }
+
+  /**
+   * Enqueue a change event for handling. Called on the notification thread of
+   * the driver, so it waits for room in a full intake queue for the
+   * configured intake timeout only and drops the event then.
+   *
+   * @param source the database the event was received from
+   * @param dce the event received from the database
+   */
+  public void submit(DatabaseManager source, DatabaseChangeEvent dce) {
+    Lane lane = getLane(source.getName() + "-" + (source.findShard(dce.getRegId()) + 1));
+    if (!lane.intake.offer(new SourceEvent(source, dce), config.getPipeline().getIntakeTimeout())) {
+      log.error("Change event " + dce.getRegId() + " of source " + source.getName() + " dropped, the pipeline is overloaded.");
+    }
+  }
+
+  /**
+   * Get the lane of a shard, started on first use.
+   *
+   * @param name name of the lane: the source name and shard number
+   * @return the lane
+   */
+  private synchronized Lane getLane(String name) {
+    Lane ret = lanes.get(name);
+    if (ret == null) {
+      ret = new Lane(name);
+      lanes.put(name, ret);
+    }
+    return ret;
+  }
+
+  /**
+   *
+   * @return the stages in order of processing, the intake and fetch stages of
+   * each lane first
+   */
+  public synchronized List<PipelineStage<?, ?>> getStages() {
+    List<PipelineStage<?, ?>> ret = new ArrayList<>();
+    for (Lane lane : lanes.values()) {
+      ret.add(lane.intake);
+      ret.add(lane.fetch);
+    }
+    ret.add(serialize);
+    ret.add(fanOut);
+    return ret;
+  }
+
+  private <I, O> PipelineStage<I, O> createStage(String name, ApplicationConfig.Stage cfg, PipelineStage.Handler<I, O> handler, Consumer<O> next) {
+    return new PipelineStage<>(name, cfg.getWorkers(), cfg.getQueueCapacity(), handler, next, meterRegistry);
+  }
+
+  /**
+   * Collects the row changes per table of an object change event.
+   *
+   * @param event the change event and its source
+   * @param emitter takes the row changes of each table
+   */
+  private void collectChanges(SourceEvent event, Consumer<TableRowChanges> emitter) {
+    Date timestamp = new Date();
+    DatabaseChangeEvent dce = event.dce;
+    DatabaseChangeEvent.EventType eventType = dce.getEventType();
+
+    switch (eventType) {
+      case OBJCHANGE:
+        for (TableChangeDescription desc : dce.getTableChangeDescription()) {
+          EnumSet<TableChangeDescription.TableOperation> tableOps = desc.getTableOperations();
+          if (tableOps.contains(TableChangeDescription.TableOperation.ALTER)
+                  || tableOps.contains(TableChangeDescription.TableOperation.DROP)) {
+            // the cached columns of the table are outdated
+            event.source.invalidateTable(desc.getTableName());
+          }
+          emitter.accept(collectTableRowChanges(event.source.getName(), timestamp, desc));
+        }
+        break;
+      default:
+        log.debug("DatabaseChangeEvent of EventType " + eventType.name() + " not handled.");
+    }
+  }
+
+  /**
+   * Collect the changes on table rows that were notified by the DB.
+   *
+   * @param source name of the database of the table
+   * @param timestamp time of notification event
+   * @param desc Description of table changes by Oracle.
+   * @return the collected row changes
+   */
+  private TableRowChanges collectTableRowChanges(String source, Date timestamp, TableChangeDescription desc) {
+    HashMap<String, Set<String>> changedRowMap = new HashMap<>();
+    HashSet<String> deletedRows = new HashSet<>();
+    RowChangeDescription[] rcds = desc.getRowChangeDescription();
+    for (RowChangeDescription rcd : rcds) {
+      String rowid = rcd.getRowid().stringValue();
+
+      RowChangeDescription.RowOperation op = rcd.getRowOperation();
+      switch (op) {
+        case INSERT:
+        // same as update: fall thru
+        case UPDATE:
+          Set<String> ops = changedRowMap.get(rowid);
+          if (ops == null) {
+            ops = new HashSet<>();
+          }
+          ops.add(op.toString());
+          changedRowMap.put(rowid, ops);
+          break;
+        case DELETE:
+          deletedRows.add(rowid);
+        default:
+        // do nothing
+      }
+    }
+    return new TableRowChanges(source, timestamp, desc, changedRowMap, deletedRows);
+  }
+
+  /**
+   * Query the changed rows of a table. Only the columns the recipients are
+   * interested in are queried. If Oracle notified a change of all rows
+   * instead of single row ids, the changed rows are streamed in parts. If
+   * the row image cache is enabled, updated rows are reduced to their changed
+   * columns. Deleted rows are added with their last known values, if cached.
+   *
+   * @param changes the collected row changes
+   * @param emitter takes the table change information
+   * @throws SQLException
+   */
+  private void fetchRows(TableRowChanges changes, Consumer<TableChangeInfo> emitter) throws SQLException {
+    Set<String> columns = notifier.getQueryColumns(changes.getTableName());
+    if (changes.getOperations().contains(TableChangeDescription.TableOperation.ALL_ROWS)) {
+      streamRows(changes, columns, emitter);
+    } else {
+      DatabaseManager manager = sources.get(changes.getSource());
+      ChangedRowSet changedRows = applyRowImages(changes, manager.queryChanges(changes.getTableName(), changes.getChangedRowMap(), columns));
+      changedRows = addDeletedRows(changes, changedRows);
+      emitter.accept(new TableChangeInfo(changes.getSource(), changes.getTimestamp(), changes.getTableName(), changes.getOperations(), changedRows));
+    }
+  }
+
+  /**
+   * Stream all changed rows of a table, emitting a message for each part.
+   * Emitting blocks while the serialize stage is full, so only few parts are
+   * held in memory at a time.
+   *
+   * @param changes the collected row changes
+   * @param columns the columns to query, null for all columns
+   * @param emitter takes the table change information of each part
+   * @throws SQLException
+   */
+  private void streamRows(TableRowChanges changes, Set<String> columns, Consumer<TableChangeInfo> emitter) throws SQLException {
+    Set<String> rowOperations = new HashSet<>();
+    for (TableChangeDescription.TableOperation op : changes.getOperations()) {
+      if (op != TableChangeDescription.TableOperation.ALL_ROWS) {
+        rowOperations.add(op.toString());
+      }
+    }
+
+    int[] part = {0};
+    sources.get(changes.getSource()).streamAllChanges(changes.getTableName(), rowOperations, columns, (changedRows, isLast) -> {
+      emitter.accept(new TableChangeInfo(changes.getSource(), changes.getTimestamp(), changes.getTableName(), changes.getOperations(), applyRowImages(changes, changedRows), ++part[0], isLast));
+    });
+    log.info("Streamed " + part[0] + " part(s) of changed rows on " + changes.getQualifiedName() + ".");
+  }
+
+  /**
+   * Keep the row images and reduce updated rows, whose previous image is
+   * known, to their changed columns.
+   *
+   * @param changes the row changes of the table
+   * @param changedRows the queried rows
+   * @return the rows to send
+   */
+  private ChangedRowSet applyRowImages(TableRowChanges changes, ChangedRowSet changedRows) {
+    if (!rowImages.isEnabled()) {
+      return changedRows;
+    }
+    return rowImages.update(changes.getSource(), changes.getTableName(), changedRows);
+  }
+
+  /**
+   * Add the deleted rows, with their last known values if they are cached
+   * with the same columns. Deleted rows cannot be queried any more.
+   *
+   * @param changes the row changes of the table, with the deleted rows
+   * @param changedRows the queried rows
+   * @return the rows to send
+   */
+  private ChangedRowSet addDeletedRows(TableRowChanges changes, ChangedRowSet changedRows) {
+    Set<String> deletedRows = changes.getDeletedRows();
+    if (deletedRows.isEmpty()) {
+      return changedRows;
+    }
+    Map<String, RowImageCache.RowImage> images = rowImages.isEnabled()
+            ? rowImages.remove(changes.getSource(), changes.getTableName(), deletedRows) : Collections.emptyMap();
+
+    HashMap<String, ChangedRowSet.RowValues> values = new HashMap<>();
+    for (String rowId : deletedRows) {
+      RowImageCache.RowImage image = images.get(rowId);
+      values.put(rowId, (image == null) ? null : image.getValues());
+    }
+    return changedRows.withDeletedRows(values);
+  }
+
+  /**
+   * Build the message of a table change, unless nobody is interested in the
+   * table. Subscribers of some columns only get their own message, built
+   * once per distinct column list. The message with all columns is built only
+   * if any recipient wants all columns, the binary messages only if any
+   * recipient wants them.
+   *
+   * @param changeInfo the table change
+   * @param emitter takes the message
+   */
+  private void serialize(TableChangeInfo changeInfo, Consumer<ChangeMessage> emitter) {
+    if (!notifier.hasRecipients(changeInfo.getTableName())) {
+      log.debug("No recipients for changes on " + changeInfo.getTableName() + ".");
+      return;
+    }
+    boolean isBinary = notifier.isBinaryRequested(changeInfo.getTableName());
+    Map<List<String>, ChangeMessage> projections = new HashMap<>();
+    for (List<String> columns : notifier.getProjections(changeInfo.getTableName())) {
+      projections.put(columns, encode(changeInfo, columns, isBinary, Collections.emptyMap()));
+    }
+    if (notifier.getQueryColumns(changeInfo.getTableName()) != null) {
+      // every recipient gets the message with its columns
+      emitter.accept(new ChangeMessage(changeInfo.getTableName(), null, null, projections, changeInfo.getImageGeneration()));
+    } else {
+      emitter.accept(encode(changeInfo, null, isBinary, projections));
+    }
+  }
+
+  /**
+   * Encode a table change into a message.
+   *
+   * @param changeInfo the table change
+   * @param columns names of the columns to write, null for all columns
+   * @param isBinary true to build the binary message too
+   * @param projections the messages with some columns only
+   * @return the message
+   */
+  private ChangeMessage encode(TableChangeInfo changeInfo, List<String> columns, boolean isBinary, Map<List<String>, ChangeMessage> projections) {
+    JsonWriter writer = jsonWriter.get().reset();
+    changeInfo.writeJson(writer, columns);
+    byte[] binary = null;
+    if (isBinary) {
+      BinaryWriter binWriter = binaryWriter.get().reset();
+      changeInfo.writeBinary(binWriter, columns);
+      binary = binWriter.toByteArray();
+    }
+    return new ChangeMessage(changeInfo.getTableName(), writer.toByteArray(), binary, projections, changeInfo.getImageGeneration());
+  }
+
+  /**
+   * Number the message and hand it to the notifier. If the journal is
+   * enabled, the message is appended to it first. Only built messages are
+   * journaled, see {@link Journal}.
+   *
+   * @param message the message
+   * @param emitter unused, last stage
+   */
+  private void fanOut(ChangeMessage message, Consumer<Void> emitter) {
+    replayBuffer.publish(message, numbered -> {
+      if (journal.isEnabled()) {
+        journal.append(numbered, offset -> notifier.notify(numbered, offset));
+      } else {
+        notifier.notify(numbered);
+      }
+    });
+  }
+
+  /**
+   * The intake and fetch stages of a shard, with its coalescer if enabled.
+   */
+  private class Lane {
+
+    private final PipelineStage<SourceEvent, TableRowChanges> intake;
+    private final ChangeCoalescer coalescer;
+    private final PipelineStage<TableRowChanges, TableChangeInfo> fetch;
+
+    Lane(String name) {
+      ApplicationConfig.Pipeline cfg = config.getPipeline();
+      fetch = createStage("fetch-" + name, cfg.getFetch(), ChangePipeline.this::fetchRows, serialize::submit);
+      if (cfg.getCoalesce().isEnabled()) {
+        coalescer = new ChangeCoalescer(cfg.getCoalesce(), fetch, meterRegistry);
+        intake = createStage("intake-" + name, cfg.getIntake(), ChangePipeline.this::collectChanges, coalescer::add);
+      } else {
+        coalescer = null;
+        intake = createStage("intake-" + name, cfg.getIntake(), ChangePipeline.this::collectChanges, fetch::submit);
+      }
+      fetch.start();
+      intake.start();
+    }
+
+    /**
+     * Stop the lane, handing the waiting changes on to the next stage first.
+     *
+     * @param timeout maximum time to wait for each stage in milliseconds
+     */
+    void stop(long timeout) {
+      intake.stop(timeout);
+      if (coalescer != null) {
+        coalescer.shutdown(timeout);
+      }
+      fetch.stop(timeout);
+    }
+  }
+
+  /**
+   * A change event with the database it was received from.
+   */
+  private static class SourceEvent {
+
+    private final DatabaseManager source;
+    private final DatabaseChangeEvent dce;
+
+    SourceEvent(DatabaseManager source, DatabaseChangeEvent dce) {
+      this.source = source;
+      this.dce = dce;
+    }
+  }
+
+}
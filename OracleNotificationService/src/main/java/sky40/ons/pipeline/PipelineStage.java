@@ -0,0 +1,245 @@
+package sky40.ons.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A stage of the change pipeline. Takes items from a bounded queue and hands
+ * them to a handler on a fixed number of worker threads. Whatever the handler
+ * emits is submitted to the next stage. If the queue of a stage is full, the
+ * submitting thread blocks until there is room again (backpressure). Threads
+ * that must not block for long, such as the notification thread of the
+ * driver, offer the item with a timeout instead and drop it then.
+ *
+ * Counts the processed, failed and dropped items and exposes the queue depth
+ * as metrics tagged with the stage name.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ * @param <I> type of the items taken by the stage
+ * @param <O> type of the items emitted to the next stage
+ */
+@Slf4j
+public class PipelineStage<I, O> {
+
+  /**
+   * Work done by a stage for a single item.
+   *
+   * @param <I> type of the item to handle
+   * @param <O> type of the items emitted
+   */
+  @FunctionalInterface
+  public interface Handler<I, O> {
+
+    /**
+     * Handle an item.
+     *
+     * @param item the item to handle
+     * @param emitter takes the results for the next stage, may be called any
+     * number of times
+     * @throws Exception in case the item could not be handled
+     */
+    void handle(I item, Consumer<O> emitter) throws Exception;
+  }
+
+  /**
+   * Time in milliseconds an idle worker waits for an item before it checks
+   * if the stage is stopped.
+   */
+  private static final long POLL_INTERVAL = 100;
+
+  private final String name;
+  private final int workers;
+  private final BlockingQueue<I> queue;
+  private final Handler<I, O> handler;
+  private final Consumer<O> next;
+  private final Counter processed;
+  private final Counter failed;
+  private final Counter dropped;
+  private final List<Thread> threads = new ArrayList<>();
+  private volatile boolean running;
+
+  /**
+   * Creates a stage.
+   *
+   * @param name name of the stage, used for threads and metrics
+   * @param workers number of worker threads
+   * @param queueCapacity maximum number of items waiting for a worker
+   * @param handler the work to do per item
+   * @param next takes the items emitted by the handler
+   * @param meterRegistry registry to publish the metrics of the stage to
+   */
+  public PipelineStage(String name, int workers, int queueCapacity, Handler<I, O> handler, Consumer<O> next, MeterRegistry meterRegistry) {
+    this.name = name;
+    this.workers = workers;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.handler = handler;
+    this.next = next;
+    this.processed = meterRegistry.counter("ons.pipeline.processed", Tags.of("stage", name));
+    this.failed = meterRegistry.counter("ons.pipeline.failed", Tags.of("stage", name));
+    this.dropped = meterRegistry.counter("ons.pipeline.dropped", Tags.of("stage", name));
+    meterRegistry.gauge("ons.pipeline.queue.depth", Tags.of("stage", name), queue, BlockingQueue::size);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   *
+   * @return number of items waiting for a worker
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   *
+   * @return number of items handled so far
+   */
+  public long getProcessedCount() {
+    return (long) processed.count();
+  }
+
+  /**
+   *
+   * @return number of items the handler failed on
+   */
+  public long getFailedCount() {
+    return (long) failed.count();
+  }
+
+  /**
+   *
+   * @return number of items dropped because the queue stayed full
+   */
+  public long getDroppedCount() {
+    return (long) dropped.count();
+  }
+
+  /**
+   * Submit an item to the stage. Blocks while the queue is full.
+   *
+   * @param item the item to handle
+   */
+  public void submit(I item) {
+    try {
+      queue.put(item);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while submitting to stage " + name + ". Item dropped.");
+    }
+  }
+
+  /**
+   * Submit an item to the stage if there is room in the queue, without
+   * waiting. The item is not counted as dropped if there is none, the caller
+   * keeps it.
+   *
+   * @param item the item to handle
+   * @return false if the queue is full
+   */
+  public boolean offer(I item) {
+    return queue.offer(item);
+  }
+
+  /**
+   * Submit an item to the stage, waiting at most the given time for room in
+   * the queue. If the queue stays full, the item is dropped and counted.
+   *
+   * @param item the item to handle
+   * @param timeout maximum time to wait in milliseconds
+   * @return false if the item was dropped
+   */
+  public boolean offer(I item, long timeout) {
+    try {
+      if (queue.offer(item, timeout, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+      log.error("Queue of stage " + name + " stayed full for " + timeout + " ms. Item dropped.");
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while submitting to stage " + name + ". Item dropped.");
+    }
+    dropped.increment();
+    return false;
+  }
+
+  /**
+   * Start the worker threads.
+   */
+  public synchronized void start() {
+    running = true;
+    for (int i = 0; i < workers; i++) {
+      Thread thread = new Thread(this::work, "ons-" + name + "-" + (i + 1));
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+    log.info("Pipeline stage " + name + " started with " + workers + " worker(s).");
+  }
+
+  /**
+   * Stop the worker threads after they handled the items waiting in the
+   * queue, waiting at most the given time. Items still waiting then are
+   * dropped and counted.
+   *
+   * @param timeout maximum time to wait in milliseconds, 0 to drop the
+   * waiting items right away
+   */
+  public synchronized void stop(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      running = false;
+      for (Thread thread : threads) {
+        thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    running = false;
+    for (Thread thread : threads) {
+      thread.interrupt();
+    }
+    threads.clear();
+    int left = queue.size();
+    queue.clear();
+    if (left > 0) {
+      dropped.increment(left);
+      log.warn("Pipeline stage " + name + " stopped, " + left + " item(s) dropped.");
+    }
+  }
+
+  private void work() {
+    while (running) {
+      I item;
+      try {
+        // polls, so idle workers see that the stage is stopped
+        item = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        break;
+      }
+      if (item == null) {
+        continue;
+      }
+      try {
+        handler.handle(item, next);
+        processed.increment();
+      } catch (Exception ex) {
+        failed.increment();
+        log.error("Error in pipeline stage " + name + ": " + ex);
+      }
+    }
+  }
+
+}
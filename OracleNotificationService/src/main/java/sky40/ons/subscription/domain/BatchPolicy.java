@@ -0,0 +1,66 @@
+package sky40.ons.subscription.domain;
+
+/**
+ * Defines when messages to an endpoint are collected and sent together as a
+ * json array: after a number of messages, a number of bytes or a delay since
+ * the first message of the batch, whatever comes first.
+ *
+ * Immutable type.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BatchPolicy {
+
+  /**
+   * Every message is sent on its own.
+   */
+  public static final BatchPolicy NONE = new BatchPolicy(1, 0, 0);
+
+  private final int maxMessages;
+  private final int maxBytes;
+  private final long maxDelay;
+
+  /**
+   * Creates a batch policy.
+   *
+   * @param maxMessages number of messages after which the batch is sent, 1 or
+   * less to disable batching
+   * @param maxBytes number of bytes after which the batch is sent, 0 for no
+   * limit
+   * @param maxDelay time in milliseconds after the first message when the
+   * batch is sent
+   */
+  public BatchPolicy(int maxMessages, int maxBytes, long maxDelay) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.maxDelay = maxDelay;
+  }
+
+  public boolean isEnabled() {
+    return maxMessages > 1;
+  }
+
+  public int getMaxMessages() {
+    return maxMessages;
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  /**
+   * Check if a batch has to be sent.
+   *
+   * @param messages number of messages in the batch
+   * @param bytes number of bytes in the batch
+   * @return true if the batch is full
+   */
+  public boolean isFull(int messages, int bytes) {
+    return messages >= maxMessages || (maxBytes > 0 && bytes >= maxBytes);
+  }
+
+}
@@ -1,12 +1,15 @@
 package sky40.ons.subscription.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import sky40.ons.domain.BodyType;
 
 /**
  * Defines a subscription. Data class. Gives full information about the
@@ -22,9 +25,45 @@ public class Subscription {
   private Long id;
   private String name;
   private String url;
+
+  /**
+   * Timeout of a delivery request in milliseconds.
+   */
   private int timeout;
   private String sessionToken;
 
+  /**
+   * Names of the tables to get the changes of, may contain * as a wildcard.
+   * Empty for all tables.
+   */
+  private ArrayList<String> tables = new ArrayList<>();
+
+  /**
+   * Names of the columns to get the values of, upper case and sorted. Empty
+   * for all columns.
+   */
+  private ArrayList<String> columns = new ArrayList<>();
+
+  /**
+   * The format to send the messages in, null for the configured default.
+   */
+  private BodyType bodyType;
+
+  /**
+   * Number of messages sent together as a json array, 1 for no batching.
+   */
+  private int batchSize = 1;
+
+  /**
+   * Number of bytes after which a batch is sent, 0 for no limit.
+   */
+  private int batchBytes;
+
+  /**
+   * Time in milliseconds after which a batch is sent.
+   */
+  private int batchDelay;
+
   protected Subscription() {
   }
 
@@ -36,6 +75,15 @@ public class Subscription {
     this.sessionToken = sessionToken;
   }
 
+  /**
+   *
+   * @return when to send messages to the subscriber as a batch
+   */
+  @JsonIgnore
+  public BatchPolicy getBatchPolicy() {
+    return new BatchPolicy(batchSize, batchBytes, batchDelay);
+  }
+
   private static long lastId = 0;
 
   /**
@@ -0,0 +1,28 @@
+package sky40.ons.subscription.repo;
+
+import sky40.ons.subscription.domain.Subscription;
+
+/**
+ * Gets told about the changes of the {@link SubscriptionRepository}. Called
+ * while the repository is locked, so the calls are in the order of the
+ * changes and must return quickly.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public interface SubscriptionChangeListener {
+
+  /**
+   * A subscription was added.
+   *
+   * @param sub the subscription
+   */
+  void added(Subscription sub);
+
+  /**
+   * A subscription was deleted.
+   *
+   * @param sub the subscription
+   */
+  void deleted(Subscription sub);
+
+}
@@ -1,42 +1,119 @@
 package sky40.ons.subscription.repo;
 
 import sky40.ons.subscription.domain.Subscription;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Repository;
 
 /**
  * Repository (DAO pattern) for the subscription class.
- * 
+ *
+ * Thread safe. Subscriptions are indexed by id, token and name for lookups in
+ * constant time. Changes are serialized and publish a new immutable snapshot
+ * of all subscriptions, so readers can iterate it without locking or copying,
+ * together with the {@link SubscriptionRoutes} to find the subscriptions of a
+ * table.
+ *
+ * Listeners are told about each change, e.g. the {@link SubscriptionStore}
+ * that keeps the subscriptions on disk.
+ *
  * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
  */
 @Repository
 @Slf4j
 public class SubscriptionRepository {
 
-  private final HashMap<Long, Subscription> subscribers = new HashMap<>();
+  private final ConcurrentHashMap<Long, Subscription> subscribers = new ConcurrentHashMap<>();
 
   /**
+   * Subscriptions by token in lower case.
+   */
+  private final ConcurrentHashMap<String, Subscription> tokenIndex = new ConcurrentHashMap<>();
+
+  /**
+   * Subscriptions by name in lower case.
+   */
+  private final ConcurrentHashMap<String, Subscription> nameIndex = new ConcurrentHashMap<>();
+
+  private volatile List<Subscription> snapshot = Collections.emptyList();
+
+  private volatile SubscriptionRoutes routes = new SubscriptionRoutes(snapshot);
+
+  private final List<SubscriptionChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Add a listener to be told about added and deleted subscriptions.
    *
-   * @return list of all subscribers
+   * @param listener the listener
+   */
+  public void addListener(SubscriptionChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   *
+   * @return immutable snapshot of all subscribers
    */
   public Collection<Subscription> getAll() {
-    return subscribers.values();
+    return snapshot;
+  }
+
+  /**
+   *
+   * @return the routing index of the current subscriptions
+   */
+  public SubscriptionRoutes getRoutes() {
+    return routes;
   }
 
   /**
    * Adds a new subscription.
    *
    * @param sub
-   * @return The subscription or NULL if it could not be added.
+   * @return The subscription or NULL if it could not be added, because the id
+   * or name is in use already.
    */
-  public Subscription add(Subscription sub) {
-    if (!subscribers.containsKey(sub.getId())) {
+  public synchronized Subscription add(Subscription sub) {
+    if (subscribers.containsKey(sub.getId()) || nameIndex.containsKey(key(sub.getName()))) {
+      return null;
+    }
+    subscribers.put(sub.getId(), sub);
+    tokenIndex.put(key(sub.getSessionToken()), sub);
+    nameIndex.put(key(sub.getName()), sub);
+    publishSnapshot();
+    for (SubscriptionChangeListener listener : listeners) {
+      listener.added(sub);
+    }
+    return sub;
+  }
+
+  /**
+   * Add stored subscriptions at once, e.g. at startup. Subscriptions whose
+   * id or name is in use already are skipped. The listeners are not called.
+   *
+   * @param subs the subscriptions
+   * @return number of subscriptions added
+   */
+  public synchronized int restore(Collection<Subscription> subs) {
+    int ret = 0;
+    for (Subscription sub : subs) {
+      if (subscribers.containsKey(sub.getId()) || nameIndex.containsKey(key(sub.getName()))) {
+        log.warn("Stored subscription " + sub.getName() + " skipped, it exists already.");
+        continue;
+      }
       subscribers.put(sub.getId(), sub);
-      return sub;
+      tokenIndex.put(key(sub.getSessionToken()), sub);
+      nameIndex.put(key(sub.getName()), sub);
+      ret++;
     }
-    return null;
+    publishSnapshot();
+    return ret;
   }
 
   /**
@@ -45,11 +122,17 @@ public class SubscriptionRepository {
    * @param id
    * @return
    */
-  public Subscription delete(long id) {
-    if (subscribers.containsKey(id)) {
-      return subscribers.remove(id);
+  public synchronized Subscription delete(long id) {
+    Subscription sub = subscribers.remove(id);
+    if (sub != null) {
+      tokenIndex.remove(key(sub.getSessionToken()));
+      nameIndex.remove(key(sub.getName()));
+      publishSnapshot();
+      for (SubscriptionChangeListener listener : listeners) {
+        listener.deleted(sub);
+      }
     }
-    return null;
+    return sub;
   }
 
   /**
@@ -59,12 +142,7 @@ public class SubscriptionRepository {
    * @return
    */
   public Subscription findByToken(String token) {
-    for (Subscription sub : subscribers.values()) {
-      if (token.equalsIgnoreCase(sub.getSessionToken())) {
-        return sub;
-      }
-    }
-    return null;
+    return tokenIndex.get(key(token));
   }
 
   /**
@@ -74,12 +152,7 @@ public class SubscriptionRepository {
    * @return 
    */
   public Subscription findByName(String name) {
-    for (Subscription sub : subscribers.values()) {
-      if (name.equalsIgnoreCase(sub.getName())) {
-        return sub;
-      }
-    }
-    return null;
+    return nameIndex.get(key(name));
   }
 
   /**
@@ -91,4 +164,17 @@ public class SubscriptionRepository {
     return subscribers.get(id);
   }
 
+  private void publishSnapshot() {
+    List<Subscription> all = Collections.unmodifiableList(new ArrayList<>(subscribers.values()));
+    routes = new SubscriptionRoutes(all, routes);
+    snapshot = all;
+  }
+
+  /**
+   * Keys of the indexes are case insensitive.
+   */
+  private static String key(String value) {
+    return (value == null) ? "" : value.toLowerCase(Locale.ROOT);
+  }
+
 }
@@ -0,0 +1,218 @@
+package sky40.ons.subscription.repo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import sky40.ons.domain.BodyType;
+import sky40.ons.subscription.domain.Subscription;
+
+/**
+ * Routing index from table names to the subscriptions interested in them.
+ * Built for a snapshot of the subscriptions, whenever they change. The
+ * subscribers of a table are resolved on the first lookup of the table and
+ * then kept for all further messages on it.
+ *
+ * A subscription without tables gets the changes of all tables. Otherwise its
+ * table names are matched case insensitive and may contain * as a wildcard,
+ * like ADMIN.*. A name without schema matches the table in any schema.
+ *
+ * Along with the subscribers, the columns they want of the table are resolved,
+ * so only those have to be queried.
+ *
+ * Immutable type.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class SubscriptionRoutes {
+
+  private final List<Subscription> subscriptions;
+
+  /**
+   * The compiled table patterns of each subscription, null for all tables.
+   */
+  private final List<Pattern[]> patterns;
+
+  /**
+   * Resolved routes by upper case table name.
+   */
+  private final ConcurrentHashMap<String, TableRoute> byTable = new ConcurrentHashMap<>();
+
+  public SubscriptionRoutes(List<Subscription> subscriptions) {
+    this(subscriptions, null);
+  }
+
+  /**
+   * Build the routes for changed subscriptions. The patterns of the
+   * subscriptions that were routed before are taken over, so a change does
+   * not compile the patterns of all subscriptions again.
+   *
+   * @param subscriptions the subscriptions
+   * @param previous the routes before the change, may be null
+   */
+  public SubscriptionRoutes(List<Subscription> subscriptions, SubscriptionRoutes previous) {
+    this.subscriptions = subscriptions;
+    this.patterns = new ArrayList<>(subscriptions.size());
+    Map<Subscription, Pattern[]> compiled = new IdentityHashMap<>();
+    if (previous != null) {
+      for (int i = 0; i < previous.subscriptions.size(); i++) {
+        compiled.put(previous.subscriptions.get(i), previous.patterns.get(i));
+      }
+    }
+    for (Subscription sub : subscriptions) {
+      patterns.add(compiled.containsKey(sub) ? compiled.get(sub) : compile(sub.getTables()));
+    }
+  }
+
+  /**
+   * Find the subscriptions interested in a table.
+   *
+   * @param tableName the table name as notified by Oracle, e.g. ADMIN.AIRCRAFT
+   * @return immutable list of the subscriptions
+   */
+  public List<Subscription> find(String tableName) {
+    return findRoute(tableName).getSubscriptions();
+  }
+
+  /**
+   * Find the subscriptions interested in a table and the columns they want.
+   *
+   * @param tableName the table name as notified by Oracle, e.g. ADMIN.AIRCRAFT
+   * @return the route of the table
+   */
+  public TableRoute findRoute(String tableName) {
+    return byTable.computeIfAbsent(tableName.toUpperCase(Locale.ROOT), this::resolve);
+  }
+
+  private TableRoute resolve(String tableName) {
+    List<Subscription> ret = new ArrayList<>();
+    for (int i = 0; i < subscriptions.size(); i++) {
+      if (matches(patterns.get(i), tableName)) {
+        ret.add(subscriptions.get(i));
+      }
+    }
+    return new TableRoute(Collections.unmodifiableList(ret));
+  }
+
+  private static boolean matches(Pattern[] tablePatterns, String tableName) {
+    if (tablePatterns == null) {
+      return true;
+    }
+    for (Pattern pattern : tablePatterns) {
+      if (pattern.matcher(tableName).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Pattern[] compile(List<String> tables) {
+    if (tables == null || tables.isEmpty()) {
+      return null;
+    }
+    Pattern[] ret = new Pattern[tables.size()];
+    for (int i = 0; i < ret.length; i++) {
+      String table = tables.get(i).trim().toUpperCase(Locale.ROOT);
+      // a name without schema matches any schema
+      StringBuilder regex = new StringBuilder(table.contains(".") ? "" : "([^.]*\\.)?");
+      String[] parts = table.split("\\*", -1);
+      for (int part = 0; part < parts.length; part++) {
+        if (part > 0) {
+          regex.append(".*");
+        }
+        regex.append(Pattern.quote(parts[part]));
+      }
+      ret[i] = Pattern.compile(regex.toString());
+    }
+    return ret;
+  }
+
+  /**
+   * The subscriptions of a table and the columns they want.
+   *
+   * Immutable type.
+   */
+  public static class TableRoute {
+
+    private final List<Subscription> subscriptions;
+
+    /**
+     * Union of the columns of all subscriptions, null if any of them wants
+     * all columns.
+     */
+    private final Set<String> columns;
+
+    /**
+     * The distinct column lists of the subscriptions that do not want all
+     * columns.
+     */
+    private final List<List<String>> projections;
+
+    /**
+     * Indicates if any of the subscriptions wants binary messages.
+     */
+    private final boolean binary;
+
+    TableRoute(List<Subscription> subscriptions) {
+      this.subscriptions = subscriptions;
+      Set<String> union = new HashSet<>();
+      Set<List<String>> distinct = new LinkedHashSet<>();
+      boolean isBinary = false;
+      for (Subscription sub : subscriptions) {
+        isBinary |= sub.getBodyType() == BodyType.BINARY;
+        if (sub.getColumns().isEmpty()) {
+          union = null;
+        } else {
+          distinct.add(sub.getColumns());
+          if (union != null) {
+            union.addAll(sub.getColumns());
+          }
+        }
+      }
+      this.columns = (union == null) ? null : Collections.unmodifiableSet(union);
+      this.projections = Collections.unmodifiableList(new ArrayList<>(distinct));
+      this.binary = isBinary;
+    }
+
+    /**
+     *
+     * @return immutable list of the subscriptions
+     */
+    public List<Subscription> getSubscriptions() {
+      return subscriptions;
+    }
+
+    /**
+     *
+     * @return the columns to query for the subscriptions, null for all columns
+     */
+    public Set<String> getColumns() {
+      return columns;
+    }
+
+    /**
+     *
+     * @return the distinct column lists to build messages for
+     */
+    public List<List<String>> getProjections() {
+      return projections;
+    }
+
+    /**
+     *
+     * @return true if binary messages have to be built
+     */
+    public boolean isBinary() {
+      return binary;
+    }
+
+  }
+
+}
@@ -0,0 +1,444 @@
+package sky40.ons.subscription.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.subscription.domain.Subscription;
+
+/**
+ * Keeps the subscriptions in local files, so they survive a restart of the
+ * service. The store consists of a snapshot of all subscriptions and a log of
+ * the changes since. At startup, both are read into the
+ * {@link SubscriptionRepository}; lookups are served from memory only.
+ *
+ * Changes are written by a background thread, so requests do not wait for
+ * the disk. When the log grows too long, the thread writes a new snapshot
+ * and starts an empty log (compaction). Replaying a change twice does no
+ * harm, so changes logged after the snapshot was taken are simply replayed
+ * on top of it.
+ *
+ * Each subscription and change is written as a record of its length, CRC32
+ * checksum and payload. Replaying the log stops at the first incomplete or
+ * corrupt record, like one torn by a crash. A corrupt snapshot fails the
+ * startup, as it is written atomically and its loss would drop subscriptions.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+@Component
+public class SubscriptionStore implements SubscriptionChangeListener {
+
+  private static final String SNAPSHOT_FILE = "subscriptions.snapshot";
+  private static final String LOG_FILE = "subscriptions.log";
+
+  private static final int SNAPSHOT_MAGIC = 0x4f4e5353; // ONSS
+  private static final int LOG_MAGIC = 0x4f4e534c; // ONSL
+  private static final int VERSION = 2;
+
+  /**
+   * Maximum payload size of a record, larger lengths are taken as corrupt.
+   */
+  private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+  private static final byte ADDED = 1;
+  private static final byte DELETED = 2;
+
+  /**
+   * Marks the compaction of the store in the queue of changes.
+   */
+  private static final Change COMPACT = new Change(ADDED, null);
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private SubscriptionRepository repository;
+
+  private File directory;
+  private final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+  private Thread writer;
+  private volatile boolean running;
+
+  private DataOutputStream logOut;
+  private FileOutputStream logFile;
+  private int logged;
+
+  @PostConstruct
+  public void init() throws IOException {
+    if (!config.getStore().isEnabled()) {
+      return;
+    }
+    directory = new File(config.getStore().getDirectory());
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create subscription store directory " + directory.getAbsolutePath() + ".");
+    }
+
+    long start = System.nanoTime();
+    Map<Long, Subscription> subs = load();
+    int count = repository.restore(subs.values());
+    log.info(count + " subscription(s) loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+
+    repository.addListener(this);
+    // the log may end with an incomplete change, so start over with a snapshot
+    changes.add(COMPACT);
+    running = true;
+    writer = new Thread(this::write, "ons-subscription-store");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Write the pending changes and stop.
+   */
+  @PreDestroy
+  public void shutdown() {
+    if (writer != null) {
+      running = false;
+      writer.interrupt();
+      try {
+        writer.join(5000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void added(Subscription sub) {
+    changes.add(new Change(ADDED, sub));
+  }
+
+  @Override
+  public void deleted(Subscription sub) {
+    changes.add(new Change(DELETED, sub));
+  }
+
+  /**
+   * Read the snapshot and replay the log on top of it.
+   *
+   * @return the subscriptions by id
+   * @throws IOException if the snapshot cannot be read
+   */
+  private Map<Long, Subscription> load() throws IOException {
+    Map<Long, Subscription> ret = new LinkedHashMap<>();
+    File snapshot = new File(directory, SNAPSHOT_FILE);
+    if (snapshot.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 65536))) {
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+          throw new IOException("Unknown format of " + snapshot.getAbsolutePath() + ".");
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          DataInputStream record = readRecord(in);
+          if (record == null) {
+            throw new IOException("Subscription " + (i + 1) + " of " + count + " in " + snapshot.getAbsolutePath() + " is corrupt.");
+          }
+          Subscription sub = readSubscription(record);
+          ret.put(sub.getId(), sub);
+        }
+      } catch (EOFException ex) {
+        throw new IOException(snapshot.getAbsolutePath() + " is incomplete.", ex);
+      }
+    }
+    File changeLog = new File(directory, LOG_FILE);
+    if (changeLog.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(changeLog), 65536))) {
+        if (in.readInt() != LOG_MAGIC || in.readInt() != VERSION) {
+          log.warn("Unknown format of " + changeLog.getAbsolutePath() + ", ignoring it.");
+          return ret;
+        }
+        int replayed = 0;
+        while (true) {
+          DataInputStream record = readRecord(in);
+          if (record != null && record.available() == 0) {
+            break;
+          }
+          if (record == null || !replay(record, ret)) {
+            log.warn("Subscription log is corrupt after " + replayed + " change(s), ignoring the rest.");
+            break;
+          }
+          replayed++;
+        }
+      } catch (EOFException ex) {
+        log.warn("Subscription log ends with an incomplete change, ignoring it.");
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Replay a change of the log.
+   *
+   * @param record the payload of the change
+   * @param subs the subscriptions by id to apply the change to
+   * @return false if the change cannot be read
+   */
+  private static boolean replay(DataInputStream record, Map<Long, Subscription> subs) {
+    try {
+      int op = record.read();
+      if (op == ADDED) {
+        Subscription sub = readSubscription(record);
+        subs.put(sub.getId(), sub);
+      } else if (op == DELETED) {
+        subs.remove(record.readLong());
+      } else {
+        return false;
+      }
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Read a record and check its length and checksum.
+   *
+   * @param in the stream to read from
+   * @return the payload of the record, empty at the end of the stream, null
+   * if the record is corrupt
+   * @throws IOException if the record is incomplete (EOFException) or cannot
+   * be read
+   */
+  private static DataInputStream readRecord(DataInputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      return new DataInputStream(new ByteArrayInputStream(new byte[0]));
+    }
+    int length = (b << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+    int checksum = in.readInt();
+    if (length <= 0 || length > MAX_RECORD_SIZE) {
+      return null;
+    }
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    if ((int) crc.getValue() != checksum) {
+      return null;
+    }
+    return new DataInputStream(new ByteArrayInputStream(payload));
+  }
+
+  /**
+   * Write a record of its length, checksum and payload.
+   *
+   * @param out the stream to write to
+   * @param payload the payload
+   * @throws IOException
+   */
+  private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload.toByteArray());
+    out.writeInt(payload.size());
+    out.writeInt((int) crc.getValue());
+    payload.writeTo(out);
+  }
+
+  /**
+   * Loop of the writer thread: writes the changes in batches, then syncs the
+   * log to disk.
+   */
+  private void write() {
+    List<Change> batch = new ArrayList<>();
+    while (running || !changes.isEmpty()) {
+      try {
+        batch.add(changes.take());
+      } catch (InterruptedException ex) {
+        if (changes.isEmpty()) {
+          break;
+        }
+      }
+      changes.drainTo(batch);
+      try {
+        for (Change change : batch) {
+          if (change == COMPACT) {
+            compact();
+          } else {
+            append(change);
+          }
+        }
+        if (logOut != null) {
+          logOut.flush();
+          logFile.getFD().sync();
+        }
+        if (logged > Math.max(config.getStore().getCompactAfter(), repository.getAll().size())) {
+          compact();
+        }
+      } catch (IOException ex) {
+        log.error("Writing the subscription store failed: " + ex);
+      }
+      batch.clear();
+    }
+    closeLog();
+  }
+
+  private void append(Change change) throws IOException {
+    if (logOut == null) {
+      File file = new File(directory, LOG_FILE);
+      boolean isNew = !file.exists() || file.length() == 0;
+      logFile = new FileOutputStream(file, true);
+      logOut = new DataOutputStream(new BufferedOutputStream(logFile, 65536));
+      if (isNew) {
+        logOut.writeInt(LOG_MAGIC);
+        logOut.writeInt(VERSION);
+      }
+    }
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeByte(change.op);
+    if (change.op == ADDED) {
+      writeSubscription(out, change.sub);
+    } else {
+      out.writeLong(change.sub.getId());
+    }
+    writeRecord(logOut, payload);
+    logged++;
+  }
+
+  /**
+   * Write a snapshot of the current subscriptions and start an empty log.
+   * The snapshot is written to a temporary file first, so a crash leaves
+   * either the old or the new one.
+   *
+   * @throws IOException
+   */
+  private void compact() throws IOException {
+    long start = System.nanoTime();
+    Collection<Subscription> all = repository.getAll();
+    File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(all.size());
+      ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+      for (Subscription sub : all) {
+        payload.reset();
+        writeSubscription(new DataOutputStream(payload), sub);
+        writeRecord(out, payload);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(tmp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    closeLog();
+    Files.deleteIfExists(new File(directory, LOG_FILE).toPath());
+    logged = 0;
+    log.info("Subscription store compacted to " + all.size() + " subscription(s) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+  }
+
+  private void closeLog() {
+    if (logOut != null) {
+      try {
+        logOut.close();
+      } catch (IOException ex) {
+        log.error("Error closing the subscription log: " + ex);
+      }
+      logOut = null;
+      logFile = null;
+    }
+  }
+
+  private static void writeSubscription(DataOutputStream out, Subscription sub) throws IOException {
+    out.writeLong(sub.getId());
+    writeString(out, sub.getName());
+    writeString(out, sub.getUrl());
+    out.writeInt(sub.getTimeout());
+    writeString(out, sub.getSessionToken());
+    writeStrings(out, sub.getTables());
+    writeStrings(out, sub.getColumns());
+    writeString(out, (sub.getBodyType() == null) ? null : sub.getBodyType().name());
+    out.writeInt(sub.getBatchSize());
+    out.writeInt(sub.getBatchBytes());
+    out.writeInt(sub.getBatchDelay());
+  }
+
+  private static Subscription readSubscription(DataInputStream in) throws IOException {
+    Subscription ret = new Subscription(in.readLong(), readString(in), readString(in), in.readInt(), readString(in));
+    ret.setTables(readStrings(in));
+    ret.setColumns(readStrings(in));
+    String bodyType = readString(in);
+    try {
+      ret.setBodyType((bodyType == null) ? null : BodyType.valueOf(bodyType));
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Unknown body type " + bodyType + ".");
+    }
+    ret.setBatchSize(in.readInt());
+    ret.setBatchBytes(in.readInt());
+    ret.setBatchDelay(in.readInt());
+    return ret;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+    out.writeInt(values.size());
+    for (String value : values) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static ArrayList<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    // each string takes at least its 2 bytes of length
+    if (count < 0 || count > in.available() / 2) {
+      throw new IOException("Invalid number of strings: " + count + ".");
+    }
+    ArrayList<String> ret = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ret.add(in.readUTF());
+    }
+    return ret;
+  }
+
+  /**
+   * A change of the subscriptions to write.
+   */
+  private static class Change {
+
+    private final byte op;
+    private final Subscription sub;
+
+    Change(byte op, Subscription sub) {
+      this.op = op;
+      this.sub = sub;
+    }
+  }
+
+}
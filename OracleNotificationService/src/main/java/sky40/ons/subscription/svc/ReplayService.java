@@ -0,0 +1,85 @@
+package sky40.ons.subscription.svc;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import sky40.ons.delivery.ReplayBuffer;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.subscription.domain.Subscription;
+
+/**
+ * Internal service to fetch the last messages of a subscription again, e.g.
+ * after the subscriber was unreachable for a while. The messages come from
+ * the {@link ReplayBuffer}, filtered by the tables and columns of the
+ * subscription.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Service
+@Slf4j
+public class ReplayService {
+
+  @Autowired
+  private SubscriptionService subSvc;
+
+  @Autowired
+  private ReplayBuffer buffer;
+
+  /**
+   * Find the subscription of a token.
+   *
+   * @param token the session token of the subscription
+   * @return the subscription
+   */
+  public Subscription findSubscription(String token) {
+    Subscription sub = subSvc.findSubscriptionByToken(token);
+    if (sub == null) {
+      throw new RuntimeException("Subscription not found.");
+    }
+    return sub;
+  }
+
+  /**
+   * Find the messages of a subscription after a sequence number. If the
+   * sequence number is older than the first message kept, the messages in
+   * between are lost; compare with {@link #getFirstSequence()}.
+   *
+   * @param sub the subscription
+   * @param sequence the last sequence number the subscriber got
+   * @return the messages in the order of their sequence numbers, shared and
+   * not to be modified
+   */
+  public List<ChangeMessage> findMessagesAfter(Subscription sub, long sequence) {
+    List<ChangeMessage> ret = new ArrayList<>();
+    for (ChangeMessage message : buffer.findAfter(sequence)) {
+      if (subSvc.findSubscriptionsForTable(message.getTableName()).contains(sub)) {
+        ChangeMessage subMessage = message.forColumns(sub.getColumns());
+        if (subMessage.hasBody(BodyType.JSON)) {
+          ret.add(subMessage);
+        }
+      }
+    }
+    log.info("Replaying " + ret.size() + " message(s) after " + sequence + " to subscription " + sub.getName() + ".");
+    return ret;
+  }
+
+  /**
+   *
+   * @return sequence number of the oldest message kept
+   */
+  public long getFirstSequence() {
+    return buffer.getFirstSequence();
+  }
+
+  /**
+   *
+   * @return sequence number of the last message
+   */
+  public long getLastSequence() {
+    return buffer.getLastSequence();
+  }
+
+}
@@ -0,0 +1,166 @@
+package sky40.ons.subscription.svc;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.cache.RowImageCache;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.subscription.repo.SubscriptionChangeListener;
+import sky40.ons.subscription.repo.SubscriptionRepository;
+
+/**
+ * Internal service to stream messages to subscribers holding a long-lived
+ * connection (server-sent events), instead of calling their endpoint for each
+ * message. Each stream buffers a bounded number of messages the client has
+ * not consumed yet; if the client falls behind, the oldest ones are dropped.
+ * The stream of a subscription ends when the subscription is deleted.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Service
+@Slf4j
+public class StreamService implements SubscriptionChangeListener {
+
+  /**
+   * Marks a keep-alive event in the stream.
+   */
+  private static final ChangeMessage HEARTBEAT = new ChangeMessage(null, new byte[0]);
+
+  @Autowired
+  private ApplicationConfig config;
+
+  @Autowired
+  private SubscriptionService subSvc;
+
+  @Autowired
+  private SubscriptionRepository repository;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  @Autowired
+  private RowImageCache rowImages;
+
+  private Counter dropped;
+
+  /**
+   * Open streams by subscription id.
+   */
+  private final ConcurrentHashMap<Long, FluxSink<ChangeMessage>> streams = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  public void init() {
+    dropped = meterRegistry.counter("ons.stream.dropped");
+    meterRegistry.gauge("ons.stream.open", streams, ConcurrentHashMap::size);
+    repository.addListener(this);
+  }
+
+  @Override
+  public void added(Subscription sub) {
+  }
+
+  /**
+   * Close the stream of a deleted subscription.
+   *
+   * @param sub the subscription
+   */
+  @Override
+  public void deleted(Subscription sub) {
+    FluxSink<ChangeMessage> sink = streams.remove(sub.getId());
+    if (sink != null) {
+      sink.complete();
+    }
+  }
+
+  /**
+   * Open a stream of messages for a subscription. A stream opened before for
+   * the same subscription is closed. The stream gets the rows in full, until
+   * it got their images, see {@link RowImageCache}.
+   *
+   * @param token the session token of the subscription
+   * @return the stream of server-sent events
+   */
+  public Flux<ServerSentEvent<String>> openStream(String token) {
+    Subscription sub = subSvc.findSubscriptionByToken(token);
+    if (sub == null) {
+      throw new RuntimeException("Subscription not found.");
+    }
+    ApplicationConfig.Stream cfg = config.getStream();
+
+    Flux<ChangeMessage> messages = Flux.create(sink -> {
+      if (rowImages.isEnabled()) {
+        // the stream gets complete rows first
+        rowImages.join(sub);
+      }
+      FluxSink<ChangeMessage> previous = streams.put(sub.getId(), sink);
+      if (previous != null) {
+        previous.complete();
+      }
+      if (subSvc.findSubscriptionById(sub.getId()) == null) {
+        // deleted while the stream was opened
+        streams.remove(sub.getId(), sink);
+        sink.complete();
+        return;
+      }
+      Disposable heartbeat = Flux.interval(Duration.ofMillis(cfg.getHeartbeat()))
+              .subscribe(tick -> sink.next(HEARTBEAT));
+      sink.onDispose(() -> {
+        heartbeat.dispose();
+        streams.remove(sub.getId(), sink);
+        log.info("Stream of subscription " + sub.getName() + " closed.");
+      });
+      log.info("Stream of subscription " + sub.getName() + " opened.");
+    });
+
+    return messages
+            .onBackpressureBuffer(cfg.getBufferSize(), message -> dropMessage(sub, message), BufferOverflowStrategy.DROP_OLDEST)
+            // buffered before a message was dropped, may miss the previous images
+            .filter(message -> rowImages.holdsImages(sub, message.getImageGeneration()))
+            .map(message -> (message == HEARTBEAT)
+            ? ServerSentEvent.<String>builder().comment("keep-alive").build()
+            : ServerSentEvent.builder(message.getText()).id(Long.toString(message.getSequence())).event("change").build());
+  }
+
+  /**
+   * Count a message dropped from a full stream buffer. The subscriber misses
+   * the rows of the message, so the next messages have to send them in full.
+   *
+   * @param sub the subscription of the stream
+   * @param message the dropped message
+   */
+  private void dropMessage(Subscription sub, ChangeMessage message) {
+    dropped.increment();
+    if (message != HEARTBEAT && rowImages.isEnabled()) {
+      rowImages.join(sub);
+    }
+  }
+
+  /**
+   * Publish a message to the stream of a subscription, if there is one.
+   *
+   * @param sub the subscription
+   * @param message the message
+   * @return true if the subscription has an open stream
+   */
+  public boolean publish(Subscription sub, ChangeMessage message) {
+    FluxSink<ChangeMessage> sink = streams.get(sub.getId());
+    if (sink == null) {
+      return false;
+    }
+    sink.next(message);
+    return true;
+  }
+
+}
@@ -1,10 +1,15 @@
 package sky40.ons.subscription.svc;
 
+import sky40.ons.domain.BodyType;
 import sky40.ons.subscription.domain.Subscription;
 import sky40.ons.subscription.domain.SubscriptionInfo;
 import sky40.ons.subscription.repo.SubscriptionRepository;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -28,6 +33,51 @@ public class SubscriptionService {
     return repository.findById(id);
   }
 
+  /**
+   * Find the subscriptions interested in the changes of a table.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return immutable list of the subscriptions, not to be copied
+   */
+  public List<Subscription> findSubscriptionsForTable(String tableName) {
+    return repository.getRoutes().find(tableName);
+  }
+
+  /**
+   * Find the columns of a table the subscriptions are interested in.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return the column names, null for all columns
+   */
+  public Set<String> findColumnsForTable(String tableName) {
+    return repository.getRoutes().findRoute(tableName).getColumns();
+  }
+
+  /**
+   * Check if any subscription of a table wants binary messages.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return true if binary messages have to be built
+   */
+  public boolean isBinaryRequested(String tableName) {
+    return repository.getRoutes().findRoute(tableName).isBinary();
+  }
+
+  /**
+   * Find the distinct column lists of the subscriptions of a table, that do
+   * not want all columns.
+   *
+   * @param tableName the table name as notified by Oracle
+   * @return immutable list of the column lists
+   */
+  public List<List<String>> findProjectionsForTable(String tableName) {
+    return repository.getRoutes().findRoute(tableName).getProjections();
+  }
+
+  public Subscription findSubscriptionByToken(String token) {
+    return repository.findByToken(token);
+  }
+
   public Collection<SubscriptionInfo> findSubscriptionInfoAll() {
     ArrayList<SubscriptionInfo> ret = new ArrayList<>();
     for (Subscription sub : repository.getAll()) {
@@ -36,8 +86,12 @@ public class SubscriptionService {
     return ret;
   }
 
+  /**
+   *
+   * @return immutable snapshot of all subscriptions, not to be copied
+   */
   public Collection<Subscription> findSubscriptionAll() {
-    return new ArrayList<>(repository.getAll());
+    return repository.getAll();
   }
 
   /**
@@ -63,12 +117,65 @@ public class SubscriptionService {
    * @return
    */
   public Subscription createSubscription(String name, String url, int timeout) {
+    return createSubscription(name, url, timeout, 1, 0, 0, null, null, null);
+  }
+
+  /**
+   * Create new subscription, receiving messages of some tables only and in
+   * batches.
+   *
+   * @param name
+   * @param url
+   * @param timeout
+   * @param batchSize number of messages per batch, 1 for no batching
+   * @param batchBytes number of bytes after which a batch is sent, 0 for no
+   * limit
+   * @param batchDelay time in milliseconds after which a batch is sent
+   * @param tables names of the tables to get the changes of, may contain *
+   * as a wildcard, null or empty for all tables
+   * @param columns names of the columns to get the values of, null or empty
+   * for all columns
+   * @param format the format of the messages (multipart, json or binary),
+   * null for the configured default
+   * @return
+   */
+  public Subscription createSubscription(String name, String url, int timeout, int batchSize, int batchBytes, int batchDelay, List<String> tables, List<String> columns, String format) {
     Subscription sub = this.repository.findByName(name);
     if (sub != null) {
       throw new RuntimeException("Subscription with name " + name + " already exists.");
     }
+    if (batchSize > 1 && batchDelay <= 0) {
+      throw new RuntimeException("Batches need a delay after which they are sent.");
+    }
+
+    BodyType bodyType = null;
+    if (format != null && !format.isEmpty()) {
+      try {
+        bodyType = BodyType.valueOf(format.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException ex) {
+        throw new RuntimeException("Unknown message format " + format + ".");
+      }
+    }
 
     sub = new Subscription(Subscription.nextId(), name, url, timeout, Subscription.nextToken());
-    return this.repository.add(sub);
+    sub.setBodyType(bodyType);
+    sub.setBatchSize(batchSize);
+    sub.setBatchBytes(batchBytes);
+    sub.setBatchDelay(batchDelay);
+    if (tables != null) {
+      sub.setTables(new ArrayList<>(tables));
+    }
+    if (columns != null) {
+      // normalized, so subscriptions on the same columns share their messages
+      TreeSet<String> normalized = new TreeSet<>();
+      for (String column : columns) {
+        normalized.add(column.trim().toUpperCase(Locale.ROOT));
+      }
+      sub.setColumns(new ArrayList<>(normalized));
+    }
+    if (this.repository.add(sub) == null) {
+      throw new RuntimeException("Subscription with name " + name + " already exists.");
+    }
+    return sub;
   }
 }
@@ -0,0 +1,91 @@
+package sky40.ons.subscription.web.controller;
+
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.subscription.domain.Result;
+import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.subscription.svc.ReplayService;
+
+/**
+ * REST based controller to fetch the last messages of a subscription again,
+ * after a given sequence number. The messages are written straight from the
+ * buffer into the response, as json array or as concatenated binary messages
+ * for subscriptions in the binary format. The headers X-ONS-First-Sequence
+ * and X-ONS-Last-Sequence tell which messages are available; if the first
+ * sequence is above the requested one plus 1, messages were lost. An unknown
+ * token is answered with an error result, like the subscription requests.
+ * Uses the internal service to delegate requests.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@RestController
+@RequestMapping("/api")
+@Slf4j
+public class ReplayController {
+
+  public static final String FIRST_SEQUENCE_HEADER = "X-ONS-First-Sequence";
+  public static final String LAST_SEQUENCE_HEADER = "X-ONS-Last-Sequence";
+
+  private final ReplayService svc;
+
+  @Autowired
+  public ReplayController(ReplayService svc) {
+    this.svc = svc;
+  }
+
+  @GetMapping("/replay")
+  public ResponseEntity<?> replay(
+          @RequestParam("token") String token,
+          @RequestParam(value = "after", required = false, defaultValue = "0") long after
+  ) {
+    Subscription sub;
+    try {
+      sub = svc.findSubscription(token);
+    } catch (Exception ex) {
+      return ResponseEntity.ok(new Result<>(ex));
+    }
+    long firstSequence = svc.getFirstSequence();
+    long lastSequence = svc.getLastSequence();
+    List<ChangeMessage> messages = svc.findMessagesAfter(sub, after);
+    boolean isBinary = sub.getBodyType() == BodyType.BINARY;
+
+    StreamingResponseBody body = out -> {
+      if (!isBinary) {
+        out.write('[');
+      }
+      boolean isFirst = true;
+      for (ChangeMessage message : messages) {
+        if (isBinary) {
+          if (message.hasBody(BodyType.BINARY)) {
+            out.write(message.getBody(BodyType.BINARY));
+          }
+        } else {
+          if (!isFirst) {
+            out.write(',');
+          }
+          out.write(message.getJson());
+          isFirst = false;
+        }
+      }
+      if (!isBinary) {
+        out.write(']');
+      }
+    };
+    return ResponseEntity.ok()
+            .header(HttpHeaders.CONTENT_TYPE, isBinary ? ChangeMessage.BINARY_CONTENT_TYPE : ChangeMessage.JSON_CONTENT_TYPE)
+            .header(FIRST_SEQUENCE_HEADER, Long.toString(firstSequence))
+            .header(LAST_SEQUENCE_HEADER, Long.toString(lastSequence))
+            .body(body);
+  }
+
+}
@@ -0,0 +1,39 @@
+package sky40.ons.subscription.web.controller;
+
+import sky40.ons.subscription.svc.StreamService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+
+/**
+ * REST based controller to stream the messages of a subscription over a single
+ * long-lived connection as server-sent events. While the stream is open, the
+ * endpoint of the subscription is not called. Uses the internal service to
+ * delegate requests.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@RestController
+@RequestMapping("/api")
+@Slf4j
+public class StreamController {
+
+  private final StreamService svc;
+
+  @Autowired
+  public StreamController(StreamService svc) {
+    this.svc = svc;
+  }
+
+  @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public Flux<ServerSentEvent<String>> stream(@RequestParam("token") String token) {
+    return svc.openStream(token);
+  }
+
+}
@@ -5,6 +5,7 @@ import sky40.ons.subscription.domain.Subscription;
 import sky40.ons.subscription.domain.SubscriptionInfo;
 import sky40.ons.subscription.svc.SubscriptionService;
 import java.util.Collection;
+import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -55,10 +56,16 @@ public class SubscriptionController {
   public Result<Subscription> createSubscriber(
           @RequestParam("name") String name,
           @RequestParam("url") String url,
-          @RequestParam("timeout") int timeout
+          @RequestParam("timeout") int timeout,
+          @RequestParam(value = "batchSize", required = false, defaultValue = "1") int batchSize,
+          @RequestParam(value = "batchBytes", required = false, defaultValue = "1048576") int batchBytes,
+          @RequestParam(value = "batchDelay", required = false, defaultValue = "1000") int batchDelay,
+          @RequestParam(value = "tables", required = false) List<String> tables,
+          @RequestParam(value = "columns", required = false) List<String> columns,
+          @RequestParam(value = "format", required = false) String format
   ) {
     try {
-      Subscription ret = svc.createSubscription(name, url, timeout);
+      Subscription ret = svc.createSubscription(name, url, timeout, batchSize, batchBytes, batchDelay, tables, columns, format);
       log.info("Subscription created for name " + name);
       return new Result<>(ret);
     } catch (Exception ex) {
@@ -0,0 +1,231 @@
+package sky40.ons.util;
+
+import java.util.Arrays;
+
+/**
+ * Writes the binary message format (see data/BINARY FORMAT.txt) into a
+ * growing buffer, which is meant to be reused for many messages. Numbers are
+ * written big-endian, strings as UTF-8 with a 32 bit length prefix.
+ *
+ * Not thread safe. Use one writer per thread.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BinaryWriter {
+
+  /**
+   * Magic bytes and version at the start of each message.
+   */
+  public static final byte[] MAGIC = {'O', 'N', 'S', 3};
+
+  /**
+   * Maximum number of strings in a list, as the number is written as 16 bit
+   * integer.
+   */
+  public static final int MAX_COUNT = 0xffff;
+
+  private byte[] buf;
+  private int size;
+
+  public BinaryWriter() {
+    this(4096);
+  }
+
+  public BinaryWriter(int initialCapacity) {
+    this.buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Clear the writer for the next message. Keeps the buffer.
+   *
+   * @return this writer
+   */
+  public BinaryWriter reset() {
+    size = 0;
+    return this;
+  }
+
+  /**
+   *
+   * @return number of bytes written
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *
+   * @return copy of the bytes written
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * Start a message: reserves its length prefix and writes the magic bytes.
+   *
+   * @return position of the message, to be passed to
+   * {@link #endMessage(int)}
+   */
+  public int beginMessage() {
+    int ret = size;
+    writeInt(0);
+    write(MAGIC);
+    return ret;
+  }
+
+  /**
+   * End a message by filling in its length prefix.
+   *
+   * @param start the position returned by {@link #beginMessage()}
+   * @return this writer
+   */
+  public BinaryWriter endMessage(int start) {
+    putInt(start, size - start - 4);
+    return this;
+  }
+
+  public BinaryWriter writeByte(int value) {
+    ensureCapacity(1);
+    buf[size++] = (byte) value;
+    return this;
+  }
+
+  public BinaryWriter writeShort(int value) {
+    ensureCapacity(2);
+    buf[size++] = (byte) (value >>> 8);
+    buf[size++] = (byte) value;
+    return this;
+  }
+
+  public BinaryWriter writeInt(int value) {
+    ensureCapacity(4);
+    putInt(size, value);
+    size += 4;
+    return this;
+  }
+
+  public BinaryWriter writeLong(long value) {
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+    return this;
+  }
+
+  public BinaryWriter write(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buf, size, bytes.length);
+    size += bytes.length;
+    return this;
+  }
+
+  /**
+   * Write a string as UTF-8 bytes, prefixed with their number as 32 bit
+   * integer, or -1 for null.
+   *
+   * @param value the string, may be null
+   * @return this writer
+   */
+  public BinaryWriter writeString(String value) {
+    if (value == null) {
+      return writeInt(-1);
+    }
+    int lengthPos = size;
+    writeInt(0);
+    ensureCapacity(value.length() * 3);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[size++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[size++] = (byte) (0xc0 | (c >> 6));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, value.charAt(++i));
+        buf[size++] = (byte) (0xf0 | (cp >> 18));
+        buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (cp & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, replaced like String.getBytes does
+        buf[size++] = '?';
+      } else {
+        buf[size++] = (byte) (0xe0 | (c >> 12));
+        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    putInt(lengthPos, size - lengthPos - 4);
+    return this;
+  }
+
+  /**
+   * Write a number as string of its decimal digits, like
+   * {@link #writeString(java.lang.String)} does with Long.toString(value),
+   * without building the string.
+   *
+   * @param value the number
+   * @return this writer
+   */
+  public BinaryWriter writeString(long value) {
+    if (value == Long.MIN_VALUE) {
+      return writeString(Long.toString(value));
+    }
+    int lengthPos = size;
+    writeInt(0);
+    ensureCapacity(20);
+    if (value < 0) {
+      buf[size++] = '-';
+      value = -value;
+    }
+    int start = size;
+    do {
+      buf[size++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // digits were written in reverse order
+    for (int i = start, j = size - 1; i < j; i++, j--) {
+      byte tmp = buf[i];
+      buf[i] = buf[j];
+      buf[j] = tmp;
+    }
+    putInt(lengthPos, size - lengthPos - 4);
+    return this;
+  }
+
+  /**
+   * Write a list of strings, prefixed with their number as 16 bit integer.
+   *
+   * @param values the strings
+   * @return this writer
+   * @throws IllegalArgumentException if there are more than 65535 strings
+   */
+  public BinaryWriter writeStrings(Iterable<?> values) {
+    int countPos = size;
+    writeShort(0);
+    int count = 0;
+    for (Object value : values) {
+      if (count == MAX_COUNT) {
+        throw new IllegalArgumentException("More than " + MAX_COUNT + " strings in a list.");
+      }
+      writeString(String.valueOf(value));
+      count++;
+    }
+    buf[countPos] = (byte) (count >>> 8);
+    buf[countPos + 1] = (byte) count;
+    return this;
+  }
+
+  private void putInt(int pos, int value) {
+    buf[pos] = (byte) (value >>> 24);
+    buf[pos + 1] = (byte) (value >>> 16);
+    buf[pos + 2] = (byte) (value >>> 8);
+    buf[pos + 3] = (byte) value;
+  }
+
+  private void ensureCapacity(int additional) {
+    if (size + additional > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + additional));
+    }
+  }
+
+}
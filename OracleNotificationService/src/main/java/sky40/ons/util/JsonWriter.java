@@ -0,0 +1,403 @@
+package sky40.ons.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes json in a single pass as UTF-8 bytes into a growing buffer, which is
+ * meant to be reused for many messages. Other than the {@link JsonBuilder} it
+ * does not build intermediate strings and escapes strings as the json
+ * specification demands. Commas between elements are inserted automatically.
+ *
+ * Not thread safe. Use one writer per thread.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class JsonWriter {
+
+  private static final int MAX_DEPTH = 64;
+
+  private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+  private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /**
+   * Encoded names by cache key, e.g. the column names of a table.
+   */
+  private static final ConcurrentHashMap<String, EncodedNames> NAME_CACHE = new ConcurrentHashMap<>();
+
+  private byte[] buf;
+  private int size;
+
+  /**
+   * Per nesting level, if an element was written already and the next one
+   * needs a comma.
+   */
+  private final boolean[] hasElements = new boolean[MAX_DEPTH];
+  private int depth;
+  private boolean isAfterName;
+
+  public JsonWriter() {
+    this(4096);
+  }
+
+  public JsonWriter(int initialCapacity) {
+    this.buf = new byte[initialCapacity];
+  }
+
+  /**
+   * Clear the writer for the next message. Keeps the buffer.
+   *
+   * @return this writer
+   */
+  public JsonWriter reset() {
+    size = 0;
+    depth = 0;
+    isAfterName = false;
+    return this;
+  }
+
+  /**
+   *
+   * @return number of bytes written
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   *
+   * @return copy of the bytes written
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * Write the bytes written so far to the stream.
+   *
+   * @param out stream to write to
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, size);
+  }
+
+  public JsonWriter beginObject() {
+    beforeValue();
+    write('{');
+    push();
+    return this;
+  }
+
+  public JsonWriter endObject() {
+    depth--;
+    write('}');
+    return this;
+  }
+
+  public JsonWriter beginArray() {
+    beforeValue();
+    write('[');
+    push();
+    return this;
+  }
+
+  public JsonWriter endArray() {
+    depth--;
+    write(']');
+    return this;
+  }
+
+  /**
+   * Write the name of the next pair in an object.
+   *
+   * @param name the name
+   * @return this writer
+   */
+  public JsonWriter name(String name) {
+    beforeValue();
+    writeString(name);
+    write(':');
+    isAfterName = true;
+    return this;
+  }
+
+  /**
+   * Write the name of the next pair in an object, as encoded by
+   * {@link #encodeName(java.lang.String)}.
+   *
+   * @param encodedName the encoded name
+   * @return this writer
+   */
+  public JsonWriter name(byte[] encodedName) {
+    beforeValue();
+    write(encodedName);
+    isAfterName = true;
+    return this;
+  }
+
+  public JsonWriter value(String value) {
+    beforeValue();
+    if (value == null) {
+      write(NULL);
+    } else {
+      writeString(value);
+    }
+    return this;
+  }
+
+  public JsonWriter value(long value) {
+    beforeValue();
+    writeLong(value);
+    return this;
+  }
+
+  public JsonWriter value(double value) {
+    beforeValue();
+    writeAscii(Double.toString(value));
+    return this;
+  }
+
+  /**
+   * Write a number given as string, e.g. by BigDecimal.toPlainString(), as it
+   * is.
+   *
+   * @param number the json number
+   * @return this writer
+   */
+  public JsonWriter numberValue(String number) {
+    beforeValue();
+    writeAscii(number);
+    return this;
+  }
+
+  /**
+   * Write a number as a json string, e.g. "42", without building the string.
+   *
+   * @param value the number
+   * @return this writer
+   */
+  public JsonWriter stringValue(long value) {
+    beforeValue();
+    write('"');
+    writeLong(value);
+    write('"');
+    return this;
+  }
+
+  public JsonWriter value(boolean value) {
+    beforeValue();
+    write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  public JsonWriter nullValue() {
+    beforeValue();
+    write(NULL);
+    return this;
+  }
+
+  /**
+   * Write a string array.
+   *
+   * @param values elements of the array, written by their string value
+   * @return this writer
+   */
+  public JsonWriter array(Iterable<?> values) {
+    beginArray();
+    if (values != null) {
+      for (Object value : values) {
+        value(String.valueOf(value));
+      }
+    }
+    return endArray();
+  }
+
+  /**
+   * Encode a name as a json string followed by a colon.
+   *
+   * @param name the name to encode
+   * @return the encoded name, to be passed to {@link #name(byte[])}
+   */
+  public static byte[] encodeName(String name) {
+    JsonWriter writer = new JsonWriter(name.length() + 8);
+    writer.writeString(name);
+    writer.write(':');
+    return writer.toByteArray();
+  }
+
+  /**
+   * Get the encoded names for a list of names, e.g. the columns of a table.
+   * The names are encoded once and cached by the key, as long as the list of
+   * names stays the same.
+   *
+   * @param cacheKey key to cache the encoded names by
+   * @param names the names to encode
+   * @return the encoded names in the order of the list
+   */
+  public static byte[][] encodeNames(String cacheKey, List<String> names) {
+    EncodedNames cached = NAME_CACHE.get(cacheKey);
+    if (cached == null || !cached.names.equals(names)) {
+      cached = new EncodedNames(names);
+      NAME_CACHE.put(cacheKey, cached);
+    }
+    return cached.encoded;
+  }
+
+  private void push() {
+    if (depth == MAX_DEPTH) {
+      throw new IllegalStateException("Json nested too deep.");
+    }
+    hasElements[depth++] = false;
+  }
+
+  private void beforeValue() {
+    if (isAfterName) {
+      isAfterName = false;
+      return;
+    }
+    if (depth > 0) {
+      if (hasElements[depth - 1]) {
+        write(',');
+      }
+      hasElements[depth - 1] = true;
+    }
+  }
+
+  private void ensureCapacity(int additional) {
+    if (size + additional > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + additional));
+    }
+  }
+
+  private void write(char c) {
+    ensureCapacity(1);
+    buf[size++] = (byte) c;
+  }
+
+  private void write(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buf, size, bytes.length);
+    size += bytes.length;
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      writeAscii(Long.toString(value));
+      return;
+    }
+    ensureCapacity(20);
+    if (value < 0) {
+      buf[size++] = '-';
+      value = -value;
+    }
+    int start = size;
+    do {
+      buf[size++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // digits were written in reverse order
+    for (int i = start, j = size - 1; i < j; i++, j--) {
+      byte tmp = buf[i];
+      buf[i] = buf[j];
+      buf[j] = tmp;
+    }
+  }
+
+  private void writeAscii(String str) {
+    ensureCapacity(str.length());
+    for (int i = 0; i < str.length(); i++) {
+      buf[size++] = (byte) str.charAt(i);
+    }
+  }
+
+  /**
+   * Write a quoted, escaped and UTF-8 encoded string.
+   */
+  private void writeString(String str) {
+    int len = str.length();
+    // worst case: every char escaped as \\uXXXX
+    ensureCapacity(len * 6 + 2);
+    buf[size++] = '"';
+    for (int i = 0; i < len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        switch (c) {
+          case '"':
+          case '\\':
+            buf[size++] = '\\';
+            buf[size++] = (byte) c;
+            break;
+          case '\n':
+            buf[size++] = '\\';
+            buf[size++] = 'n';
+            break;
+          case '\r':
+            buf[size++] = '\\';
+            buf[size++] = 'r';
+            break;
+          case '\t':
+            buf[size++] = '\\';
+            buf[size++] = 't';
+            break;
+          default:
+            if (c < 0x20) {
+              writeUnicodeEscape(c);
+            } else {
+              buf[size++] = (byte) c;
+            }
+        }
+      } else if (c < 0x800) {
+        buf[size++] = (byte) (0xc0 | (c >> 6));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        buf[size++] = (byte) (0xf0 | (cp >> 18));
+        buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (cp & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, not encodable in UTF-8
+        writeUnicodeEscape(c);
+      } else {
+        buf[size++] = (byte) (0xe0 | (c >> 12));
+        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    buf[size++] = '"';
+  }
+
+  private void writeUnicodeEscape(char c) {
+    buf[size++] = '\\';
+    buf[size++] = 'u';
+    buf[size++] = HEX[(c >> 12) & 0xf];
+    buf[size++] = HEX[(c >> 8) & 0xf];
+    buf[size++] = HEX[(c >> 4) & 0xf];
+    buf[size++] = HEX[c & 0xf];
+  }
+
+  /**
+   * A list of names together with their encoding.
+   */
+  private static class EncodedNames {
+
+    private final List<String> names;
+    private final byte[][] encoded;
+
+    EncodedNames(List<String> names) {
+      this.names = new ArrayList<>(names);
+      this.encoded = new byte[names.size()][];
+      for (int i = 0; i < encoded.length; i++) {
+        encoded[i] = encodeName(names.get(i));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+package sky40.ons.util;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects the durations of the startup phases. Each phase is logged and
+ * recorded as timer ons.startup with the phase as tag.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+@Slf4j
+public class StartupTimings {
+
+  private final MeterRegistry meterRegistry;
+  private final long start;
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+
+  /**
+   * Creates the timings of a startup.
+   *
+   * @param meterRegistry registry to record the phases in
+   * @param start start of the application as by System.nanoTime()
+   */
+  public StartupTimings(MeterRegistry meterRegistry, long start) {
+    this.meterRegistry = meterRegistry;
+    this.start = start;
+  }
+
+  /**
+   * Record a phase that ends now.
+   *
+   * @param phase name of the phase
+   * @param phaseStart start of the phase as by System.nanoTime()
+   */
+  public synchronized void record(String phase, long phaseStart) {
+    long nanos = System.nanoTime() - phaseStart;
+    phases.merge(phase, nanos, Long::sum);
+    meterRegistry.timer("ons.startup", "phase", phase).record(nanos, TimeUnit.NANOSECONDS);
+    log.info("Startup phase " + phase + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms.");
+  }
+
+  /**
+   * Log the durations of all phases.
+   */
+  public synchronized void report() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      sb.append((sb.length() == 0) ? "" : ", ").append(entry.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append(" ms");
+    }
+    log.info("Startup took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms (" + sb + ").");
+  }
+
+}
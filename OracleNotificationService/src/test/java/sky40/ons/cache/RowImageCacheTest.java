@@ -0,0 +1,122 @@
+package sky40.ons.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.ChangedRowSet;
+import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.subscription.repo.SubscriptionRepository;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reduces updated rows to their changed columns for subscribers holding the
+ * previous images, and sends them in full after a subscriber joined or the
+ * queried columns changed.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class RowImageCacheTest {
+
+  private static final List<String> ALL_COLUMNS = Arrays.asList("ID", "REGISTRATION", "OPERATOR");
+
+  private SimpleMeterRegistry meterRegistry;
+  private SubscriptionRepository repository;
+  private RowImageCache cache;
+
+  @Before
+  public void setUp() {
+    ApplicationConfig config = new ApplicationConfig();
+    config.getCache().setEnabled(true);
+    meterRegistry = new SimpleMeterRegistry();
+    repository = new SubscriptionRepository();
+    cache = new RowImageCache();
+    ReflectionTestUtils.setField(cache, "config", config);
+    ReflectionTestUtils.setField(cache, "meterRegistry", meterRegistry);
+    ReflectionTestUtils.setField(cache, "repository", repository);
+    cache.init();
+  }
+
+  @Test
+  public void updatedRowsAreReducedToTheirChangedColumns() {
+    Subscription tower = subscription(1, "tower");
+    repository.restore(Collections.singletonList(tower));
+
+    ChangedRowSet first = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Lufthansa"));
+    assertNull(first.getChangedColumns(0));
+    assertEquals(-1, first.getImageGeneration());
+
+    ChangedRowSet second = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Condor"));
+    assertArrayEquals(new boolean[]{false, false, true}, second.getChangedColumns(0));
+    assertTrue(cache.holdsImages(tower, second.getImageGeneration()));
+  }
+
+  @Test
+  public void joinedSubscribersGetCompleteRows() {
+    Subscription tower = repository.add(subscription(1, "tower"));
+    cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Lufthansa"));
+    ChangedRowSet before = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Condor"));
+
+    Subscription apron = repository.add(subscription(2, "apron"));
+    // found before the subscription was added
+    assertTrue(cache.holdsImages(tower, before.getImageGeneration()));
+    assertFalse(cache.holdsImages(apron, before.getImageGeneration()));
+    assertTrue(cache.holdsImages(apron, -1));
+
+    ChangedRowSet complete = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Eurowings"));
+    assertNull(complete.getChangedColumns(0));
+    ChangedRowSet after = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Lufthansa"));
+    assertArrayEquals(new boolean[]{false, false, true}, after.getChangedColumns(0));
+    assertTrue(cache.holdsImages(tower, after.getImageGeneration()));
+    assertTrue(cache.holdsImages(apron, after.getImageGeneration()));
+
+    repository.delete(apron.getId());
+    assertTrue(cache.holdsImages(apron, before.getImageGeneration()));
+  }
+
+  @Test
+  public void otherColumnsDropTheImages() {
+    List<String> someColumns = Arrays.asList("ID", "OPERATOR");
+    cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Lufthansa"));
+    cache.update("FLEET", "ADMIN.AIRCRAFT", rows(someColumns, "Condor"));
+    assertEquals(1, meterRegistry.counter("ons.cache.resets").count(), 0);
+
+    ChangedRowSet complete = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Condor"));
+    // the image of the other columns would not tell the change
+    assertNull(complete.getChangedColumns(0));
+    ChangedRowSet reduced = cache.update("FLEET", "ADMIN.AIRCRAFT", rows(ALL_COLUMNS, "Eurowings"));
+    assertArrayEquals(new boolean[]{false, false, true}, reduced.getChangedColumns(0));
+  }
+
+  private static ChangedRowSet rows(List<String> columns, String operator) {
+    ChangedRowSet.Builder builder = new ChangedRowSet.Builder(columns, null);
+    builder.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"));
+    for (int col = 0; col < columns.size(); col++) {
+      switch (columns.get(col)) {
+        case "ID":
+          builder.setString(col, "100001");
+          break;
+        case "REGISTRATION":
+          builder.setString(col, "D-AIPA");
+          break;
+        default:
+          builder.setString(col, operator);
+      }
+    }
+    return builder.build();
+  }
+
+  private static Subscription subscription(long id, String name) {
+    return new Subscription(id, name, "http://localhost:8081/" + name, 1000, "token-" + id);
+  }
+
+}
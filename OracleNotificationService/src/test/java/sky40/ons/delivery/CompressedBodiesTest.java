@@ -0,0 +1,87 @@
+package sky40.ons.delivery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compresses message bodies with gzip and keeps them for the next recipient,
+ * within the byte limit.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class CompressedBodiesTest {
+
+  @Test
+  public void gzipBodyIsDecodedAgain() throws IOException {
+    ChangeMessage message = message(1000);
+    byte[] body = new GzipCodec().encode(message.getBody(BodyType.JSON));
+    assertTrue(body.length < message.size());
+    assertArrayEquals(message.getJson(), decode(body));
+  }
+
+  @Test
+  public void bodyIsCompressedOnce() throws IOException {
+    CompressedBodies bodies = new CompressedBodies(new GzipCodec(), 1024 * 1024);
+    ChangeMessage message = message(1000);
+    byte[] json = bodies.get(message, BodyType.JSON);
+    assertSame(json, bodies.get(message, BodyType.JSON));
+    assertEquals("gzip", bodies.getEncoding());
+    assertEquals(json.length, bodies.getBytes());
+
+    byte[] multipart = bodies.get(message, BodyType.MULTIPART);
+    assertArrayEquals(message.getBody(BodyType.MULTIPART), decode(multipart));
+    assertEquals(json.length + multipart.length, bodies.getBytes());
+  }
+
+  @Test
+  public void leastRecentlyUsedBodiesAreDropped() {
+    ChangeMessage first = message(1000);
+    ChangeMessage second = message(1000);
+    ChangeMessage third = message(1000);
+    int size = new GzipCodec().encode(first.getJson()).length;
+    CompressedBodies bodies = new CompressedBodies(new GzipCodec(), 2 * size);
+    byte[] firstBody = bodies.get(first, BodyType.JSON);
+    byte[] secondBody = bodies.get(second, BodyType.JSON);
+    bodies.get(first, BodyType.JSON);
+    bodies.get(third, BodyType.JSON);
+    assertTrue(bodies.getBytes() <= 2 * size);
+    assertSame(firstBody, bodies.get(first, BodyType.JSON));
+    // compressed again
+    assertNotSame(secondBody, bodies.get(second, BodyType.JSON));
+  }
+
+  private static ChangeMessage message(int rows) {
+    StringBuilder json = new StringBuilder("{\"seq\":" + ChangeMessage.SEQUENCE_PLACEHOLDER + ",\"rows\":[");
+    for (int i = 0; i < rows; i++) {
+      json.append(i > 0 ? "," : "").append("{\"ID\":\"").append(i).append("\",\"NAME\":\"D-EABC\"}");
+    }
+    json.append("]}");
+    return new ChangeMessage("ADMIN.AIRCRAFT", json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] decode(byte[] body) throws IOException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        ret.write(buf, 0, n);
+      }
+    }
+    return ret.toByteArray();
+  }
+
+}
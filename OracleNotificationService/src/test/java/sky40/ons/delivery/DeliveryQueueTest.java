@@ -0,0 +1,76 @@
+package sky40.ons.delivery;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Test;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.subscription.domain.BatchPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Drops messages by the overflow policy when the queue of an endpoint is
+ * full. No request is sent, the endpoint has no request slots.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class DeliveryQueueTest {
+
+  private ApplicationConfig.Delivery config;
+  private SimpleMeterRegistry meterRegistry;
+
+  @Before
+  public void setUp() {
+    config = new ApplicationConfig.Delivery();
+    config.setConcurrency(0);
+    config.setQueueCapacity(2);
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  public void oldestMessageIsDropped() {
+    config.setOverflowPolicy(DeliveryQueue.OverflowPolicy.DROP_OLDEST);
+    DeliveryQueue queue = queue();
+    for (int i = 0; i < 5; i++) {
+      queue.offer(message(i));
+    }
+    assertEquals(2, queue.size());
+    assertEquals(3, meterRegistry.counter("ons.delivery.dropped").count(), 0);
+  }
+
+  @Test
+  public void newestMessageIsDropped() {
+    config.setOverflowPolicy(DeliveryQueue.OverflowPolicy.DROP_NEWEST);
+    DeliveryQueue queue = queue();
+    for (int i = 0; i < 5; i++) {
+      queue.offer(message(i));
+    }
+    assertEquals(2, queue.size());
+    assertEquals(3, meterRegistry.counter("ons.delivery.dropped").count(), 0);
+  }
+
+  @Test
+  public void queueNeedsRoomForAMessage() {
+    try {
+      config.setQueueCapacity(0);
+      fail();
+    } catch (RuntimeException ex) {
+      assertEquals(2, config.getQueueCapacity());
+    }
+  }
+
+  private DeliveryQueue queue() {
+    return new DeliveryQueue("http://localhost:8081/", null, 1000, config, BodyType.JSON, null, BatchPolicy.NONE,
+            new DeliveryMetrics(meterRegistry), null);
+  }
+
+  private static ChangeMessage message(int number) {
+    String json = "{\"seq\":" + ChangeMessage.SEQUENCE_PLACEHOLDER + ",\"number\":" + number + "}";
+    return new ChangeMessage("ADMIN.AIRCRAFT", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
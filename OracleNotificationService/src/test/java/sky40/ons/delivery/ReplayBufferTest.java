@@ -0,0 +1,113 @@
+package sky40.ons.delivery;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Numbers the messages and finds them again, with the sequence number in
+ * every body, also in the compressed ones.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class ReplayBufferTest {
+
+  private ReplayBuffer buffer;
+
+  @Before
+  public void setUp() {
+    ApplicationConfig config = new ApplicationConfig();
+    config.getReplay().setMaxMessages(3);
+    buffer = new ReplayBuffer();
+    ReflectionTestUtils.setField(buffer, "config", config);
+    ReflectionTestUtils.setField(buffer, "meterRegistry", new SimpleMeterRegistry());
+    buffer.init();
+  }
+
+  @Test
+  public void messagesAreNumberedInOrder() {
+    List<ChangeMessage> sent = publish(5);
+    assertEquals(3, buffer.size());
+    assertEquals(sent.get(2).getSequence(), buffer.getFirstSequence());
+    assertEquals(sent.get(4).getSequence(), buffer.getLastSequence());
+    List<ChangeMessage> found = buffer.findAfter(sent.get(2).getSequence());
+    assertEquals(2, found.size());
+    assertSame(sent.get(3), found.get(0));
+    assertSame(sent.get(4), found.get(1));
+    for (int i = 1; i < sent.size(); i++) {
+      assertEquals(sent.get(i - 1).getSequence() + 1, sent.get(i).getSequence());
+    }
+  }
+
+  @Test
+  public void replayedBodiesCarryTheSequence() throws IOException {
+    ChangeMessage message = message(1000);
+    CompressedBodies bodies = new CompressedBodies(new GzipCodec(), 1024 * 1024);
+    // bodies derived before the message is numbered
+    bodies.get(message, BodyType.JSON);
+    bodies.get(message, BodyType.MULTIPART);
+    message.getText();
+    buffer.publish(message, numbered -> {
+    });
+    publish(1);
+
+    ChangeMessage replayed = buffer.findAfter(0).get(0);
+    String seq = "{\"seq\":" + replayed.getSequence() + ",";
+    assertTrue(replayed.getText().replace(" ", "").startsWith(seq));
+    assertTrue(text(decode(bodies.get(replayed, BodyType.JSON))).replace(" ", "").startsWith(seq));
+    assertTrue(text(decode(bodies.get(replayed, BodyType.MULTIPART))).replace(" ", "").contains("\r\n\r\n" + seq));
+    // the message as built is not numbered
+    assertEquals(0, message.getSequence());
+    assertTrue(message.getText().startsWith("{\"seq\":" + ChangeMessage.SEQUENCE_PLACEHOLDER));
+  }
+
+  private List<ChangeMessage> publish(int count) {
+    List<ChangeMessage> ret = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      buffer.publish(message(10), ret::add);
+    }
+    return ret;
+  }
+
+  private static ChangeMessage message(int rows) {
+    StringBuilder json = new StringBuilder("{\"seq\":" + ChangeMessage.SEQUENCE_PLACEHOLDER + ",\"rows\":[");
+    for (int i = 0; i < rows; i++) {
+      json.append(i > 0 ? "," : "").append("{\"ID\":\"").append(i).append("\"}");
+    }
+    json.append("]}");
+    return new ChangeMessage("ADMIN.AIRCRAFT", json.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String text(byte[] body) {
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] decode(byte[] body) throws IOException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        ret.write(buf, 0, n);
+      }
+    }
+    return ret.toByteArray();
+  }
+
+}
@@ -0,0 +1,102 @@
+package sky40.ons.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import oracle.jdbc.dcn.TableChangeDescription;
+import org.junit.Test;
+import sky40.ons.delivery.GzipCodec;
+import sky40.ons.util.BinaryWriter;
+import sky40.ons.util.JsonWriter;
+import sky40.ons.util.MicroBenchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the serialization of a message with 100 rows: the
+ * {@link JsonWriter} against the string based toJson, and the binary format
+ * against json in size and time.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class ChangedRowSetBenchmarkTest {
+
+  private static final int ROWS = 100;
+
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void jsonWriterIsFasterThanToJson() {
+    ChangedRowSet rows = buildRows();
+    JsonWriter writer = new JsonWriter();
+    rows.writeJson(writer.reset());
+    assertEquals(rows.toJson(), new String(writer.toByteArray(), StandardCharsets.UTF_8));
+
+    double toJson = MicroBenchmark.measure("json: toJson, UTF-8 bytes", ITERATIONS,
+            () -> rows.toJson().getBytes(StandardCharsets.UTF_8).length);
+    double jsonWriter = MicroBenchmark.measure("json: JsonWriter", ITERATIONS, () -> {
+      rows.writeJson(writer.reset());
+      return writer.toByteArray().length;
+    });
+    assertTrue(jsonWriter < toJson);
+  }
+
+  @Test
+  public void binaryIsSmallerThanJson() {
+    TableChangeInfo change = new TableChangeInfo("FLEET", new Date(1540000000000L), "ADMIN.AIRCRAFT",
+            EnumSet.of(TableChangeDescription.TableOperation.UPDATE), buildRows());
+    JsonWriter json = new JsonWriter();
+    BinaryWriter binary = new BinaryWriter();
+    change.writeJson(json.reset(), null);
+    change.writeBinary(binary.reset(), null);
+    GzipCodec gzip = new GzipCodec();
+    int jsonSize = json.size();
+    int binarySize = binary.size();
+    int jsonGzipSize = gzip.encode(json.toByteArray()).length;
+    int binaryGzipSize = gzip.encode(binary.toByteArray()).length;
+    System.out.println(String.format("%-48s %12d bytes", "size: json", jsonSize));
+    System.out.println(String.format("%-48s %12d bytes", "size: binary", binarySize));
+    System.out.println(String.format("%-48s %12d bytes", "size: json, gzip", jsonGzipSize));
+    System.out.println(String.format("%-48s %12d bytes", "size: binary, gzip", binaryGzipSize));
+    assertTrue(binarySize < jsonSize);
+    assertTrue(binaryGzipSize < jsonGzipSize);
+
+    // close to each other, both format the doubles and timestamps
+    MicroBenchmark.measure("encode: json", ITERATIONS, () -> {
+      change.writeJson(json.reset(), null);
+      return json.size();
+    });
+    MicroBenchmark.measure("encode: binary", ITERATIONS, () -> {
+      change.writeBinary(binary.reset(), null);
+      return binary.size();
+    });
+  }
+
+  static ChangedRowSet buildRows() {
+    ChangedRowSet.Builder builder = new ChangedRowSet.Builder(
+            Arrays.asList("ID", "REGISTRATION", "TYPE", "OPERATOR", "SEATS", "WEIGHT", "PRICE", "BUILT", "CHANGED", "REMARKS"),
+            new ChangedRowSet.ColumnType[]{
+              ChangedRowSet.ColumnType.LONG, ChangedRowSet.ColumnType.STRING, ChangedRowSet.ColumnType.STRING,
+              ChangedRowSet.ColumnType.STRING, ChangedRowSet.ColumnType.LONG, ChangedRowSet.ColumnType.DOUBLE,
+              ChangedRowSet.ColumnType.DECIMAL, ChangedRowSet.ColumnType.TIMESTAMP, ChangedRowSet.ColumnType.TIMESTAMP,
+              ChangedRowSet.ColumnType.STRING});
+    for (int i = 0; i < ROWS; i++) {
+      builder.addRow("AAAR3sAAEAAAACXAA" + (char) ('A' + i % 26), Collections.singleton("UPDATE"))
+              .setLong(0, 100000 + i)
+              .setString(1, "D-A" + (1000 + i))
+              .setString(2, "A320-214")
+              .setString(3, "Lufthansa")
+              .setLong(4, 180)
+              .setDouble(5, 42400.5 + i)
+              .setString(6, "98000000.00")
+              .setLong(7, 1300000000000L + i * 86400000L)
+              .setLong(8, 1540000000123L + i)
+              .setNull(9);
+    }
+    return builder.build();
+  }
+
+}
@@ -0,0 +1,97 @@
+package sky40.ons.domain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import sky40.ons.util.JsonWriter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how the values of changed rows are stored and formatted.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class ChangedRowSetTest {
+
+  @Test
+  public void timestampsAreFormattedInUtc() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Arrays.asList("CREATED", "CHANGED"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.TIMESTAMP, ChangedRowSet.ColumnType.TIMESTAMP});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setLong(0, 1540000000000L)
+            .setLong(1, 1540000000123L);
+    ChangedRowSet set = rows.build();
+    assertEquals("2018-10-20 01:46:40.0", set.getString(0, 0));
+    assertEquals("2018-10-20 01:46:40.123", set.getString(0, 1));
+  }
+
+  @Test
+  public void stringColumnsKeepTheDriversString() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Collections.singletonList("CREATED"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.STRING});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, "2018-10-20 03:46:40.123456789");
+    assertEquals("2018-10-20 03:46:40.123456789", rows.build().getString(0, 0));
+  }
+
+  @Test
+  public void changedColumnsAreFoundByValue() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Arrays.asList("NAME", "SEATS", "WEIGHT"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.STRING, ChangedRowSet.ColumnType.LONG, ChangedRowSet.ColumnType.DOUBLE});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, new String("A320"))
+            .setLong(1, 180)
+            .setDouble(2, 42.5);
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, "A320")
+            .setNull(1)
+            .setDouble(2, 43.5);
+    ChangedRowSet set = rows.build();
+    boolean[] changed = set.getRowValues(1).findChangedColumns(set.getRowValues(0));
+    assertEquals(Arrays.toString(new boolean[]{false, true, true}), Arrays.toString(changed));
+  }
+
+  @Test
+  public void jsonIsWrittenAsByToJson() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Arrays.asList("NAME", "SEATS", "WEIGHT", "PRICE", "CREATED"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.STRING, ChangedRowSet.ColumnType.LONG,
+              ChangedRowSet.ColumnType.DOUBLE, ChangedRowSet.ColumnType.DECIMAL, ChangedRowSet.ColumnType.TIMESTAMP});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, "A320")
+            .setLong(1, 180)
+            .setDouble(2, 42.5)
+            .setString(3, "12.50")
+            .setLong(4, 1540000000123L);
+    rows.addRow("AAAR3sAAEAAAACXAAB", Collections.singleton("INSERT"))
+            .setNull(0)
+            .setLong(1, -3)
+            .setDouble(2, 1e21)
+            .setNull(3)
+            .setNull(4);
+    ChangedRowSet set = rows.build();
+    assertEquals("{\"rows\":[{\"attributes\":{\"NAME\":\"A320\",\"SEATS\":\"180\",\"WEIGHT\":\"42.5\",\"PRICE\":\"12.50\","
+            + "\"CREATED\":\"2018-10-20 01:46:40.123\"},\"rowId\":\"AAAR3sAAEAAAACXAAA\",\"operations\":[\"UPDATE\"]},"
+            + "{\"attributes\":{\"NAME\":null,\"SEATS\":\"-3\",\"WEIGHT\":\"1.0E21\",\"PRICE\":null,\"CREATED\":null},"
+            + "\"rowId\":\"AAAR3sAAEAAAACXAAB\",\"operations\":[\"INSERT\"]}]}", json(set));
+    assertEquals(set.toJson(), json(set));
+  }
+
+  @Test
+  public void jsonStringsAreEscaped() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Collections.singletonList("REMARKS"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.STRING});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, "\"Lima\"\\Zulu\nNovember");
+    assertEquals("{\"rows\":[{\"attributes\":{\"REMARKS\":\"\\\"Lima\\\"\\\\Zulu\\nNovember\"},"
+            + "\"rowId\":\"AAAR3sAAEAAAACXAAA\",\"operations\":[\"UPDATE\"]}]}", json(rows.build()));
+  }
+
+  private static String json(ChangedRowSet set) {
+    JsonWriter writer = new JsonWriter();
+    set.writeJson(writer);
+    return new String(writer.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+}
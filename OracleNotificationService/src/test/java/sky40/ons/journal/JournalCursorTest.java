@@ -0,0 +1,63 @@
+package sky40.ons.journal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Advances a cursor over delivered, failed and skipped messages.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class JournalCursorTest {
+
+  @Test
+  public void cursorStopsInFrontOfPendingMessages() {
+    JournalCursor cursor = new JournalCursor("subscription:1", 0);
+    cursor.track(10);
+    cursor.track(20);
+    cursor.track(30);
+    cursor.acknowledge(20);
+    assertEquals(0, cursor.getAcknowledged());
+    cursor.acknowledge(10);
+    assertEquals(20, cursor.getAcknowledged());
+    cursor.acknowledge(30);
+    assertEquals(30, cursor.getAcknowledged());
+  }
+
+  @Test
+  public void cursorStopsInFrontOfFailedMessage() {
+    JournalCursor cursor = new JournalCursor("subscription:1", 0);
+    cursor.track(10);
+    cursor.track(20);
+    cursor.track(30);
+    cursor.acknowledge(10);
+    cursor.fail(20);
+    cursor.acknowledge(30);
+    cursor.skipTo(40);
+    assertEquals(10, cursor.getAcknowledged());
+
+    // read again from the failed message on
+    cursor.reset();
+    cursor.skipTo(40);
+    assertEquals(10, cursor.getAcknowledged());
+    cursor.track(20);
+    cursor.readUpTo(20);
+    cursor.acknowledge(20);
+    assertEquals(20, cursor.getAcknowledged());
+  }
+
+  @Test
+  public void cursorSkipsUpToTheOffsetRead() {
+    JournalCursor cursor = new JournalCursor("push:http://localhost:8081/", 0);
+    cursor.skipTo(10);
+    assertEquals(10, cursor.getAcknowledged());
+    cursor.readUpTo(20);
+    cursor.skipTo(50);
+    assertEquals(20, cursor.getAcknowledged());
+    cursor.follow();
+    cursor.skipTo(50);
+    assertEquals(50, cursor.getAcknowledged());
+  }
+
+}
@@ -0,0 +1,168 @@
+package sky40.ons.journal;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.ChangeMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends messages to a journal with small segments, reads them again, also
+ * after a restart, and deletes old segments with cursors behind.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class JournalTest {
+
+  private static final int MESSAGES = 10;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ApplicationConfig config;
+  private SimpleMeterRegistry meterRegistry;
+  private Journal journal;
+
+  @Before
+  public void setUp() throws IOException {
+    config = new ApplicationConfig();
+    config.getJournal().setEnabled(true);
+    config.getJournal().setDirectory(folder.getRoot().getAbsolutePath());
+    // about three messages per segment
+    config.getJournal().setSegmentSize(300);
+    // synced by the test only
+    config.getJournal().setFlushInterval(60 * 1000);
+    journal = start();
+  }
+
+  @After
+  public void tearDown() {
+    journal.shutdown();
+  }
+
+  @Test
+  public void messagesAreReadAcrossSegments() throws IOException {
+    JournalCursor cursor = journal.getCursor("subscription:1");
+    List<Long> offsets = appendMessages();
+    // keeps the segments
+    cursor.track(offsets.get(0));
+    assertTrue(countSegments() > 2);
+    assertMessages(offsets, 0, journal);
+
+    journal.shutdown();
+    journal = start();
+    assertMessages(offsets, 0, journal);
+    assertEquals((long) offsets.get(MESSAGES - 1), journal.getEndOffset());
+  }
+
+  @Test
+  public void cursorsAreLoadedAgain() throws IOException {
+    JournalCursor failing = journal.getCursor("subscription:1");
+    List<Long> offsets = appendMessages();
+    JournalCursor idle = journal.getCursor("push:http://localhost:8081/");
+    for (long offset : offsets) {
+      failing.track(offset);
+    }
+    failing.acknowledge(offsets.get(0));
+    failing.fail(offsets.get(1));
+    failing.acknowledge(offsets.get(2));
+    assertEquals((long) offsets.get(0), failing.getAcknowledged());
+
+    journal.shutdown();
+    journal = start();
+    assertTrue(journal.hasCursor("subscription:1"));
+    assertEquals((long) offsets.get(0), journal.getCursor("subscription:1").getAcknowledged());
+    assertEquals(idle.getAcknowledged(), journal.getCursor("push:http://localhost:8081/").getAcknowledged());
+    // the failed message is read first after the restart
+    assertMessages(offsets.subList(1, MESSAGES), offsets.get(0), journal);
+  }
+
+  @Test
+  public void segmentsAreKeptForLaggingCursors() throws IOException {
+    JournalCursor lagging = journal.getCursor("subscription:1");
+    List<Long> offsets = appendMessages();
+    journal.getCursor("subscription:2");
+    for (long offset : offsets) {
+      lagging.track(offset);
+    }
+    for (int i = 0; i < 4; i++) {
+      lagging.acknowledge(offsets.get(i));
+    }
+    int segments = countSegments();
+
+    journal.deleteOldSegments();
+    assertTrue(countSegments() < segments);
+    assertEquals(0, meterRegistry.counter("ons.journal.expired").count(), 0);
+    assertMessages(offsets.subList(4, MESSAGES), offsets.get(3), journal);
+
+    // expired before the lagging cursor acknowledged them
+    File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(JournalSegment.SUFFIX));
+    for (File file : files) {
+      assertTrue(file.setLastModified(System.currentTimeMillis() - config.getJournal().getRetention() - 60 * 1000));
+    }
+    journal.deleteOldSegments();
+    assertEquals(1, countSegments());
+    List<Journal.Entry> left = readAll(0, journal);
+    assertEquals(MESSAGES - 4 - left.size(), meterRegistry.counter("ons.journal.expired").count(), 0);
+    assertEquals((long) offsets.get(MESSAGES - 1), left.get(left.size() - 1).getOffset());
+  }
+
+  private Journal start() throws IOException {
+    meterRegistry = new SimpleMeterRegistry();
+    Journal ret = new Journal();
+    ReflectionTestUtils.setField(ret, "config", config);
+    ReflectionTestUtils.setField(ret, "meterRegistry", meterRegistry);
+    ret.init();
+    return ret;
+  }
+
+  private List<Long> appendMessages() {
+    List<Long> ret = new ArrayList<>();
+    for (int i = 0; i < MESSAGES; i++) {
+      journal.append(message(i), ret::add);
+    }
+    return ret;
+  }
+
+  private static ChangeMessage message(int number) {
+    String json = "{\"seq\":" + ChangeMessage.SEQUENCE_PLACEHOLDER + ",\"table\":\"ADMIN.AIRCRAFT\",\"number\":" + number + "}";
+    return new ChangeMessage("ADMIN.AIRCRAFT", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private int countSegments() {
+    return folder.getRoot().listFiles((dir, name) -> name.endsWith(JournalSegment.SUFFIX)).length;
+  }
+
+  private static List<Journal.Entry> readAll(long from, Journal journal) {
+    List<Journal.Entry> ret = new ArrayList<>();
+    boolean[] atEnd = new boolean[1];
+    journal.read(from, ret::add, () -> atEnd[0] = true);
+    assertTrue(atEnd[0]);
+    return ret;
+  }
+
+  private static void assertMessages(List<Long> offsets, long from, Journal journal) {
+    List<Journal.Entry> entries = readAll(from, journal);
+    assertEquals(offsets.size(), entries.size());
+    int first = MESSAGES - offsets.size();
+    for (int i = 0; i < entries.size(); i++) {
+      Journal.Entry entry = entries.get(i);
+      assertEquals((long) offsets.get(i), entry.getOffset());
+      assertEquals("ADMIN.AIRCRAFT", entry.getMessage().getTableName());
+      assertEquals(message(first + i).getText(), entry.getMessage().getText());
+    }
+  }
+
+}
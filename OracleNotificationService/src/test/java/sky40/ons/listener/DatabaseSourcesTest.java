@@ -0,0 +1,86 @@
+package sky40.ons.listener;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import sky40.ons.ApplicationConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Creates a manager per configured source, with its own pool settings if set,
+ * and rejects sources listening on the same ports. Nothing is connected.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class DatabaseSourcesTest {
+
+  private ApplicationConfig config;
+
+  @Before
+  public void setUp() {
+    config = new ApplicationConfig();
+  }
+
+  @Test
+  public void sourcesWithDisjointPortsAreCreated() {
+    ApplicationConfig.Pool pool = new ApplicationConfig.Pool();
+    pool.setMaxSize(8);
+    ApplicationConfig.Source crew = source("crew", 1603, 1);
+    crew.setPool(pool);
+    config.setSource(new ArrayList<>(Arrays.asList(source("fleet", 1599, 4), crew)));
+    DatabaseSources sources = init();
+    assertSame(config.getPool(), sources.get("fleet").getPoolConfig());
+    assertSame(pool, sources.get("crew").getPoolConfig());
+  }
+
+  @Test
+  public void overlappingPortsAreRejected() {
+    config.setSource(new ArrayList<>(Arrays.asList(source("fleet", 1599, 4), source("crew", 1602, 2))));
+    try {
+      init();
+      fail();
+    } catch (RuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("1599-1602"));
+      assertTrue(ex.getMessage(), ex.getMessage().contains("1602-1603"));
+    }
+  }
+
+  @Test
+  public void samePortIsRejected() {
+    config.setSource(new ArrayList<>(Arrays.asList(source("fleet", 1599, 1), source("crew", 1609, 1), source("ops", 1599, 1))));
+    try {
+      init();
+      fail();
+    } catch (RuntimeException ex) {
+      assertEquals("Client ports 1599-1599 of source fleet overlap with ports 1599-1599 of source ops.", ex.getMessage());
+    }
+  }
+
+  private DatabaseSources init() {
+    DatabaseSources ret = new DatabaseSources();
+    ReflectionTestUtils.setField(ret, "config", config);
+    ReflectionTestUtils.setField(ret, "meterRegistry", new SimpleMeterRegistry());
+    ret.init();
+    return ret;
+  }
+
+  private static ApplicationConfig.Source source(String name, int clientPort, int shards) {
+    ApplicationConfig.Notification notification = new ApplicationConfig.Notification();
+    notification.setClientPort(clientPort);
+    notification.setShards(shards);
+    notification.setTableName(new ArrayList<>(Arrays.asList("AIRCRAFT")));
+    ApplicationConfig.Source ret = new ApplicationConfig.Source();
+    ret.setName(name);
+    ret.setOracle(new ApplicationConfig.Oracle());
+    ret.setNotification(notification);
+    return ret;
+  }
+
+}
@@ -0,0 +1,67 @@
+package sky40.ons.pipeline;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hands the items to the next stage, without waiting if asked to, and handles
+ * or drops the waiting items when stopped.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class PipelineStageTest {
+
+  @Test
+  public void offerDoesNotWaitForRoom() {
+    PipelineStage<Integer, Integer> stage = new PipelineStage<>("test", 1, 2, (item, emitter) -> {
+    }, null, new SimpleMeterRegistry());
+    assertTrue(stage.offer(1));
+    assertTrue(stage.offer(2));
+    assertFalse(stage.offer(3));
+    assertEquals(2, stage.getQueueDepth());
+    assertEquals(0, stage.getDroppedCount());
+  }
+
+  @Test
+  public void waitingItemsAreHandledOnStop() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    List<Integer> handled = new CopyOnWriteArrayList<>();
+    PipelineStage<Integer, Integer> stage = new PipelineStage<>("test", 1, 10, (item, emitter) -> {
+      blocked.await();
+      emitter.accept(item);
+    }, handled::add, new SimpleMeterRegistry());
+    stage.start();
+    for (int i = 0; i < 5; i++) {
+      stage.submit(i);
+    }
+    blocked.countDown();
+    stage.stop(5000);
+    assertEquals(5, handled.size());
+    assertEquals(0, stage.getDroppedCount());
+  }
+
+  @Test
+  public void waitingItemsAreDroppedAfterTimeout() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    PipelineStage<Integer, Integer> stage = new PipelineStage<>("test", 1, 10, (item, emitter) -> {
+      blocked.await(10, TimeUnit.SECONDS);
+    }, null, new SimpleMeterRegistry());
+    stage.start();
+    for (int i = 0; i < 5; i++) {
+      stage.submit(i);
+    }
+    stage.stop(100);
+    assertEquals(0, stage.getQueueDepth());
+    // the item taken by the worker is not counted as dropped
+    assertTrue(stage.getDroppedCount() >= 4);
+  }
+
+}
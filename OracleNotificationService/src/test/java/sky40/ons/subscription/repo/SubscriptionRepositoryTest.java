@@ -0,0 +1,153 @@
+package sky40.ons.subscription.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import sky40.ons.subscription.domain.Subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Finds subscriptions by id, token and name and publishes snapshots of them,
+ * also while other threads add and delete subscriptions.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class SubscriptionRepositoryTest {
+
+  @Test
+  public void subscriptionsAreFoundByIdTokenAndName() {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    Subscription sub = repository.add(subscription(1, "Tower", "Token-1"));
+    repository.add(subscription(2, "apron", "token-2"));
+
+    assertSame(sub, repository.findById(1L));
+    assertSame(sub, repository.findByToken("token-1"));
+    assertSame(sub, repository.findByToken("TOKEN-1"));
+    assertSame(sub, repository.findByName("TOWER"));
+    assertNull(repository.findById(3L));
+    assertNull(repository.findByToken("token-3"));
+    assertNull(repository.findByName("gate"));
+    assertEquals(2, repository.getAll().size());
+  }
+
+  @Test
+  public void idAndNameAreUnique() {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    repository.add(subscription(1, "tower", "token-1"));
+    assertNull(repository.add(subscription(1, "apron", "token-2")));
+    assertNull(repository.add(subscription(2, "TOWER", "token-2")));
+    assertNull(repository.findByToken("token-2"));
+    assertEquals(1, repository.getAll().size());
+
+    assertEquals(1, repository.restore(Arrays.asList(
+            subscription(1, "gate", "token-3"),
+            subscription(3, "Tower", "token-3"),
+            subscription(4, "gate", "token-4"))));
+    assertSame(repository.findById(4L), repository.findByName("gate"));
+    assertEquals(2, repository.getAll().size());
+  }
+
+  @Test
+  public void deletedSubscriptionIsRemovedFromAllIndexes() {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    Subscription sub = repository.add(subscription(1, "tower", "token-1"));
+    Collection<Subscription> before = repository.getAll();
+    SubscriptionRoutes routes = repository.getRoutes();
+
+    assertSame(sub, repository.delete(1));
+    assertNull(repository.delete(1));
+    assertNull(repository.findById(1L));
+    assertNull(repository.findByToken("token-1"));
+    assertNull(repository.findByName("tower"));
+    assertTrue(repository.getAll().isEmpty());
+    assertTrue(repository.getRoutes().find("ADMIN.AIRCRAFT").isEmpty());
+    // published snapshots are not changed
+    assertEquals(1, before.size());
+    assertEquals(1, routes.find("ADMIN.AIRCRAFT").size());
+    // the name can be used again
+    assertTrue(repository.add(subscription(2, "Tower", "token-2")) != null);
+  }
+
+  @Test
+  public void snapshotsAreReadWhileSubscriptionsChange() throws Exception {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    int writers = 4;
+    int perWriter = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<?>> readers = new ArrayList<>();
+      for (int r = 0; r < 2; r++) {
+        readers.add(executor.submit(() -> {
+          start.await();
+          while (writing.get()) {
+            Collection<Subscription> all = repository.getAll();
+            int size = all.size();
+            int count = 0;
+            for (Subscription sub : all) {
+              assertNotNull(sub.getId());
+              count++;
+            }
+            assertEquals(size, count);
+            SubscriptionRoutes routes = repository.getRoutes();
+            assertTrue(routes.find("ADMIN.AIRCRAFT").size() <= writers * perWriter);
+          }
+          return null;
+        }));
+      }
+      List<Future<?>> writes = new ArrayList<>();
+      for (int w = 0; w < writers; w++) {
+        long first = w * perWriter;
+        writes.add(executor.submit(() -> {
+          start.await();
+          for (long id = first; id < first + perWriter; id++) {
+            assertTrue(repository.add(subscription(id, "sub-" + id, "token-" + id)) != null);
+            // every other subscription is deleted again
+            if (id % 2 == 1) {
+              assertTrue(repository.delete(id) != null);
+            }
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> write : writes) {
+        write.get(30, TimeUnit.SECONDS);
+      }
+      writing.set(false);
+      for (Future<?> reader : readers) {
+        reader.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int expected = writers * perWriter / 2;
+    assertEquals(expected, repository.getAll().size());
+    assertEquals(expected, repository.getRoutes().find("ADMIN.AIRCRAFT").size());
+    for (Subscription sub : repository.getAll()) {
+      assertEquals(0, sub.getId() % 2);
+      assertSame(sub, repository.findByToken(sub.getSessionToken()));
+      assertSame(sub, repository.findByName(sub.getName()));
+    }
+  }
+
+  static Subscription subscription(long id, String name, String token) {
+    return new Subscription(id, name, "http://localhost:8081/" + name, 1000, token);
+  }
+
+}
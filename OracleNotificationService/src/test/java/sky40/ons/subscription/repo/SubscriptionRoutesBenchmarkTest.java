@@ -0,0 +1,85 @@
+package sky40.ons.subscription.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.junit.Test;
+import sky40.ons.subscription.domain.Subscription;
+import sky40.ons.util.MicroBenchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the lookups of a repository with 10000 subscriptions: the indexes
+ * and routes against scanning all subscriptions, as done before the indexes.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class SubscriptionRoutesBenchmarkTest {
+
+  private static final int SUBSCRIPTIONS = 10000;
+
+  private static final int TABLES = 100;
+
+  private static final int ITERATIONS = 2000;
+
+  @Test
+  public void indexesAreFasterThanScanning() {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    List<Subscription> subs = new ArrayList<>();
+    for (int i = 0; i < SUBSCRIPTIONS; i++) {
+      Subscription sub = SubscriptionRoutesTest.subscription(i, "ADMIN.TABLE_" + (i % TABLES), "OPS.*");
+      subs.add(sub);
+    }
+    assertEquals(SUBSCRIPTIONS, repository.restore(subs));
+    int[] next = new int[1];
+
+    double scanToken = MicroBenchmark.measure("subscriptions: token, scan", ITERATIONS, () -> {
+      String token = "TOKEN-" + (next[0]++ % SUBSCRIPTIONS);
+      for (Subscription sub : repository.getAll()) {
+        if (sub.getSessionToken().equalsIgnoreCase(token)) {
+          return sub.getId();
+        }
+      }
+      return -1;
+    });
+    double indexToken = MicroBenchmark.measure("subscriptions: token, index", ITERATIONS,
+            () -> repository.findByToken("TOKEN-" + (next[0]++ % SUBSCRIPTIONS)).getId());
+    assertTrue(indexToken < scanToken);
+
+    double scanTable = MicroBenchmark.measure("subscriptions: table, scan", ITERATIONS / 10, () -> {
+      String table = "ADMIN.TABLE_" + (next[0]++ % TABLES);
+      long count = 0;
+      for (Subscription sub : repository.getAll()) {
+        for (String pattern : sub.getTables()) {
+          if (table.matches(pattern.toUpperCase(Locale.ROOT).replace(".", "\\.").replace("*", ".*"))) {
+            count++;
+            break;
+          }
+        }
+      }
+      return count;
+    });
+    SubscriptionRoutes routes = repository.getRoutes();
+    double route = MicroBenchmark.measure("subscriptions: table, routes", ITERATIONS,
+            () -> routes.find("ADMIN.TABLE_" + (next[0]++ % TABLES)).size());
+    assertTrue(route < scanTable);
+    assertEquals(SUBSCRIPTIONS / TABLES, routes.find("admin.table_7").size());
+    assertEquals(SUBSCRIPTIONS, routes.find("OPS.FLIGHT").size());
+
+    // writes copy the snapshot and build new routes
+    double write = MicroBenchmark.measure("subscriptions: add and delete", ITERATIONS / 20, () -> {
+      long id = SUBSCRIPTIONS + next[0]++;
+      Subscription sub = repository.add(SubscriptionRoutesTest.subscription(id, "ADMIN.AIRCRAFT"));
+      repository.delete(id);
+      return sub.getId();
+    });
+    assertTrue(write > 0);
+    assertEquals(SUBSCRIPTIONS, repository.getAll().size());
+    assertSame(repository.findById(7L), repository.findByName("SUB-7"));
+  }
+
+}
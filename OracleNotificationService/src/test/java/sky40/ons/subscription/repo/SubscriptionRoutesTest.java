@@ -0,0 +1,116 @@
+package sky40.ons.subscription.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Test;
+import sky40.ons.domain.BodyType;
+import sky40.ons.subscription.domain.Subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Routes tables to the subscriptions by their table patterns, with wildcards
+ * and without schema, and resolves the columns they want.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class SubscriptionRoutesTest {
+
+  @Test
+  public void subscriptionWithoutTablesGetsAllTables() {
+    Subscription all = subscription(1);
+    Subscription aircraft = subscription(2, "ADMIN.AIRCRAFT");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Arrays.asList(all, aircraft));
+    assertEquals(Arrays.asList(all, aircraft), routes.find("ADMIN.AIRCRAFT"));
+    assertEquals(Collections.singletonList(all), routes.find("ADMIN.AIRPORT"));
+    assertTrue(new SubscriptionRoutes(Collections.<Subscription>emptyList()).find("ADMIN.AIRCRAFT").isEmpty());
+  }
+
+  @Test
+  public void tablesAreMatchedCaseInsensitive() {
+    Subscription sub = subscription(1, "admin.Aircraft ");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Collections.singletonList(sub));
+    assertEquals(1, routes.find("ADMIN.AIRCRAFT").size());
+    assertEquals(1, routes.find("Admin.aircraft").size());
+    // resolved once for both spellings
+    assertSame(routes.findRoute("ADMIN.AIRCRAFT"), routes.findRoute("admin.aircraft"));
+    assertTrue(routes.find("ADMIN.AIRCRAFTS").isEmpty());
+    assertTrue(routes.find("OTHER.AIRCRAFT").isEmpty());
+  }
+
+  @Test
+  public void wildcardMatchesAnyCharacters() {
+    Subscription schema = subscription(1, "ADMIN.*");
+    Subscription suffix = subscription(2, "ADMIN.AIR*");
+    Subscription inner = subscription(3, "*.FLIGHT*LOG");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Arrays.asList(schema, suffix, inner));
+    assertEquals(Arrays.asList(schema, suffix), routes.find("ADMIN.AIRCRAFT"));
+    assertEquals(Arrays.asList(schema, suffix), routes.find("ADMIN.AIR"));
+    assertEquals(Collections.singletonList(schema), routes.find("ADMIN.CREW"));
+    assertEquals(Arrays.asList(schema, inner), routes.find("ADMIN.FLIGHT_LOG"));
+    assertEquals(Collections.singletonList(inner), routes.find("OPS.FLIGHTLOG"));
+    assertTrue(routes.find("ADMINX.AIRCRAFT").isEmpty());
+    assertTrue(routes.find("OPS.FLIGHT_LOGS").isEmpty());
+  }
+
+  @Test
+  public void otherCharactersAreMatchedLiterally() {
+    Subscription sub = subscription(1, "ADMIN.A$B+C");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Collections.singletonList(sub));
+    assertEquals(1, routes.find("ADMIN.A$B+C").size());
+    assertTrue(routes.find("ADMIN.A$BBC").isEmpty());
+    assertTrue(routes.find("ADMINXA$B+C").isEmpty());
+  }
+
+  @Test
+  public void tableWithoutSchemaMatchesAnySchema() {
+    Subscription aircraft = subscription(1, "AIRCRAFT");
+    Subscription crew = subscription(2, "CREW*");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Arrays.asList(aircraft, crew));
+    assertEquals(Collections.singletonList(aircraft), routes.find("ADMIN.AIRCRAFT"));
+    assertEquals(Collections.singletonList(aircraft), routes.find("OPS.AIRCRAFT"));
+    assertEquals(Collections.singletonList(aircraft), routes.find("AIRCRAFT"));
+    assertEquals(Collections.singletonList(crew), routes.find("OPS.CREW_PLAN"));
+    assertTrue(routes.find("ADMIN.AIRCRAFT2").isEmpty());
+    assertTrue(routes.find("ADMIN.OLD_AIRCRAFT").isEmpty());
+    // the schema is a single name
+    assertTrue(routes.find("A.B.AIRCRAFT").isEmpty());
+  }
+
+  @Test
+  public void columnsAreResolvedPerTable() {
+    Subscription id = subscription(1, "AIRCRAFT");
+    id.setColumns(new ArrayList<>(Arrays.asList("ID", "REGISTRATION")));
+    Subscription type = subscription(2, "ADMIN.*");
+    type.setColumns(new ArrayList<>(Arrays.asList("ID", "TYPE")));
+    Subscription again = subscription(3, "ADMIN.AIRCRAFT");
+    again.setColumns(new ArrayList<>(Arrays.asList("ID", "REGISTRATION")));
+    again.setBodyType(BodyType.BINARY);
+    Subscription all = subscription(4, "ADMIN.CREW");
+    SubscriptionRoutes routes = new SubscriptionRoutes(Arrays.asList(id, type, again, all));
+
+    SubscriptionRoutes.TableRoute aircraft = routes.findRoute("ADMIN.AIRCRAFT");
+    assertEquals(new HashSet<>(Arrays.asList("ID", "REGISTRATION", "TYPE")), aircraft.getColumns());
+    assertEquals(Arrays.asList(Arrays.asList("ID", "REGISTRATION"), Arrays.asList("ID", "TYPE")), aircraft.getProjections());
+    assertTrue(aircraft.isBinary());
+
+    SubscriptionRoutes.TableRoute crew = routes.findRoute("ADMIN.CREW");
+    assertNull(crew.getColumns());
+    assertEquals(Collections.singletonList(Arrays.asList("ID", "TYPE")), crew.getProjections());
+    assertFalse(crew.isBinary());
+  }
+
+  static Subscription subscription(long id, String... tables) {
+    Subscription ret = SubscriptionRepositoryTest.subscription(id, "sub-" + id, "token-" + id);
+    ret.setTables(new ArrayList<>(Arrays.asList(tables)));
+    return ret;
+  }
+
+}
@@ -0,0 +1,128 @@
+package sky40.ons.subscription.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+import sky40.ons.ApplicationConfig;
+import sky40.ons.domain.BodyType;
+import sky40.ons.subscription.domain.Subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes subscriptions to the store and loads them again, also from a log
+ * with a torn or corrupt last record.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class SubscriptionStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ApplicationConfig config;
+
+  @Before
+  public void setUp() {
+    config = new ApplicationConfig();
+    config.getStore().setEnabled(true);
+    config.getStore().setDirectory(folder.getRoot().getAbsolutePath());
+  }
+
+  @Test
+  public void subscriptionsAreLoadedAgain() throws IOException {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    SubscriptionStore store = start(repository);
+    Subscription first = new Subscription(1L, "first", "http://localhost:8081/first", 5000, "token1");
+    first.setTables(new ArrayList<>(Arrays.asList("ADMIN.AIRCRAFT", "ADMIN.AIRPORT")));
+    first.setColumns(new ArrayList<>(Arrays.asList("NAME")));
+    first.setBodyType(BodyType.BINARY);
+    first.setBatchSize(10);
+    repository.add(first);
+    repository.add(new Subscription(2L, "second", "http://localhost:8081/second", 5000, "token2"));
+    repository.delete(2L);
+    store.shutdown();
+
+    SubscriptionRepository loaded = new SubscriptionRepository();
+    start(loaded).shutdown();
+    assertEquals(1, loaded.getAll().size());
+    Subscription sub = loaded.findById(1L);
+    assertEquals("first", sub.getName());
+    assertEquals("http://localhost:8081/first", sub.getUrl());
+    assertEquals("token1", sub.getSessionToken());
+    assertEquals(Arrays.asList("ADMIN.AIRCRAFT", "ADMIN.AIRPORT"), sub.getTables());
+    assertEquals(Arrays.asList("NAME"), sub.getColumns());
+    assertEquals(BodyType.BINARY, sub.getBodyType());
+    assertEquals(10, sub.getBatchSize());
+  }
+
+  @Test
+  public void tornRecordIsIgnored() throws IOException {
+    writeTwoSubscriptions();
+    File log = new File(folder.getRoot(), "subscriptions.log");
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+    assertOnlyFirstIsLoaded();
+  }
+
+  @Test
+  public void corruptRecordIsIgnored() throws IOException {
+    writeTwoSubscriptions();
+    File log = new File(folder.getRoot(), "subscriptions.log");
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      // a huge number of strings, caught by the checksum
+      file.seek(file.length() - 20);
+      file.write(new byte[]{0x7f, -1, -1, -1});
+    }
+    assertOnlyFirstIsLoaded();
+  }
+
+  private void writeTwoSubscriptions() throws IOException {
+    SubscriptionRepository repository = new SubscriptionRepository();
+    SubscriptionStore store = start(repository);
+    awaitSnapshot();
+    repository.add(new Subscription(1L, "first", "http://localhost:8081/first", 5000, "token1"));
+    repository.add(new Subscription(2L, "second", "http://localhost:8081/second", 5000, "token2"));
+    store.shutdown();
+  }
+
+  /**
+   * Wait for the snapshot written at startup, so the subscriptions added
+   * afterwards are in the log only.
+   */
+  private void awaitSnapshot() {
+    File snapshot = new File(folder.getRoot(), "subscriptions.snapshot");
+    long end = System.currentTimeMillis() + 5000;
+    while (!snapshot.exists() && System.currentTimeMillis() < end) {
+      Thread.yield();
+    }
+    assertTrue(snapshot.exists());
+  }
+
+  private void assertOnlyFirstIsLoaded() throws IOException {
+    SubscriptionRepository loaded = new SubscriptionRepository();
+    start(loaded).shutdown();
+    assertNotNull(loaded.findById(1L));
+    assertNull(loaded.findById(2L));
+  }
+
+  private SubscriptionStore start(SubscriptionRepository repository) throws IOException {
+    SubscriptionStore ret = new SubscriptionStore();
+    ReflectionTestUtils.setField(ret, "config", config);
+    ReflectionTestUtils.setField(ret, "repository", repository);
+    ret.init();
+    return ret;
+  }
+
+}
@@ -0,0 +1,100 @@
+package sky40.ons.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import oracle.jdbc.dcn.TableChangeDescription;
+import org.junit.Test;
+import sky40.ons.domain.BodyType;
+import sky40.ons.domain.ChangeMessage;
+import sky40.ons.domain.ChangedRowSet;
+import sky40.ons.domain.TableChangeInfo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the binary messages against the example message in data/, which the
+ * consumer's BinaryMessageDecoderTest decodes. Together they make sure both
+ * sides agree on the format.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class BinaryWriterTest {
+
+  /**
+   * The example message, shared with the consumer project.
+   */
+  public static final File EXAMPLE = new File("../data/BINARY EXAMPLE.bin");
+
+  /**
+   * Build the change of the example message.
+   *
+   * @return the message, with sequence number 42
+   */
+  static ChangeMessage buildExample() {
+    ChangedRowSet.Builder rows = new ChangedRowSet.Builder(Arrays.asList("NAME", "SEATS", "REMARK"),
+            new ChangedRowSet.ColumnType[]{ChangedRowSet.ColumnType.STRING, ChangedRowSet.ColumnType.LONG, ChangedRowSet.ColumnType.STRING});
+    rows.addRow("AAAR3sAAEAAAACXAAA", Collections.singleton("UPDATE"))
+            .setString(0, "A320 \u00e4\u20ac\uD83D\uDE80")
+            .setLong(1, 180)
+            .setNull(2);
+    rows.addRow("AAAR3sAAEAAAACXAAB", Collections.singleton("DELETE"))
+            .setUnknown();
+    TableChangeInfo change = new TableChangeInfo("FLEET", new Date(1540000000000L), "ADMIN.AIRCRAFT",
+            EnumSet.of(TableChangeDescription.TableOperation.UPDATE, TableChangeDescription.TableOperation.DELETE), rows.build());
+
+    JsonWriter json = new JsonWriter();
+    change.writeJson(json, null);
+    BinaryWriter binary = new BinaryWriter();
+    change.writeBinary(binary, null);
+    return new ChangeMessage(change.getTableName(), json.toByteArray(), binary.toByteArray(), Collections.emptyMap()).withSequence(42);
+  }
+
+  @Test
+  public void messageMatchesExample() throws IOException {
+    byte[] body = buildExample().getBody(BodyType.BINARY);
+    assertArrayEquals(Files.readAllBytes(EXAMPLE.toPath()), body);
+  }
+
+  @Test
+  public void stringsAreUtf8() {
+    String value = "a\u00e4\u20ac\uD83D\uDE80";
+    byte[] bytes = new BinaryWriter().writeString(value).toByteArray();
+    byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+    assertEquals(expected.length, ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff));
+    assertArrayEquals(expected, Arrays.copyOfRange(bytes, 4, bytes.length));
+  }
+
+  @Test
+  public void nullStringIsMinusOne() {
+    assertArrayEquals(new byte[]{-1, -1, -1, -1}, new BinaryWriter().writeString(null).toByteArray());
+  }
+
+  @Test
+  public void numbersAreWrittenAsStrings() {
+    for (long value : new long[]{0, 7, -42, 1540000000000L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      assertArrayEquals(new BinaryWriter().writeString(Long.toString(value)).toByteArray(),
+              new BinaryWriter().writeString(value).toByteArray());
+    }
+  }
+
+  @Test
+  public void largestStringListIsWritten() {
+    byte[] bytes = new BinaryWriter().writeStrings(Collections.nCopies(0xffff, "")).toByteArray();
+    assertEquals((byte) 0xff, bytes[0]);
+    assertEquals((byte) 0xff, bytes[1]);
+    assertEquals(2 + 4 * 0xffff, bytes.length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooLongStringListIsRejected() {
+    new BinaryWriter().writeStrings(Collections.nCopies(0x10000, ""));
+  }
+
+}
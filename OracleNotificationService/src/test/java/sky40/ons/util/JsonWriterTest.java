@@ -0,0 +1,84 @@
+package sky40.ons.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes json with nested objects and arrays, escaped strings and numbers.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public class JsonWriterTest {
+
+  @Test
+  public void commasAreInsertedPerLevel() {
+    JsonWriter writer = new JsonWriter(4);
+    writer.beginObject()
+            .name("a").beginArray().value(1).value("x").nullValue().endArray()
+            .name(JsonWriter.encodeName("b")).beginObject().name("c").value(true).endObject()
+            .name("d").array(Arrays.asList("INSERT", "UPDATE"))
+            .name("e").beginArray().endArray()
+            .endObject();
+    assertEquals("{\"a\":[1,\"x\",null],\"b\":{\"c\":true},\"d\":[\"INSERT\",\"UPDATE\"],\"e\":[]}", text(writer));
+  }
+
+  @Test
+  public void stringsAreEscaped() {
+    JsonWriter writer = new JsonWriter();
+    writer.beginArray()
+            .value("say \"hi\" \\ or 'bye'")
+            .value("line\nfeed\rreturn\ttab")
+            .value("\u0001\u001f")
+            .endArray();
+    assertEquals("[\"say \\\"hi\\\" \\\\ or 'bye'\",\"line\\nfeed\\rreturn\\ttab\",\"\\u0001\\u001f\"]", text(writer));
+  }
+
+  @Test
+  public void stringsAreEncodedAsUtf8() {
+    String value = "Z\u00fcrich \u20ac \ud83d\ude80";
+    JsonWriter writer = new JsonWriter(1);
+    writer.value(value);
+    assertArrayEquals(("\"" + value + "\"").getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+  }
+
+  @Test
+  public void unpairedSurrogatesAreEscaped() {
+    JsonWriter writer = new JsonWriter();
+    writer.beginArray().value("a\ud83d").value("\ude80b").endArray();
+    assertEquals("[\"a\\ud83d\",\"\\ude80b\"]", text(writer));
+  }
+
+  @Test
+  public void numbersAreWrittenAsGiven() {
+    JsonWriter writer = new JsonWriter();
+    writer.beginArray()
+            .value(0)
+            .value(-42)
+            .value(Long.MIN_VALUE)
+            .value(42.5)
+            .numberValue("12.50")
+            .numberValue("-0.000001")
+            .stringValue(180)
+            .stringValue(-7)
+            .stringValue(Long.MAX_VALUE)
+            .endArray();
+    assertEquals("[0,-42,-9223372036854775808,42.5,12.50,-0.000001,\"180\",\"-7\",\"9223372036854775807\"]", text(writer));
+  }
+
+  @Test
+  public void writerIsReused() {
+    JsonWriter writer = new JsonWriter();
+    writer.beginObject().name("a").beginArray().value(1);
+    writer.reset().beginArray().value(2).endArray();
+    assertEquals("[2]", text(writer));
+  }
+
+  private static String text(JsonWriter writer) {
+    return new String(writer.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+}
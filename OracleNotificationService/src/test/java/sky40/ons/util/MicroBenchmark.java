@@ -0,0 +1,45 @@
+package sky40.ons.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Measures the time of an operation for the benchmark tests: the operation is
+ * run in a loop to warm up the JIT, then timed in a second loop of the same
+ * length. The results are summed up, so the operation cannot be optimized
+ * away. The default number of iterations keeps the tests short; raise it with
+ * -Dons.benchmark.iterations=... for stable numbers.
+ *
+ * @author Hendrik Stilke {@literal (Hendrik.Stilke@sky40.de)}
+ */
+public final class MicroBenchmark {
+
+  private static volatile long sink;
+
+  private MicroBenchmark() {
+  }
+
+  /**
+   * Measure an operation and print the result.
+   *
+   * @param name name of the operation
+   * @param iterations default number of iterations
+   * @param operation the operation, returning e.g. the size of its result
+   * @return average time of an operation in nanoseconds
+   */
+  public static double measure(String name, int iterations, LongSupplier operation) {
+    int count = Integer.getInteger("ons.benchmark.iterations", iterations);
+    long sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += operation.getAsLong();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      sum += operation.getAsLong();
+    }
+    double ret = (System.nanoTime() - start) / (double) count;
+    sink = sum;
+    System.out.println(String.format("%-48s %12.0f ns/op", name, ret));
+    return ret;
+  }
+
+}